@@ -11,6 +11,12 @@ import de.caluga.morphium.annotations.lifecycle.*;
 import de.caluga.morphium.async.AsyncOperationCallback;
 import de.caluga.morphium.cache.CacheHousekeeper;
 import de.caluga.morphium.cache.MorphiumCache;
+import de.caluga.morphium.cache.InMemoryQueryEngine;
+import de.caluga.morphium.cache.CacheSnapshot;
+import de.caluga.morphium.cache.MemoryPressureMonitor;
+import de.caluga.morphium.cache.OffHeapCacheTier;
+import de.caluga.morphium.cache.SegmentedMorphiumCacheImpl;
+import de.caluga.morphium.cache.SingleFlightLoader;
 import de.caluga.morphium.query.MongoField;
 import de.caluga.morphium.query.Query;
 import de.caluga.morphium.replicaset.RSMonitor;
@@ -23,6 +29,7 @@ import de.caluga.morphium.writer.MorphiumWriterImpl;
 import net.sf.cglib.proxy.Enhancer;
 import org.bson.types.ObjectId;
 
+import java.io.File;
 import java.io.Serializable;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
@@ -70,6 +77,9 @@ public class Morphium {
      * String Representing current user - needs to be set by Application
      */
     private CacheHousekeeper cacheHousekeeper;
+    private final SingleFlightLoader singleFlightLoader = new SingleFlightLoader();
+    private InMemoryQueryEngine inMemoryQueryEngine;
+    private MemoryPressureMonitor memoryPressureMonitor;
 
     private List<MorphiumStorageListener> listeners;
     private List<ProfilingListener> profilingListeners;
@@ -197,6 +207,9 @@ public class Morphium {
             }
         }
 
+        if (config.getMaxCacheBytes() > 0 && config.getCache() instanceof SegmentedMorphiumCacheImpl) {
+            ((SegmentedMorphiumCacheImpl) config.getCache()).setMaxBytes(config.getMaxCacheBytes());
+        }
         cacheHousekeeper = new CacheHousekeeper(this, 5000, config.getGlobalCacheValidTime());
         cacheHousekeeper.setDaemon(true);
         cacheHousekeeper.start();
@@ -228,6 +241,30 @@ public class Morphium {
         } catch (IllegalAccessException e) {
             throw new RuntimeException(e);
         }
+        singleFlightLoader.setMetrics(getCache().getMetrics());
+        inMemoryQueryEngine = new InMemoryQueryEngine(objectMapper);
+        addListener(inMemoryQueryEngine);
+        getCache().addCacheListener(inMemoryQueryEngine);
+        if (config.getOffHeapCacheBytes() > 0 && config.getCache() instanceof SegmentedMorphiumCacheImpl) {
+            ((SegmentedMorphiumCacheImpl) config.getCache()).setOffHeapTier(new OffHeapCacheTier(objectMapper, config.getOffHeapCacheBytes()));
+        }
+        if (config.getCacheMemoryThreshold() > 0) {
+            memoryPressureMonitor = new MemoryPressureMonitor(getCache(), config.getCacheMemoryThreshold());
+            memoryPressureMonitor.setShedPercent(config.getCacheShedPercent());
+            memoryPressureMonitor.start();
+        }
+        if (config.getCacheSnapshotFile() != null && new File(config.getCacheSnapshotFile()).exists()) {
+            CacheSnapshot snapshot = new CacheSnapshot(objectMapper);
+            try {
+                if (snapshot.read(getCache(), new File(config.getCacheSnapshotFile())) > 0) {
+                    int changed = snapshot.revalidate(this, getCache());
+                    logger.info("Cache restored, " + changed + " objects were changed or deleted in the meantime");
+                }
+            } catch (Exception e) {
+                logger.error("Could not restore cache snapshot - starting with empty cache", e);
+                getCache().resetCache();
+            }
+        }
 
         try {
             Thread.sleep(1000); //Waiting for initialization to finish
@@ -265,6 +302,21 @@ public class Morphium {
         return config.getCache();
     }
 
+    public SingleFlightLoader getSingleFlightLoader() {
+        return singleFlightLoader;
+    }
+
+    public InMemoryQueryEngine getInMemoryQueryEngine() {
+        return inMemoryQueryEngine;
+    }
+
+    /**
+     * @return the monitor shedding cached results on memory pressure, null if not enabled
+     */
+    public MemoryPressureMonitor getMemoryPressureMonitor() {
+        return memoryPressureMonitor;
+    }
+
     /**
      * Checks if javax.validation is available and enables validation support.
      *
@@ -1435,12 +1487,10 @@ public class Morphium {
 
     @SuppressWarnings("unchecked")
     public <T> T findById(Class<? extends T> type, Object id) {
-        T ret = getCache().getFromIDCache(type, id);
-        if (ret != null) return ret;
         List<String> ls = annotationHelper.getFields(type, Id.class);
         if (ls.size() == 0) throw new RuntimeException("Cannot find by ID on non-Entity");
 
-        return createQueryFor(type).f(ls.get(0)).eq(id).get();
+        return createQueryFor(type).getById(id);
     }
 
     @SuppressWarnings("unchecked")
@@ -1831,7 +1881,18 @@ public class Morphium {
     }
 
     public void close() {
+        if (config.getCacheSnapshotFile() != null) {
+            try {
+                int written = new CacheSnapshot(objectMapper).write(getCache(), new File(config.getCacheSnapshotFile()));
+                logger.info("Wrote " + written + " cached results to " + config.getCacheSnapshotFile());
+            } catch (Exception e) {
+                logger.error("Could not write cache snapshot", e);
+            }
+        }
         cacheHousekeeper.end();
+        if (memoryPressureMonitor != null) {
+            memoryPressureMonitor.stop();
+        }
         asyncOperationsThreadPool.shutdownNow();
 
         for (ShutdownListener l : shutDownListeners) {
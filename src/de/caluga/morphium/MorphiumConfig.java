@@ -38,6 +38,18 @@ public class MorphiumConfig {
     //    private MongoDbMode mode;
     private int maxConnections, housekeepingTimeout;
     private int globalCacheValidTime = 5000;
+    //global limit for the estimated heap size of the cache, -1 means unlimited
+    private long maxCacheBytes = -1;
+    //size of the off heap second level cache tier, -1 means disabled
+    private long offHeapCacheBytes = -1;
+    //max time in ms to wait for a running load of the same query on a cache miss, 0 disables single flight loading
+    private int singleFlightTimeout = 10000;
+    //percentage of the max heap, cached results are shed at - 0 disables shedding
+    private int cacheMemoryThreshold = 0;
+    //percentage of cached results to remove when the memory threshold is exceeded
+    private int cacheShedPercent = 25;
+    //file the cache is written to on close and restored from on startup, null disables snapshots
+    private String cacheSnapshotFile = null;
     private int writeCacheTimeout = 5000;
     private String database;
     @Transient
@@ -117,6 +129,8 @@ public class MorphiumConfig {
     private int threadPoolMessagingCoreSize = 0;
     private int threadPoolMessagingMaxSize = 100;
     private long threadPoolMessagingKeepAliveTime = 2000;
+    //max number of messages waiting for a messaging worker thread, dispatching blocks if exceeded
+    private int threadPoolMessagingQueueSize = 100;
     private int threadPoolAsyncOpCoreSize = 1;
     private int threadPoolAsyncOpMaxSize = 1000;
     private long threadPoolAsyncOpKeepAliveTime = 1000;
@@ -513,6 +527,85 @@ public class MorphiumConfig {
         this.mongoAdminPwd = mongoAdminPwd;
     }
 
+    public long getMaxCacheBytes() {
+        return maxCacheBytes;
+    }
+
+    /**
+     * global limit for the estimated size of all cached results in bytes. Only enforced by caches supporting it,
+     * like the SegmentedMorphiumCacheImpl
+     *
+     * @param maxCacheBytes - max bytes, -1 for unlimited
+     */
+    public void setMaxCacheBytes(long maxCacheBytes) {
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    public long getOffHeapCacheBytes() {
+        return offHeapCacheBytes;
+    }
+
+    /**
+     * enables the off heap second level cache tier with the given size. Only supported by the
+     * SegmentedMorphiumCacheImpl
+     *
+     * @param offHeapCacheBytes - max bytes, -1 disables the tier
+     */
+    public void setOffHeapCacheBytes(long offHeapCacheBytes) {
+        this.offHeapCacheBytes = offHeapCacheBytes;
+    }
+
+    public int getSingleFlightTimeout() {
+        return singleFlightTimeout;
+    }
+
+    /**
+     * concurrent cache misses for the same query wait for one running load and share its result. If the load takes
+     * longer than this timeout (in ms), waiting threads read from mongo themselves. 0 disables this behaviour
+     *
+     * @param singleFlightTimeout - timeout in ms
+     */
+    public void setSingleFlightTimeout(int singleFlightTimeout) {
+        this.singleFlightTimeout = singleFlightTimeout;
+    }
+
+    public int getCacheMemoryThreshold() {
+        return cacheMemoryThreshold;
+    }
+
+    /**
+     * sheds cached results, if heap usage exceeds the given percentage of the max heap (see MemoryPressureMonitor)
+     *
+     * @param cacheMemoryThreshold - percentage (1-99), 0 disables shedding
+     */
+    public void setCacheMemoryThreshold(int cacheMemoryThreshold) {
+        this.cacheMemoryThreshold = cacheMemoryThreshold;
+    }
+
+    public int getCacheShedPercent() {
+        return cacheShedPercent;
+    }
+
+    /**
+     * @param cacheShedPercent - percentage of cached results removed every time the memory threshold is exceeded
+     */
+    public void setCacheShedPercent(int cacheShedPercent) {
+        this.cacheShedPercent = cacheShedPercent;
+    }
+
+    public String getCacheSnapshotFile() {
+        return cacheSnapshotFile;
+    }
+
+    /**
+     * the cache is written to this file on close() and restored from it on startup (see CacheSnapshot)
+     *
+     * @param cacheSnapshotFile - path of the file, null disables snapshots
+     */
+    public void setCacheSnapshotFile(String cacheSnapshotFile) {
+        this.cacheSnapshotFile = cacheSnapshotFile;
+    }
+
     public int getWriteCacheTimeout() {
         return writeCacheTimeout;
     }
@@ -927,6 +1020,19 @@ public class MorphiumConfig {
         this.threadPoolMessagingKeepAliveTime = threadPoolMessagingKeepAliveTime;
     }
 
+    public int getThreadPoolMessagingQueueSize() {
+        return threadPoolMessagingQueueSize;
+    }
+
+    /**
+     * @param threadPoolMessagingQueueSize - number of messages queued for the worker threads of a multithreadded
+     *                                     messaging. If all threads are busy and the queue is full, dispatching
+     *                                     waits for a free slot
+     */
+    public void setThreadPoolMessagingQueueSize(int threadPoolMessagingQueueSize) {
+        this.threadPoolMessagingQueueSize = threadPoolMessagingQueueSize;
+    }
+
     public int getThreadPoolAsyncOpCoreSize() {
         return threadPoolAsyncOpCoreSize;
     }
@@ -1,6 +1,6 @@
 package de.caluga.morphium;
 
-import de.caluga.morphium.cache.CacheElement;
+import de.caluga.morphium.cache.CacheTypeMetrics;
 
 import java.util.Arrays;
 import java.util.HashMap;
@@ -19,16 +19,19 @@ public class Statistics extends HashMap<String, Double> {
             super.put(et.getKey().name(), (double) et.getValue().get());
         }
         double entries = 0;
-        Map<Class<?>, Map<String, CacheElement>> cc = morphium.getCache().cloneCache();
-        for (Map.Entry<Class<?>, Map<String, CacheElement>> en : cc.entrySet()) {
-            Map<String, CacheElement> lst = en.getValue();
-            entries += lst.size();
-            super.put("X-Entries for: " + en.getKey().getName(), (double) lst.size());
+        for (CacheTypeMetrics m : morphium.getCache().getMetrics().getAll().values()) {
+            entries += m.getEntries();
+            super.put("X-Entries for: " + m.getType().getName(), (double) m.getEntries());
+            super.put("X-Bytes for: " + m.getType().getName(), (double) m.getBytes());
+            super.put("X-Hits for: " + m.getType().getName(), (double) m.getHits());
+            super.put("X-Misses for: " + m.getType().getName(), (double) m.getMisses());
         }
         super.put(StatisticKeys.CACHE_ENTRIES.name(), entries);
 
 
         super.put(StatisticKeys.WRITE_BUFFER_ENTRIES.name(), (double) morphium.getWriteBufferCount());
+        super.put(StatisticKeys.CCOALESCED.name(), (double) morphium.getSingleFlightLoader().getCoalesced());
+        super.put(StatisticKeys.CCOALESCE_TIMEOUTS.name(), (double) morphium.getSingleFlightLoader().getTimeouts());
         super.put(StatisticKeys.CHITSPERC.name(), ((double) morphium.getStats().get(StatisticKeys.CHITS).get()) / (morphium.getStats().get(StatisticKeys.READS).get() - morphium.getStats().get(StatisticKeys.NO_CACHED_READS).get()) * 100.0);
         super.put(StatisticKeys.CMISSPERC.name(), ((double) morphium.getStats().get(StatisticKeys.CMISS).get()) / (morphium.getStats().get(StatisticKeys.READS).get() - morphium.getStats().get(StatisticKeys.NO_CACHED_READS).get()) * 100.0);
     }
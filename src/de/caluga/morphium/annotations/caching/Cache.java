@@ -15,9 +15,19 @@ import static java.lang.annotation.ElementType.TYPE;
  * Define the caching configuration of a given MongoDbObject. The options are as follows:
  * timeout: int timout in ms when a cache entry becomes invalid
  * maxEntries: default -1 means unlimited (Only limited by Memory, uses SoftReferences!)
+ * maxBytes: maximum estimated heap size of all cached results of this type, default -1 means unlimited (only supported
+ * by caches enforcing limits on insert, like the SegmentedMorphiumCacheImpl)
  * clearOnWrite: clear cache if one element is written
  * strategy: when using fixed number of entries, define how to remove additional entries
  * readCache: use cache for reading
+ * fullCollection: the whole collection is read once and cached (and reread after timeout or writes). Queries are
+ * evaluated in memory, if possible. Only useful for small collections
+ * refreshAhead: fraction of the timeout (e.g. 0.8) - entries accessed after that age are reloaded in background,
+ * default 0 means disabled
+ * resultMode: OBJECTS stores the resulting objects for every query, IDS only stores the ids of the results, the
+ * objects themselves are kept once in the id cache and shared between all cached results
+ * staleWhileRevalidate: time in ms after the timeout, the old value is still served while being reloaded in
+ * background, default 0 means disabled
  * writeCache: use cache for writing (schedule write as background job), default false
  *
  * @author stephan
@@ -29,6 +39,8 @@ public @interface Cache {
 
     enum SyncCacheStrategy {NONE, CLEAR_TYPE_CACHE, REMOVE_ENTRY_FROM_TYPE_CACHE, UPDATE_ENTRY}
 
+    enum ResultMode {OBJECTS, IDS}
+
     int timeout() default 60000;
 
 //    boolean overridable() default false;
@@ -37,10 +49,20 @@ public @interface Cache {
 
     int maxEntries() default -1;
 
+    long maxBytes() default -1;
+
     ClearStrategy strategy() default ClearStrategy.FIFO;
 
     boolean readCache() default true;
 
+    boolean fullCollection() default false;
+
     SyncCacheStrategy syncCache() default SyncCacheStrategy.NONE;
 
+    double refreshAhead() default 0;
+
+    int staleWhileRevalidate() default 0;
+
+    ResultMode resultMode() default ResultMode.OBJECTS;
+
 }
\ No newline at end of file
@@ -15,6 +15,8 @@ public class CacheElement<T> {
     private long created;
     private List<T> found;
     private long lru;
+    private long size;
+    private boolean idsOnly;
 
     public CacheElement(List<T> found) {
         this.found = found;
@@ -29,6 +31,13 @@ public class CacheElement<T> {
 
     }
 
+    /**
+     * @return the result without updating the lru time, for scans over the whole cache
+     */
+    public List<T> peekFound() {
+        return found;
+    }
+
     public void setFound(List<T> found) {
         this.found = found;
 
@@ -38,6 +47,10 @@ public class CacheElement<T> {
         return created;
     }
 
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
     public long getLru() {
         return lru;
     }
@@ -45,4 +58,26 @@ public class CacheElement<T> {
     public void setLru(long lru) {
         this.lru = lru;
     }
+
+    /**
+     * @return true, if found only contains the ids of the result (ResultMode.IDS), objects are kept in the id cache
+     */
+    public boolean isIdsOnly() {
+        return idsOnly;
+    }
+
+    public void setIdsOnly(boolean idsOnly) {
+        this.idsOnly = idsOnly;
+    }
+
+    /**
+     * @return estimated retained size in bytes, 0 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
 }
@@ -0,0 +1,10 @@
+package de.caluga.morphium.cache;
+
+/**
+ * gets informed about entries being evicted from a CacheSegment due to maxEntries or maxBytes limits. Entries
+ * removed because of expiry or invalidation are not reported. Called outside of the segment lock.
+ */
+public interface CacheEvictionListener {
+
+    public void onEviction(Class<?> type, CacheKey k, CacheElement<?> e);
+}
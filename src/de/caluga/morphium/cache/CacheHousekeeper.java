@@ -77,27 +77,72 @@ public class CacheHousekeeper extends Thread {
 
     }
 
+    /**
+     * valid time for entries of the given type - either the one set by setValidCacheTime, the timeout of the @Cache
+     * annotation (plus the staleWhileRevalidate window) or the global cache timeout
+     */
+    private int getValidTimeFor(Class<?> clz) {
+        if (validTimeForClass.get(clz) != null) {
+            return validTimeForClass.get(clz);
+        }
+        int time = gcTimeout;
+        Cache cacheSettings = annotationHelper.getAnnotationFromHierarchy(clz, Cache.class);
+        NoCache noCache = annotationHelper.getAnnotationFromHierarchy(clz, NoCache.class);
+        if (noCache == null && cacheSettings != null) {
+            time = cacheSettings.timeout() + cacheSettings.staleWhileRevalidate();
+            setValidCacheTime(clz, time);
+        }
+        return time;
+    }
+
+    /**
+     * housekeeping for caches, that evict on insert - only expired entries are touched, no snapshot is created
+     *
+     * @param cache - the cache
+     */
+    private void expireEntries(EvictingMorphiumCache cache) {
+        for (Class<?> clz : cache.getCachedTypes()) {
+            int del = cache.expire(clz, getValidTimeFor(clz));
+            if (del > 0 && log.isDebugEnabled()) {
+                log.debug("Expired " + del + " entries for " + clz.getName());
+            }
+        }
+    }
+
     @SuppressWarnings({"unchecked", "ConstantConditions"})
     public void run() {
         while (running) {
+            if (morphium.getCache() instanceof EvictingMorphiumCache) {
+                try {
+                    expireEntries((EvictingMorphiumCache) morphium.getCache());
+                } catch (Throwable e) {
+                    log.warn("Error:" + e.getMessage(), e);
+                }
+                try {
+                    sleep(timeout);
+                } catch (InterruptedException e) {
+                    log.info("Ignoring InterruptedException");
+                }
+                continue;
+            }
             try {
-                Map<Class, List<String>> toDelete = new HashMap<Class, List<String>>();
-                Map<Class<?>, Map<String, CacheElement>> cache = morphium.getCache().cloneCache();
-                for (Map.Entry<Class<?>, Map<String, CacheElement>> es : cache.entrySet()) {
+                Map<Class, List<CacheKey>> toDelete = new HashMap<Class, List<CacheKey>>();
+                Map<Class<?>, Map<CacheKey, CacheElement<?>>> cache = morphium.getCache().cloneCache();
+                for (Map.Entry<Class<?>, Map<CacheKey, CacheElement<?>>> es : cache.entrySet()) {
                     Class<?> clz = es.getKey();
-                    Map<String, CacheElement> ch = (Map<String, CacheElement>) ((HashMap) es.getValue()).clone();
+                    Map<CacheKey, CacheElement<?>> ch = (Map<CacheKey, CacheElement<?>>) ((HashMap) es.getValue()).clone();
 
 
                     int maxEntries = -1;
                     Cache cacheSettings = annotationHelper.getAnnotationFromHierarchy(clz, Cache.class);//clz.getAnnotation(Cache.class);
                     NoCache noCache = annotationHelper.getAnnotationFromHierarchy(clz, NoCache.class);// clz.getAnnotation(NoCache.class);
                     int time = gcTimeout;
-                    HashMap<Long, List<String>> lruTime = new HashMap<>();
-                    HashMap<Long, List<String>> fifoTime = new HashMap<>();
+                    HashMap<Long, List<CacheKey>> lruTime = new HashMap<>();
+                    HashMap<Long, List<CacheKey>> fifoTime = new HashMap<>();
                     ClearStrategy strategy = null;
                     if (noCache == null) {
                         if (cacheSettings != null) {
-                            time = cacheSettings.timeout();
+                            time = cacheSettings.timeout() + cacheSettings.staleWhileRevalidate();
                             maxEntries = cacheSettings.maxEntries();
                             strategy = cacheSettings.strategy();
 
@@ -150,29 +195,30 @@ public class CacheHousekeeper extends Thread {
                     }
 
                     int del = 0;
-                    for (Map.Entry<String, CacheElement> est : ch.entrySet()) {
-                        String k = est.getKey();
-                        CacheElement e = est.getValue(); //ch.get(k);
+                    for (Map.Entry<CacheKey, CacheElement<?>> est : ch.entrySet()) {
+                        CacheKey k = est.getKey();
+                        CacheElement<?> e = est.getValue(); //ch.get(k);
 
                         if (e == null || e.getFound() == null || System.currentTimeMillis() - e.getCreated() > time) {
                             if (toDelete.get(clz) == null) {
-                                toDelete.put(clz, new ArrayList<String>());
+                                toDelete.put(clz, new ArrayList<CacheKey>());
                             }
                             toDelete.get(clz).add(k);
                             del++;
                         } else {
                             if (lruTime.get(e.getLru()) == null) {
-                                lruTime.put(e.getLru(), new ArrayList<String>());
+                                lruTime.put(e.getLru(), new ArrayList<CacheKey>());
                             }
                             lruTime.get(e.getLru()).add(k);
                             long fifo = System.currentTimeMillis() - e.getCreated();
                             if (fifoTime.get(fifo) == null) {
-                                fifoTime.put(fifo, new ArrayList<String>());
+                                fifoTime.put(fifo, new ArrayList<CacheKey>());
                             }
                             fifoTime.get(fifo).add(k);
                         }
                     }
                     cache.put(clz, ch);
+                    int expired = del;
                     if (maxEntries > 0 && cache.get(clz).size() - del > maxEntries) {
                         Long[] array;
                         int idx;
@@ -184,7 +230,7 @@ public class CacheHousekeeper extends Thread {
                                 while (cache.get(clz).size() - del > maxEntries) {
                                     if (lruTime.get(array[idx]) != null && lruTime.get(array[idx]).size() != 0) {
                                         if (toDelete.get(clz) == null) {
-                                            toDelete.put(clz, new ArrayList<String>());
+                                            toDelete.put(clz, new ArrayList<CacheKey>());
                                         }
                                         toDelete.get(clz).add(lruTime.get(array[idx]).get(0));
                                         lruTime.get(array[idx]).remove(0);
@@ -203,7 +249,7 @@ public class CacheHousekeeper extends Thread {
                                 while (cache.get(clz).size() - del > maxEntries) {
                                     if (fifoTime.get(array[array.length - 1 - idx]) != null && fifoTime.get(array[array.length - 1 - idx]).size() != 0) {
                                         if (toDelete.get(clz) == null) {
-                                            toDelete.put(clz, new ArrayList<String>());
+                                            toDelete.put(clz, new ArrayList<CacheKey>());
                                         }
                                         toDelete.get(clz).add(fifoTime.get(array[array.length - 1 - idx]).get(0));
                                         fifoTime.get(array[array.length - 1 - idx]).remove(0);
@@ -223,7 +269,7 @@ public class CacheHousekeeper extends Thread {
                                 while (cache.get(clz).size() - del > maxEntries) {
                                     if (lruTime.get(array[idx]) != null && lruTime.get(array[idx]).size() != 0) {
                                         if (toDelete.get(clz) == null) {
-                                            toDelete.put(clz, new ArrayList<String>());
+                                            toDelete.put(clz, new ArrayList<CacheKey>());
                                         }
                                         toDelete.get(clz).add(lruTime.get(array[idx]).get(0));
                                         del++;
@@ -236,21 +282,24 @@ public class CacheHousekeeper extends Thread {
                         }
 
                     }
-
+                    CacheTypeMetrics metrics = morphium.getCache().getMetrics().get(clz);
+                    metrics.count(CacheMetrics.EvictionReason.EXPIRY, expired);
+                    metrics.count(CacheMetrics.EvictionReason.SIZE, del - expired);
                 }
 
                 Map<Class<?>, Map<Object, Object>> idCacheClone = morphium.getCache().cloneIdCache();
-                for (Map.Entry<Class, List<String>> et : toDelete.entrySet()) {
+                for (Map.Entry<Class, List<CacheKey>> et : toDelete.entrySet()) {
                     Class cls = et.getKey();
 
                     boolean inIdCache = idCacheClone.get(cls) != null;
 
-                    for (String k : et.getValue()) {
-                        if (k.endsWith("idlist")) continue;
+                    for (CacheKey k : et.getValue()) {
+                        if (k.isIdList()) continue;
                         if (inIdCache) {
                             //remove objects from id cache
-                            for (Object f : cache.get(cls).get(k).getFound()) {
-                                idCacheClone.get(cls).remove(morphium.getId(f));
+                            CacheElement<?> el = cache.get(cls).get(k);
+                            for (Object f : el.getFound()) {
+                                idCacheClone.get(cls).remove(el.isIdsOnly() ? f : morphium.getId(f));
                             }
                         }
                         cache.get(cls).remove(k);
@@ -0,0 +1,298 @@
+package de.caluga.morphium.cache;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable key of a cached query result. Instead of serializing the query to JSON on every read, the filter, sort,
+ * projection, skip, limit and collection are copied into a compact structure once. Equality is structural (order of
+ * document fields is significant, like in mongo), the hash is calculated once on creation. Only the compact copy is
+ * kept, getQuery(), getSort() and getProjection() recreate the mongo objects from it.
+ * <p/>
+ * Keys for idList() results are marked as such, their results only contain the ids.
+ */
+public final class CacheKey {
+    private final Object filter;
+    private final Object sort;
+    private final Object projection;
+    private final String collection;
+    private final int skip;
+    private final int limit;
+    private final boolean idList;
+    private final int hash;
+
+    public CacheKey(DBObject query, Map<String, ?> sort, DBObject projection, String collection, int skip, int limit) {
+        this(normalize(query), normalize(sort), normalize(projection), collection, skip, limit, false);
+    }
+
+    private CacheKey(Object filter, Object sort, Object projection, String collection, int skip, int limit, boolean idList) {
+        this.filter = filter;
+        this.sort = sort;
+        this.projection = projection;
+        this.collection = collection;
+        this.skip = skip;
+        this.limit = limit;
+        this.idList = idList;
+        int h = filter == null ? 0 : filter.hashCode();
+        h = 31 * h + (sort == null ? 0 : sort.hashCode());
+        h = 31 * h + (projection == null ? 0 : projection.hashCode());
+        h = 31 * h + (collection == null ? 0 : collection.hashCode());
+        h = 31 * h + skip;
+        h = 31 * h + limit;
+        h = 31 * h + (idList ? 1 : 0);
+        hash = h;
+    }
+
+    /**
+     * @return key for the idList() result of the same query
+     */
+    public CacheKey asIdList() {
+        if (idList) return this;
+        return new CacheKey(filter, sort, projection, collection, skip, limit, true);
+    }
+
+    /**
+     * @return key for the same query returning at most limit elements - e.g. the result of get() is cached with limit 1
+     */
+    public CacheKey withLimit(int limit) {
+        if (this.limit == limit) return this;
+        return new CacheKey(filter, sort, projection, collection, skip, limit, idList);
+    }
+
+    public boolean isIdList() {
+        return idList;
+    }
+
+    /**
+     * @return copy of the query this key was created from
+     */
+    public DBObject getQuery() {
+        DBObject ret = (DBObject) denormalize(filter);
+        return ret == null ? new BasicDBObject() : ret;
+    }
+
+    /**
+     * @return copy of the sort of the query, null if not sorted
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getSort() {
+        return (Map<String, Object>) denormalize(sort);
+    }
+
+    /**
+     * @return copy of the projection of the query, null if all fields are returned
+     */
+    public DBObject getProjection() {
+        return (DBObject) denormalize(projection);
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public int getSkip() {
+        return skip;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CacheKey)) return false;
+        CacheKey k = (CacheKey) o;
+        return hash == k.hash && skip == k.skip && limit == k.limit && idList == k.idList
+                && eq(collection, k.collection) && eq(filter, k.filter) && eq(sort, k.sort) && eq(projection, k.projection);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(filter);
+        b.append(" c:").append(collection);
+        b.append(" l:").append(limit);
+        b.append(" s:").append(skip);
+        if (sort != null) {
+            b.append(" sort:").append(sort);
+        }
+        if (projection != null) {
+            b.append(" fields:").append(projection);
+        }
+        if (idList) {
+            b.append(" idlist");
+        }
+        return b.toString();
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * creates an immutable copy of the given value - documents and maps keep their field order
+     */
+    @SuppressWarnings("unchecked")
+    private static Object normalize(Object o) {
+        if (o == null) {
+            return null;
+        }
+        if (o instanceof DBObject && !(o instanceof List)) {
+            DBObject d = (DBObject) o;
+            Set<String> keys = d.keySet();
+            Object[] kv = new Object[keys.size() * 2];
+            int i = 0;
+            for (String k : keys) {
+                kv[i++] = k;
+                kv[i++] = normalize(d.get(k));
+            }
+            return new Doc(kv);
+        }
+        if (o instanceof Map) {
+            Map<Object, Object> m = (Map<Object, Object>) o;
+            Object[] kv = new Object[m.size() * 2];
+            int i = 0;
+            for (Map.Entry<Object, Object> e : m.entrySet()) {
+                kv[i++] = e.getKey();
+                kv[i++] = normalize(e.getValue());
+            }
+            return new Doc(kv);
+        }
+        if (o instanceof Collection) {
+            Collection<Object> c = (Collection<Object>) o;
+            Object[] arr = new Object[c.size()];
+            int i = 0;
+            for (Object v : c) {
+                arr[i++] = normalize(v);
+            }
+            return new Arr(arr);
+        }
+        if (o instanceof Object[]) {
+            Object[] src = (Object[]) o;
+            Object[] arr = new Object[src.length];
+            for (int i = 0; i < src.length; i++) {
+                arr[i] = normalize(src[i]);
+            }
+            return new Arr(arr);
+        }
+        if (o instanceof Pattern) {
+            //Pattern does not implement equals
+            Pattern p = (Pattern) o;
+            return new Arr(new Object[]{Pattern.class, p.pattern(), p.flags()});
+        }
+        if (o instanceof Date) {
+            return new Date(((Date) o).getTime());
+        }
+        if (o instanceof byte[]) {
+            byte[] src = (byte[]) o;
+            Object[] arr = new Object[src.length + 1];
+            arr[0] = byte[].class;
+            for (int i = 0; i < src.length; i++) {
+                arr[i + 1] = src[i];
+            }
+            return new Arr(arr);
+        }
+        return o;
+    }
+
+    /**
+     * reverse of normalize - used to recreate query, sort and projection
+     */
+    private static Object denormalize(Object o) {
+        if (o instanceof Doc) {
+            Object[] kv = ((Doc) o).kv;
+            BasicDBObject ret = new BasicDBObject();
+            for (int i = 0; i < kv.length; i += 2) {
+                ret.put(kv[i].toString(), denormalize(kv[i + 1]));
+            }
+            return ret;
+        }
+        if (o instanceof Arr) {
+            Object[] values = ((Arr) o).values;
+            if (values.length == 3 && values[0] == Pattern.class) {
+                return Pattern.compile((String) values[1], (Integer) values[2]);
+            }
+            if (values.length > 0 && values[0] == byte[].class) {
+                byte[] ret = new byte[values.length - 1];
+                for (int i = 1; i < values.length; i++) {
+                    ret[i - 1] = (Byte) values[i];
+                }
+                return ret;
+            }
+            BasicDBList ret = new BasicDBList();
+            for (Object v : values) {
+                ret.add(denormalize(v));
+            }
+            return ret;
+        }
+        if (o instanceof Date) {
+            return new Date(((Date) o).getTime());
+        }
+        return o;
+    }
+
+    private static final class Doc {
+        private final Object[] kv;
+        private final int hash;
+
+        private Doc(Object[] kv) {
+            this.kv = kv;
+            hash = Arrays.hashCode(kv);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Doc && ((Doc) o).hash == hash && Arrays.equals(kv, ((Doc) o).kv);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder("{");
+            for (int i = 0; i < kv.length; i += 2) {
+                if (i > 0) b.append(", ");
+                b.append(kv[i]).append(": ").append(kv[i + 1]);
+            }
+            return b.append("}").toString();
+        }
+    }
+
+    private static final class Arr {
+        private final Object[] values;
+        private final int hash;
+
+        private Arr(Object[] values) {
+            this.values = values;
+            hash = 17 + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Arr && ((Arr) o).hash == hash && Arrays.equals(values, ((Arr) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(values);
+        }
+    }
+}
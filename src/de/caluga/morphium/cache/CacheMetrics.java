@@ -0,0 +1,76 @@
+package de.caluga.morphium.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache metrics per entity type: hits, misses, coalesced misses, removals by reason, load times, number of entries
+ * and estimated size. All values are counters maintained when the cache is accessed or modified - reading them is
+ * cheap and does not need a snapshot of the cache.
+ * <p/>
+ * Every MorphiumCache keeps its own metrics, hits, misses and load times are reported by the queries.
+ * <p/>
+ * Usage: <code>morphium.getCache().getMetrics().get(MyEntity.class).getHits()</code>
+ */
+public class CacheMetrics {
+    public enum EvictionReason {
+        /**
+         * timeout of the entry reached
+         */
+        EXPIRY,
+        /**
+         * maxEntries or maxBytes exceeded, or shed due to memory pressure
+         */
+        SIZE,
+        /**
+         * invalidated by a cache sync message from another node
+         */
+        SYNC,
+        /**
+         * cache cleared or entry invalidated by a local write
+         */
+        CLEAR
+    }
+
+    private static final ThreadLocal<Boolean> syncing = new ThreadLocal<>();
+
+    private final ConcurrentHashMap<Class<?>, CacheTypeMetrics> types = new ConcurrentHashMap<>();
+
+    /**
+     * metrics for the type, created if not there yet
+     */
+    public CacheTypeMetrics get(Class<?> type) {
+        CacheTypeMetrics m = types.get(type);
+        if (m == null) {
+            m = new CacheTypeMetrics(type);
+            CacheTypeMetrics old = types.putIfAbsent(type, m);
+            if (old != null) {
+                m = old;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @return all types having metrics - read only view
+     */
+    public Map<Class<?>, CacheTypeMetrics> getAll() {
+        return Collections.unmodifiableMap(types);
+    }
+
+    /**
+     * marks the current thread as processing a cache sync message - removals are counted as SYNC instead of CLEAR
+     */
+    public static void setSyncing(boolean s) {
+        if (s) {
+            syncing.set(Boolean.TRUE);
+        } else {
+            syncing.remove();
+        }
+    }
+
+    public static boolean isSyncing() {
+        return Boolean.TRUE.equals(syncing.get());
+    }
+}
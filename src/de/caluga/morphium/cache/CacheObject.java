@@ -11,7 +11,7 @@ import java.util.List;
  */
 public class CacheObject<T> {
     private List<T> result;
-    private String key;
+    private CacheKey key;
     private Class<? extends T> type;
 
     public Class<? extends T> getType() {
@@ -30,11 +30,11 @@ public class CacheObject<T> {
         this.result = result;
     }
 
-    public String getKey() {
+    public CacheKey getKey() {
         return key;
     }
 
-    public void setKey(String key) {
+    public void setKey(CacheKey key) {
         this.key = key;
     }
 }
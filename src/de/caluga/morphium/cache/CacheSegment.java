@@ -0,0 +1,548 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.annotations.caching.Cache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache data for one single entity type - used by the SegmentedMorphiumCacheImpl. Every type gets its own segment
+ * containing the cached query results and the id cache. Both are concurrent maps, so reads, inserts and removals
+ * never need to copy any data.
+ * <p/>
+ * maxEntries of the @Cache annotation is enforced when inserting, using an EvictionQueue according to the
+ * ClearStrategy, as is maxBytes - the estimated retained size of all cached results of this type (see
+ * ObjectSizeEstimator). As all entries of one type share the same timeout, insertion order is also expiry order - so
+ * expiring entries only needs to look at the head of the expiry queue.
+ * <p/>
+ * A reverse index (id -> keys of cached results containing that entity) is maintained on insert and removal. That
+ * way removing one entity only touches the affected entries, and entities are dropped from the id cache as soon as
+ * no cached result refers to them anymore. Entities read by id without a cached result are kept until they expire,
+ * at most maxEntries of them (see LoadedIds).
+ * <p/>
+ * All changes are reported to the CacheTypeMetrics of the segment.
+ */
+public class CacheSegment {
+    private final Class<?> type;
+    private final int maxEntries;
+    private final long maxBytes;
+    private volatile long bytes;
+    private volatile CacheEvictionListener evictionListener;
+    private volatile CacheTypeMetrics metrics;
+    private final AnnotationAndReflectionHelper annotationHelper;
+    private volatile ConcurrentHashMap<CacheKey, CacheElement<?>> entries;
+    private volatile ConcurrentHashMap<Object, Object> ids;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final EvictionQueue evictionQueue;
+    private final ConcurrentLinkedQueue<ExpiryEntry> expiryQueue;
+    //number of markers in the expiry queue, including stale ones of replaced or removed entries - guarded by lock
+    private int expiryQueueSize;
+    //reverse index: entity id -> keys of all cached results containing it - guarded by lock
+    private final HashMap<Object, Set<CacheKey>> keysById;
+    //entities read by id, not referenced by any cached result - guarded by lock
+    private final LoadedIds loadedIds;
+
+    public CacheSegment(Class<?> type) {
+        this(type, new AnnotationAndReflectionHelper(false));
+    }
+
+    public CacheSegment(Class<?> type, AnnotationAndReflectionHelper an) {
+        this.type = type;
+        annotationHelper = an;
+        Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+        loadedIds = new LoadedIds(c);
+        if (c != null) {
+            maxEntries = c.maxEntries();
+            maxBytes = c.maxBytes();
+            evictionQueue = EvictionQueue.create(c.strategy());
+        } else {
+            maxEntries = -1;
+            maxBytes = -1;
+            evictionQueue = EvictionQueue.create(null);
+        }
+        entries = new ConcurrentHashMap<>();
+        ids = new ConcurrentHashMap<>();
+        expiryQueue = new ConcurrentLinkedQueue<>();
+        keysById = new HashMap<>();
+        metrics = new CacheTypeMetrics(type);
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public CacheEvictionListener getEvictionListener() {
+        return evictionListener;
+    }
+
+    public void setEvictionListener(CacheEvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    public CacheTypeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * metrics, changes of this segment are reported to
+     */
+    public void setMetrics(CacheTypeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return estimated size of all cached results in bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public CacheElement<?> get(CacheKey k) {
+        CacheElement<?> e = entries.get(k);
+        if (e != null && lock.tryLock()) {
+            //if somebody else holds the lock, we just skip the reordering - LRU is approximate under contention
+            try {
+                evictionQueue.onAccess(k);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return e;
+    }
+
+    /**
+     * adds an entry, evicting other entries if maxEntries or maxBytes is exceeded. Contained entities are added to the id cache
+     *
+     * @param k - key
+     * @param e - element
+     * @return evicted elements by key
+     */
+    public Map<CacheKey, CacheElement<?>> put(CacheKey k, CacheElement<?> e) {
+        return put(k, e, null);
+    }
+
+    /**
+     * adds an entry. If the element only contains ids, the given entities are added to the id cache
+     *
+     * @param k        - key
+     * @param e        - element
+     * @param entities - entities for the ids of e, may be null
+     * @return evicted elements by key
+     */
+    public Map<CacheKey, CacheElement<?>> put(CacheKey k, CacheElement<?> e, List<?> entities) {
+        Map<CacheKey, CacheElement<?>> evicted = null;
+        lock.lock();
+        try {
+            CacheElement<?> old = entries.put(k, e);
+            if (old != null) {
+                unindex(k, old);
+                bytes -= old.getSize();
+            }
+            bytes += e.getSize();
+            metrics.added(e, old);
+            index(k, e);
+            if (entities != null) {
+                for (Object o : entities) {
+                    Object id = annotationHelper.getId(o);
+                    if (id != null && keysById.containsKey(id)) {
+                        ids.put(id, o);
+                    }
+                }
+            }
+            evictionQueue.onInsert(k);
+            addExpiryEntry(k, e);
+            while (entries.size() > 1 && isOverLimit()) {
+                CacheKey victim = evictionQueue.nextVictim();
+                if (victim == null) break;
+                if (victim.equals(k)) {
+                    //do not evict what we just inserted (random strategy)
+                    evictionQueue.onRemove(victim);
+                    evictionQueue.onInsert(victim);
+                    continue;
+                }
+                CacheElement<?> removed = removeLocked(victim, CacheMetrics.EvictionReason.SIZE);
+                if (removed != null) {
+                    if (evicted == null) evicted = new LinkedHashMap<>();
+                    evicted.put(victim, removed);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (evicted == null) return Collections.emptyMap();
+        notifyEviction(evicted);
+        return evicted;
+    }
+
+    private void notifyEviction(Map<CacheKey, CacheElement<?>> evicted) {
+        CacheEvictionListener l = evictionListener;
+        if (l == null) return;
+        for (Map.Entry<CacheKey, CacheElement<?>> en : evicted.entrySet()) {
+            l.onEviction(type, en.getKey(), en.getValue());
+        }
+    }
+
+    private boolean isOverLimit() {
+        return (maxEntries > 0 && entries.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    /**
+     * evicts entries according to the ClearStrategy until at least the given amount of bytes is freed or the
+     * segment is empty. Used to enforce the global byte budget
+     *
+     * @param toFree - bytes to free
+     * @return bytes actually freed
+     */
+    public long evictBytes(long toFree) {
+        long freed = 0;
+        Map<CacheKey, CacheElement<?>> evicted = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            while (freed < toFree) {
+                CacheKey victim = evictionQueue.nextVictim();
+                if (victim == null) break;
+                CacheElement<?> removed = removeLocked(victim, CacheMetrics.EvictionReason.SIZE);
+                if (removed != null) {
+                    freed += removed.getSize();
+                    evicted.put(victim, removed);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifyEviction(evicted);
+        return freed;
+    }
+
+    public CacheElement<?> remove(CacheKey k) {
+        return remove(k, CacheMetrics.EvictionReason.CLEAR);
+    }
+
+    /**
+     * @param reason - reason reported to the metrics
+     */
+    public CacheElement<?> remove(CacheKey k, CacheMetrics.EvictionReason reason) {
+        lock.lock();
+        try {
+            return removeLocked(k, reason);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CacheElement<?> removeLocked(CacheKey k, CacheMetrics.EvictionReason reason) {
+        evictionQueue.onRemove(k);
+        CacheElement<?> e = entries.remove(k);
+        if (e != null) {
+            unindex(k, e);
+            bytes -= e.getSize();
+            metrics.removed(reason, e);
+        }
+        return e;
+    }
+
+    /**
+     * removes all entries containing the object with the given id and the object itself from the id cache.
+     * Only the affected entries are touched, thanks to the reverse index
+     *
+     * @param id - id of the entity
+     * @return number of removed entries
+     */
+    public int removeEntriesContaining(Object id) {
+        if (id == null) return 0;
+        int cnt = 0;
+        lock.lock();
+        try {
+            Set<CacheKey> keys = keysById.get(id);
+            if (keys != null) {
+                for (CacheKey k : new ArrayList<>(keys)) {
+                    if (removeLocked(k, CacheMetrics.EvictionReason.CLEAR) != null) {
+                        cnt++;
+                    }
+                }
+            }
+            keysById.remove(id);
+            ids.remove(id);
+            loadedIds.remove(id);
+        } finally {
+            lock.unlock();
+        }
+        return cnt;
+    }
+
+    /**
+     * keys of all entries containing the entity with the given id
+     *
+     * @param id - id of entity
+     * @return copy of the key set, empty if none
+     */
+    public Set<CacheKey> getKeysContaining(Object id) {
+        lock.lock();
+        try {
+            Set<CacheKey> keys = keysById.get(id);
+            if (keys == null) return Collections.emptySet();
+            return new HashSet<>(keys);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object idOf(CacheKey k, CacheElement<?> e, Object o) {
+        if (k.isIdList() || e.isIdsOnly()) {
+            //idlist results only contain the ids
+            return o;
+        }
+        return annotationHelper.getId(o);
+    }
+
+    private void index(CacheKey k, CacheElement<?> e) {
+        if (e.peekFound() == null) return;
+        boolean idList = k.isIdList() || e.isIdsOnly();
+        for (Object o : e.peekFound()) {
+            Object id = idOf(k, e, o);
+            if (id == null) continue;
+            if (!idList && k.getProjection() == null) {
+                //partial objects of projected results must not be returned for other queries
+                ids.put(id, o);
+            }
+            //kept as long as it is referenced now
+            loadedIds.remove(id);
+            Set<CacheKey> keys = keysById.get(id);
+            if (keys == null) {
+                keys = new HashSet<>();
+                keysById.put(id, keys);
+            }
+            keys.add(k);
+        }
+    }
+
+    private void unindex(CacheKey k, CacheElement<?> e) {
+        if (e.peekFound() == null) return;
+        for (Object o : e.peekFound()) {
+            Object id = idOf(k, e, o);
+            if (id == null) continue;
+            Set<CacheKey> keys = keysById.get(id);
+            if (keys == null) continue;
+            keys.remove(k);
+            if (keys.isEmpty()) {
+                //not referenced by any cached result anymore
+                keysById.remove(id);
+                ids.remove(id);
+            }
+        }
+    }
+
+    /**
+     * removes all entries older than validTime. Only touches expired entries (and stale markers of already removed
+     * ones), never the whole segment
+     *
+     * @param validTime - max age in ms
+     * @return number of removed entries
+     */
+    public int expire(long validTime) {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        while (true) {
+            ExpiryEntry head = expiryQueue.peek();
+            if (head == null || now - head.element.getCreated() <= validTime) {
+                break;
+            }
+            lock.lock();
+            try {
+                if (expiryQueue.peek() != head) {
+                    //polled by someone else meanwhile
+                    continue;
+                }
+                expiryQueue.poll();
+                expiryQueueSize--;
+                if (entries.get(head.key) == head.element) {
+                    removeLocked(head.key, CacheMetrics.EvictionReason.EXPIRY);
+                    removed++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        lock.lock();
+        try {
+            for (Object id : loadedIds.expire(validTime)) {
+                ids.remove(id);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * adds the expiry marker for a new element - lock must be held. Markers of replaced or removed elements stay in
+     * the queue until they reach its head, so the queue is compacted once it holds twice as many markers as there
+     * are entries
+     */
+    private void addExpiryEntry(CacheKey k, CacheElement<?> e) {
+        expiryQueue.add(new ExpiryEntry(k, e));
+        expiryQueueSize++;
+        if (expiryQueueSize > 2 * entries.size() + 16) {
+            for (Iterator<ExpiryEntry> it = expiryQueue.iterator(); it.hasNext(); ) {
+                ExpiryEntry en = it.next();
+                if (entries.get(en.key) != en.element) {
+                    it.remove();
+                    expiryQueueSize--;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of markers in the expiry queue, stale ones included
+     */
+    public int getExpiryQueueSize() {
+        return expiryQueueSize;
+    }
+
+    public Map<CacheKey, CacheElement<?>> getEntries() {
+        return entries;
+    }
+
+    public Object getById(Object id) {
+        if (id == null) return null;
+        return ids.get(id);
+    }
+
+    /**
+     * adds an entity read by its id, that is not part of a cached result. It is kept until it is expired by expire(),
+     * or until there are more than maxEntries such entities (oldest first)
+     */
+    public void putLoadedById(Object id, Object entity) {
+        if (id == null || entity == null) return;
+        lock.lock();
+        try {
+            ids.put(id, entity);
+            if (keysById.containsKey(id)) {
+                //referenced by a cached result - removed with it
+                return;
+            }
+            for (Object old : loadedIds.add(id)) {
+                ids.remove(old);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void putId(Object id, Object entity) {
+        if (id == null || entity == null) return;
+        ids.put(id, entity);
+    }
+
+    /**
+     * adds the entity to the id cache, if it is referenced by a cached result. Otherwise it would never be removed
+     */
+    public void putIdIfReferenced(Object id, Object entity) {
+        if (id == null || entity == null) return;
+        lock.lock();
+        try {
+            if (keysById.containsKey(id)) {
+                ids.put(id, entity);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Object removeId(Object id) {
+        if (id == null) return null;
+        return ids.remove(id);
+    }
+
+    public Map<Object, Object> getIds() {
+        return ids;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * replaces all cached query results - the map is copied
+     *
+     * @param e - new entries
+     */
+    public void setEntries(Map<CacheKey, CacheElement<?>> e) {
+        lock.lock();
+        try {
+            List<Map.Entry<CacheKey, CacheElement<?>>> sorted = new ArrayList<>(e.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<CacheKey, CacheElement<?>>>() {
+                @Override
+                public int compare(Map.Entry<CacheKey, CacheElement<?>> o1, Map.Entry<CacheKey, CacheElement<?>> o2) {
+                    return Long.compare(o1.getValue().getCreated(), o2.getValue().getCreated());
+                }
+            });
+            evictionQueue.clear();
+            expiryQueue.clear();
+            expiryQueueSize = 0;
+            keysById.clear();
+            bytes = 0;
+            for (Map.Entry<CacheKey, CacheElement<?>> en : sorted) {
+                bytes += en.getValue().getSize();
+                evictionQueue.onInsert(en.getKey());
+                expiryQueue.add(new ExpiryEntry(en.getKey(), en.getValue()));
+                expiryQueueSize++;
+                index(en.getKey(), en.getValue());
+            }
+            entries = new ConcurrentHashMap<>(e);
+            metrics.reset(entries.size(), bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * replaces the id cache of this segment - the map is copied
+     *
+     * @param i - new id cache
+     */
+    public void setIds(Map<Object, Object> i) {
+        ids = new ConcurrentHashMap<>(i);
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            metrics.count(CacheMetrics.EvictionReason.CLEAR, entries.size());
+            metrics.reset(0, 0);
+            entries.clear();
+            ids.clear();
+            loadedIds.clear();
+            evictionQueue.clear();
+            expiryQueue.clear();
+            expiryQueueSize = 0;
+            keysById.clear();
+            bytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class ExpiryEntry {
+        private final CacheKey key;
+        private final CacheElement<?> element;
+
+        private ExpiryEntry(CacheKey key, CacheElement<?> element) {
+            this.key = key;
+            this.element = element;
+        }
+    }
+}
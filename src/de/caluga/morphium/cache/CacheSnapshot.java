@@ -0,0 +1,338 @@
+package de.caluga.morphium.cache;
+
+import com.mongodb.*;
+import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.Logger;
+import de.caluga.morphium.Morphium;
+import de.caluga.morphium.ObjectMapper;
+import de.caluga.morphium.annotations.caching.Cache;
+import org.bson.BasicBSONEncoder;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the content of the cache to a local file and restores it - so that a restarted node does not start with an
+ * empty cache. The file is a gzipped sequence of BSON documents: a header, the marshalled objects of every type
+ * (each object only once, even if part of several results) and the cached results as lists of ids together with
+ * their cache key and creation time. Results of queries with projection only contain partial objects and are not
+ * written. Every restored result gets its own instances, like results read from mongo.
+ * <p/>
+ * On restore, results older than the timeout of their type are skipped, all others keep their original creation
+ * time. As the node might have missed changes while it was down, revalidate() should be called afterwards: results
+ * containing objects deleted in the meantime are removed, and for types storing @LastChange, objects changed after
+ * the snapshot was taken invalidate the results containing them or matching them. Changes of other types can not
+ * be detected, those results are only valid until their timeout as usual.
+ * <p/>
+ * Usage: <code>cfg.setCacheSnapshotFile("/var/cache/morphium.snapshot");</code> - written on close(), read on startup
+ */
+public class CacheSnapshot {
+    private static final int VERSION = 1;
+    private static final int OBJECTS_PER_RECORD = 500;
+    private static final int IDS_PER_QUERY = 1000;
+
+    private final ObjectMapper objectMapper;
+    private final AnnotationAndReflectionHelper annotationHelper = new AnnotationAndReflectionHelper(false);
+    private long snapshotTime = 0;
+
+    private Logger logger = new Logger(CacheSnapshot.class);
+
+    public CacheSnapshot(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * @return time the last read snapshot was written, 0 if none was read
+     */
+    public long getSnapshotTime() {
+        return snapshotTime;
+    }
+
+    /**
+     * writes all cached results to the file. The file is replaced atomically, if possible
+     *
+     * @return number of results written
+     */
+    @SuppressWarnings("unchecked")
+    public int write(MorphiumCache cache, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        int written = 0;
+        OutputStream out = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp)));
+        try {
+            BasicBSONEncoder encoder = new BasicBSONEncoder();
+            out.write(encoder.encode(new BasicDBObject("version", VERSION).append("time", System.currentTimeMillis())));
+            for (Map.Entry<Class<?>, Map<CacheKey, CacheElement<?>>> t : cache.cloneCache().entrySet()) {
+                Class<?> type = t.getKey();
+                List<Map.Entry<CacheKey, CacheElement<?>>> entries = new ArrayList<>(t.getValue().entrySet());
+                //restored in order of creation, expiry relies on that
+                Collections.sort(entries, new Comparator<Map.Entry<CacheKey, CacheElement<?>>>() {
+                    @Override
+                    public int compare(Map.Entry<CacheKey, CacheElement<?>> o1, Map.Entry<CacheKey, CacheElement<?>> o2) {
+                        return Long.compare(o1.getValue().getCreated(), o2.getValue().getCreated());
+                    }
+                });
+
+                Map<Object, DBObject> objects = new LinkedHashMap<>();
+                List<DBObject> results = new ArrayList<>();
+                for (Map.Entry<CacheKey, CacheElement<?>> e : entries) {
+                    CacheKey k = e.getKey();
+                    if (k.getProjection() != null) {
+                        //partial objects - must not be restored for other results
+                        continue;
+                    }
+                    try {
+                        List<?> found = k.isIdList() ? e.getValue().peekFound() : cache.<Object>getFromCache(type, k);
+                        if (found == null) {
+                            //incomplete result (ResultMode.IDS)
+                            continue;
+                        }
+                        BasicDBList ids = new BasicDBList();
+                        Map<Object, DBObject> marshalled = new LinkedHashMap<>();
+                        for (Object o : found) {
+                            if (k.isIdList()) {
+                                ids.add(o);
+                                continue;
+                            }
+                            Object id = annotationHelper.getId(o);
+                            if (id == null) throw new IllegalArgumentException("no id");
+                            ids.add(id);
+                            if (!objects.containsKey(id) && !marshalled.containsKey(id)) {
+                                marshalled.put(id, objectMapper.marshall(o));
+                            }
+                        }
+                        DBObject result = new BasicDBObject("type", type.getName()).append("key", keyToDoc(k))
+                                .append("created", e.getValue().getCreated()).append("ids", ids);
+                        //checking, that the key can be encoded
+                        encoder.encode(result);
+                        objects.putAll(marshalled);
+                        results.add(result);
+                    } catch (Exception ex) {
+                        logger.warn("Could not write cached result of " + type.getName() + " for " + k + " - skipping", ex);
+                    }
+                }
+
+                BasicDBList chunk = new BasicDBList();
+                for (DBObject o : objects.values()) {
+                    chunk.add(o);
+                    if (chunk.size() == OBJECTS_PER_RECORD) {
+                        out.write(encoder.encode(new BasicDBObject("type", type.getName()).append("objects", chunk)));
+                        chunk = new BasicDBList();
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    out.write(encoder.encode(new BasicDBObject("type", type.getName()).append("objects", chunk)));
+                }
+                for (DBObject r : results) {
+                    out.write(encoder.encode(r));
+                    written++;
+                }
+            }
+            out.write(encoder.encode(new BasicDBObject("eof", true)));
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            logger.warn("Could not delete old snapshot " + file.getPath());
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp.getPath() + " to " + file.getPath());
+        }
+        return written;
+    }
+
+    /**
+     * adds the results stored in the file to the cache, skipping expired ones. Results of types that are not cached
+     * anymore are ignored
+     *
+     * @return number of restored results
+     */
+    @SuppressWarnings("unchecked")
+    public int read(MorphiumCache cache, File file) throws IOException {
+        int restored = 0;
+        int expired = 0;
+        long now = System.currentTimeMillis();
+        Map<Class<?>, Map<Object, DBObject>> objects = new HashMap<>();
+        Set<String> unknownTypes = new HashSet<>();
+        InputStream in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)));
+        try {
+            DBDecoder decoder = DefaultDBDecoder.FACTORY.create();
+            DBObject header = decoder.decode(in, (DBCollection) null);
+            if (!Integer.valueOf(VERSION).equals(header.get("version"))) {
+                logger.warn("Unknown snapshot version " + header.get("version") + " - not restoring cache");
+                return 0;
+            }
+            snapshotTime = (Long) header.get("time");
+            while (true) {
+                DBObject rec = decoder.decode(in, (DBCollection) null);
+                if (rec.containsField("eof")) {
+                    break;
+                }
+                String typeName = (String) rec.get("type");
+                if (unknownTypes.contains(typeName)) continue;
+                Class<?> type;
+                try {
+                    type = Class.forName(typeName);
+                } catch (ClassNotFoundException e) {
+                    unknownTypes.add(typeName);
+                    continue;
+                }
+                Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+                if (c == null || !c.readCache()) {
+                    unknownTypes.add(typeName);
+                    continue;
+                }
+                if (rec.containsField("objects")) {
+                    if (objects.get(type) == null) {
+                        objects.put(type, new HashMap<Object, DBObject>());
+                    }
+                    for (Object o : (List<Object>) rec.get("objects")) {
+                        DBObject doc = (DBObject) o;
+                        objects.get(type).put(doc.get("_id"), doc);
+                    }
+                    continue;
+                }
+                long created = (Long) rec.get("created");
+                if (now - created > c.timeout()) {
+                    expired++;
+                    continue;
+                }
+                CacheKey k = docToKey((DBObject) rec.get("key"));
+                List<Object> result = new ArrayList<>();
+                for (Object id : (List<Object>) rec.get("ids")) {
+                    if (k.isIdList()) {
+                        result.add(id);
+                        continue;
+                    }
+                    DBObject doc = objects.get(type) == null ? null : objects.get(type).get(id);
+                    if (doc == null) {
+                        result = null;
+                        break;
+                    }
+                    result.add(objectMapper.unmarshall(type, doc));
+                }
+                if (result == null) continue;
+                cache.addToCache(k, (Class<Object>) type, result);
+                CacheElement<?> e = cache.getCacheElement(type, k);
+                if (e != null) {
+                    e.setCreated(created);
+                }
+                restored++;
+            }
+        } finally {
+            in.close();
+        }
+        logger.info("Restored " + restored + " cached results from " + file.getPath() + ", " + expired + " were expired");
+        return restored;
+    }
+
+    /**
+     * removes restored results, that might have been changed since the snapshot was taken (see class description)
+     *
+     * @return number of objects found to be deleted or changed
+     */
+    @SuppressWarnings("unchecked")
+    public int revalidate(Morphium morphium, MorphiumCache cache) {
+        int changed = 0;
+        for (Map.Entry<Class<?>, Map<CacheKey, CacheElement<?>>> t : cache.cloneCache().entrySet()) {
+            Class<?> type = t.getKey();
+            Map<String, Set<Object>> idsByCollection = new HashMap<>();
+            for (Map.Entry<CacheKey, CacheElement<?>> e : t.getValue().entrySet()) {
+                if (e.getValue().peekFound() == null) continue;
+                String coll = e.getKey().getCollection() == null ? objectMapper.getCollectionName(type) : e.getKey().getCollection();
+                if (idsByCollection.get(coll) == null) {
+                    idsByCollection.put(coll, new HashSet<>());
+                }
+                boolean idList = e.getKey().isIdList() || e.getValue().isIdsOnly();
+                for (Object o : (List<Object>) e.getValue().peekFound()) {
+                    idsByCollection.get(coll).add(idList ? o : annotationHelper.getId(o));
+                }
+            }
+            for (Map.Entry<String, Set<Object>> c : idsByCollection.entrySet()) {
+                try {
+                    DBCollection col = morphium.getDatabase().getCollection(c.getKey());
+                    List<Object> ids = new ArrayList<>(c.getValue());
+                    for (int i = 0; i < ids.size(); i += IDS_PER_QUERY) {
+                        List<Object> chunk = ids.subList(i, Math.min(ids.size(), i + IDS_PER_QUERY));
+                        Set<Object> existing = new HashSet<>();
+                        DBCursor crs = col.find(new BasicDBObject("_id", new BasicDBObject("$in", chunk)), new BasicDBObject("_id", 1));
+                        try {
+                            while (crs.hasNext()) {
+                                existing.add(crs.next().get("_id"));
+                            }
+                        } finally {
+                            crs.close();
+                        }
+                        for (Object id : chunk) {
+                            if (!existing.contains(id)) {
+                                cache.removeEntryFromCache(type, id);
+                                changed++;
+                            }
+                        }
+                    }
+                    changed += removeChanged(morphium, cache, type, col);
+                } catch (Exception e) {
+                    logger.error("Could not revalidate cached results of " + type.getName() + " - clearing them", e);
+                    cache.clearCachefor(type);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private int removeChanged(Morphium morphium, MorphiumCache cache, Class<?> type, DBCollection col) {
+        String fld = annotationHelper.getLastChangeField(type);
+        if (fld == null || snapshotTime == 0) return 0;
+        Class<?> fldType = annotationHelper.getTypeOfField(type, fld);
+        Object since;
+        if (fldType == null) {
+            return 0;
+        } else if (fldType.equals(long.class) || fldType.equals(Long.class)) {
+            since = snapshotTime;
+        } else if (Date.class.isAssignableFrom(fldType)) {
+            since = new Date(snapshotTime);
+        } else {
+            //stored as string, not comparable
+            return 0;
+        }
+        int changed = 0;
+        DBCursor crs = col.find(new BasicDBObject(morphium.getARHelper().getFieldName(type, fld), new BasicDBObject("$gte", since)));
+        try {
+            while (crs.hasNext()) {
+                DBObject doc = crs.next();
+                cache.removeEntryFromCache(type, doc.get("_id"));
+                //results, the changed object might belong to now
+                cache.clearCacheIfNecessary(type, doc.get("_id"), doc);
+                changed++;
+            }
+        } finally {
+            crs.close();
+        }
+        return changed;
+    }
+
+    private DBObject keyToDoc(CacheKey k) {
+        BasicDBObject doc = new BasicDBObject("query", k.getQuery());
+        if (k.getSort() != null) doc.append("sort", k.getSort());
+        if (k.getProjection() != null) doc.append("projection", k.getProjection());
+        doc.append("collection", k.getCollection()).append("skip", k.getSkip()).append("limit", k.getLimit());
+        if (k.isIdList()) doc.append("idList", true);
+        return doc;
+    }
+
+    @SuppressWarnings("unchecked")
+    private CacheKey docToKey(DBObject doc) {
+        Map<String, Object> sort = null;
+        if (doc.get("sort") != null) {
+            //keeps the order
+            sort = new LinkedHashMap<>(((DBObject) doc.get("sort")).toMap());
+        }
+        CacheKey k = new CacheKey((DBObject) doc.get("query"), sort, (DBObject) doc.get("projection"), (String) doc.get("collection"),
+                (Integer) doc.get("skip"), (Integer) doc.get("limit"));
+        if (Boolean.TRUE.equals(doc.get("idList"))) {
+            k = k.asIdList();
+        }
+        return k;
+    }
+}
@@ -1,5 +1,8 @@
 package de.caluga.morphium.cache;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
 import de.caluga.morphium.*;
 import de.caluga.morphium.annotations.Entity;
 import de.caluga.morphium.annotations.caching.Cache;
@@ -8,8 +11,15 @@ import de.caluga.morphium.messaging.Messaging;
 import de.caluga.morphium.messaging.Msg;
 import de.caluga.morphium.messaging.MsgType;
 import de.caluga.morphium.query.Query;
+import org.bson.types.ObjectId;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 
 import java.util.*;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: Stephan Bösebeck
@@ -27,6 +37,15 @@ import java.util.*;
  * <li> Msg.additional == always null </li>
  * <li> Msg.ttl == 30 sec - shoule be enought time for the message to be processed by all nodes</li>
  * </ul>
+ * <p/>
+ * If a coalesce window is set (<code>setCoalesceWindow(ms)</code>), messages are not sent on every write. All
+ * invalidations for a type within the window are merged into one message carrying all ids. If there are more than
+ * <code>coalesceMaxIds</code> ids, a clear message for the whole type is sent instead.
+ * <p/>
+ * For types using SyncCacheStrategy.UPDATE_ENTRY the marshalled objects are sent as JSON in Msg.mapValue (id -&gt;
+ * document), as long as they fit into <code>maxUpdatePayload</code> bytes. Receivers update their cached objects in
+ * place without reading them from mongo. Objects not sent this way are reread. Cached results whose query matches the
+ * new version are removed, like on local writes.
  */
 @SuppressWarnings("UnusedDeclaration")
 public class CacheSynchronizer implements MessageListener, MorphiumStorageListener<Object> {
@@ -45,6 +64,13 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
 
     private boolean commitMessage = false;
 
+    private int coalesceWindow = 0;
+    private int coalesceMaxIds = 1000;
+    private int maxUpdatePayload = 64 * 1024;
+    //guarded by pending
+    private final Map<Class<?>, PendingSync> pending = new LinkedHashMap<>();
+    private ScheduledThreadPoolExecutor flusher; //guarded by pending as well
+
 
     /**
      * @param msg      - primary messaging, will attach to and send messages over
@@ -180,42 +206,37 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
             }
 
             if (toUpdate.size() != 0) {
-                Msg m = new Msg(CACHE_SYNC_RECORD, MsgType.MULTI, reason, cls.getName(), 30000);
-
+                List<String> ids = new ArrayList<>();
+                Map<String, String> docs = new LinkedHashMap<>();
+                boolean sendDocs = c.syncCache().equals(Cache.SyncCacheStrategy.UPDATE_ENTRY) && maxUpdatePayload > 0;
                 for (Object k : toUpdate) {
                     if (!k.getClass().equals(Msg.class)) {
                         Object id = morphium.getId(k);
                         if (id != null) {
-                            m.addAdditional(id.toString());
+                            ids.add(id.toString());
+                            if (sendDocs) {
+                                addDocument(docs, id.toString(), k);
+                            }
                         }
                     }
                 }
-                try {
-                    firePreSendEvent(cls, m);
-                    messaging.queueMessage(m);
-                    firePostSendEvent(cls, m);
-                } catch (CacheSyncVetoException e) {
-                    log.warn("could not send clear cache message: Veto by listener!", e);
+                if (coalesceWindow > 0) {
+                    addPending(cls, reason, ids, docs, false);
+                } else {
+                    Msg m = new Msg(CACHE_SYNC_RECORD, MsgType.MULTI, reason, cls.getName(), 30000);
+                    for (String id : ids) {
+                        m.addAdditional(id);
+                    }
+                    addDocuments(m, docs);
+                    queueSyncMessage(cls, m);
                 }
             }
 
             if (toClrCachee.size() != 0) {
-                Msg m = new Msg(CACHE_SYNC_TYPE, MsgType.MULTI, reason, cls.getName(), 30000);
-
-                for (Object k : toUpdate) {
-                    if (!k.getClass().equals(Msg.class)) {
-                        Object id = morphium.getId(k);
-                        if (id != null) {
-                            m.addAdditional(id.toString());
-                        }
-                    }
-                }
-                try {
-                    firePreSendEvent(cls, m);
-                    messaging.queueMessage(m);
-                    firePostSendEvent(cls, m);
-                } catch (CacheSyncVetoException e) {
-                    log.warn("could not send clear cache message: Veto by listener!", e);
+                if (coalesceWindow > 0) {
+                    addPending(cls, reason, null, null, true);
+                } else {
+                    queueSyncMessage(cls, new Msg(CACHE_SYNC_TYPE, MsgType.MULTI, reason, cls.getName(), 30000));
                 }
             }
         }
@@ -240,17 +261,217 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
         Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class); //(Cache) type.getAnnotation(Cache.class);
         if (c == null) return; //not clearing cache for non-cached objects
         if ((c.readCache() && c.clearOnWrite() && !c.syncCache().equals(Cache.SyncCacheStrategy.NONE)) || force) {
-            try {
-                firePreSendEvent(type, m);
-                messaging.queueMessage(m);
-                firePostSendEvent(type, m);
-            } catch (CacheSyncVetoException e) {
-                log.error("could not send clear message: Veto!", e);
+            if (coalesceWindow > 0) {
+                addPending(type, reason, null, null, true);
+                return;
+            }
+            queueSyncMessage(type, m);
+        }
+    }
+
+    private void queueSyncMessage(Class<?> type, Msg m) {
+        try {
+            firePreSendEvent(type, m);
+            messaging.queueMessage(m);
+            firePostSendEvent(type, m);
+        } catch (CacheSyncVetoException e) {
+            log.warn("could not send clear cache message: Veto by listener!", e);
+        }
+    }
+
+    /**
+     * collects the invalidation, the first one within the window schedules the flush
+     */
+    private void addPending(Class<?> type, String reason, List<String> ids, Map<String, String> docs, boolean clearType) {
+        synchronized (pending) {
+            PendingSync p = pending.get(type);
+            if (p == null) {
+                p = new PendingSync();
+                pending.put(type, p);
+                if (pending.size() == 1) {
+                    getFlusher().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, coalesceWindow, TimeUnit.MILLISECONDS);
+                }
+            }
+            p.reasons.add(reason);
+            if (p.clearType) return;
+            if (clearType || p.ids.size() + ids.size() > coalesceMaxIds) {
+                p.clearType = true;
+                p.ids.clear();
+                p.docs.clear();
+            } else {
+                p.ids.addAll(ids);
+                //latest version wins
+                p.docs.putAll(docs);
+            }
+        }
+    }
+
+    private ScheduledThreadPoolExecutor getFlusher() {
+        if (flusher == null) {
+            flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "cache_sync_flush");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return flusher;
+    }
+
+    /**
+     * sends all invalidations collected within the current coalesce window - one message per type
+     */
+    public void flush() {
+        Map<Class<?>, PendingSync> toSend;
+        synchronized (pending) {
+            if (pending.isEmpty()) return;
+            toSend = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+        for (Map.Entry<Class<?>, PendingSync> e : toSend.entrySet()) {
+            PendingSync p = e.getValue();
+            StringBuilder reason = new StringBuilder();
+            for (String r : p.reasons) {
+                if (reason.length() > 0) reason.append(",");
+                reason.append(r);
+            }
+            Msg m;
+            if (p.clearType) {
+                m = new Msg(CACHE_SYNC_TYPE, MsgType.MULTI, reason.toString(), e.getKey().getName(), 30000);
+            } else {
+                m = new Msg(CACHE_SYNC_RECORD, MsgType.MULTI, reason.toString(), e.getKey().getName(), 30000);
+                for (String id : p.ids) {
+                    m.addAdditional(id);
+                }
+                addDocuments(m, p.docs);
+            }
+            queueSyncMessage(e.getKey(), m);
+        }
+    }
+
+    private void addDocument(Map<String, String> docs, String id, Object record) {
+        if (id.contains(".") || id.startsWith("$")) {
+            //not usable as key in mapValue
+            return;
+        }
+        try {
+            String json = JSON.serialize(morphium.getMapper().marshall(record));
+            if (json.length() <= maxUpdatePayload) {
+                docs.put(id, json);
             }
+        } catch (Exception e) {
+            log.warn("Could not marshall " + record.getClass().getName() + " - will be reread by receivers", e);
         }
     }
 
+    /**
+     * adds documents to the message until maxUpdatePayload is reached, receivers reread the remaining ones
+     */
+    private void addDocuments(Msg m, Map<String, String> docs) {
+        int payload = 0;
+        for (Map.Entry<String, String> d : docs.entrySet()) {
+            payload += d.getValue().length();
+            if (payload > maxUpdatePayload) {
+                break;
+            }
+            m.addValue(d.getKey(), d.getValue());
+        }
+    }
+
+    /**
+     * updates the cached object in place with the document sent
+     *
+     * @return false, if the document could not be used - object needs to be reread
+     */
+    @SuppressWarnings("unchecked")
+    private boolean updateFromDocument(Class<?> cls, Object cached, Object json) {
+        if (!(json instanceof String)) {
+            return false;
+        }
+        try {
+            Object fromMsg = morphium.getMapper().unmarshall(cls, (DBObject) JSON.parse((String) json));
+            if (fromMsg == null) {
+                return false;
+            }
+            for (String f : annotationHelper.getFields(cls)) {
+                Field fld = annotationHelper.getField(cls, f);
+                if (Modifier.isStatic(fld.getModifiers())) {
+                    continue;
+                }
+                fld.set(cached, fld.get(fromMsg));
+            }
+            morphium.firePostLoadEvent(cached);
+            return true;
+        } catch (Exception e) {
+            log.warn("Could not update cached object from message", e);
+            return false;
+        }
+    }
+    /**
+     * the stored version of an object changed by another node - from the message, the updated cached object or
+     * read from mongo
+     *
+     * @return the document or null, if it was removed
+     */
+    private DBObject getDocument(Class<?> cls, Object id, Object cached, Object json) {
+        if (json instanceof String) {
+            return (DBObject) JSON.parse((String) json);
+        }
+        if (cached != null) {
+            return morphium.getMapper().marshall(cached);
+        }
+        return morphium.getDatabase().getCollection(morphium.getMapper().getCollectionName(cls)).findOne(new BasicDBObject("_id", id));
+    }
+
+    public int getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    /**
+     * @param coalesceWindow - time in ms to collect invalidations before sending them, 0 sends a message per write
+     */
+    public void setCoalesceWindow(int coalesceWindow) {
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    public int getMaxUpdatePayload() {
+        return maxUpdatePayload;
+    }
+
+    /**
+     * @param maxUpdatePayload - max size of marshalled objects sent with UPDATE_ENTRY messages (json characters), 0
+     *                         disables sending objects - receivers reread them instead
+     */
+    public void setMaxUpdatePayload(int maxUpdatePayload) {
+        this.maxUpdatePayload = maxUpdatePayload;
+    }
+
+    public int getCoalesceMaxIds() {
+        return coalesceMaxIds;
+    }
+
+    /**
+     * @param coalesceMaxIds - if more ids are collected for one type within the window, the whole type is cleared
+     */
+    public void setCoalesceMaxIds(int coalesceMaxIds) {
+        this.coalesceMaxIds = coalesceMaxIds;
+    }
+
     public void detach() {
+        flush();
+        synchronized (pending) {
+            if (flusher != null) {
+                flusher.shutdown();
+                flusher = null;
+            }
+        }
         attached = false;
         morphium.removeListener(this);
         messaging.removeListenerForMessageNamed(CACHE_SYNC_TYPE, this);
@@ -262,6 +483,10 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
     }
 
     public void sendClearAllMessage(String reason) {
+        synchronized (pending) {
+            //whole cache is cleared anyway
+            pending.clear();
+        }
         Msg m = new Msg(CACHE_SYNC_TYPE, MsgType.MULTI, reason, "ALL", 30000);
         try {
             firePreSendEvent(null, m);
@@ -355,6 +580,8 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
     @Override
     public Msg onMessage(Messaging msg, Msg m) {
         Msg answer = new Msg("clearCacheAnswer", "processed", messaging.getSenderId());
+        //removals are counted as caused by sync
+        CacheMetrics.setSyncing(true);
         try {
             if (log.isDebugEnabled()) {
                 String action = m.getMsg();
@@ -367,6 +594,9 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
                     try {
                         firePreClearEvent(null, m);
                         morphium.getCache().resetCache();
+                        if (morphium.getInMemoryQueryEngine() != null) {
+                            morphium.getInMemoryQueryEngine().clear();
+                        }
                         firePostClearEvent(null, m);
                         answer.setMsg("cache completely cleared");
                         log.info("Cache completely cleared");
@@ -408,26 +638,47 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
                         if (c.readCache()) {
                             try {
                                 firePreClearEvent(cls, m);
-                                Map<Class<?>, Map<Object, Object>> idCache = morphium.getCache().cloneIdCache();
+                                MorphiumCache cache = morphium.getCache();
+                                Map<String, Object> docs = m.getMapValue();
+                                InMemoryQueryEngine engine = c.fullCollection() ? morphium.getInMemoryQueryEngine() : null;
                                 for (Object id : m.getAdditional()) {
-                                    if (idCache.get(cls) != null) {
-                                        Object toUpdate = idCache.get(cls).get(id);
-                                        if (toUpdate == null && (id instanceof String)) {
-                                            //Try objectId
-                                            toUpdate = idCache.get(cls).get(id);
+                                    Object cacheId = id;
+                                    Object toUpdate = cache.getFromIDCache(cls, id);
+                                    if (toUpdate == null && (id instanceof String) && ObjectId.isValid((String) id)) {
+                                        //Try objectId
+                                        cacheId = new ObjectId((String) id);
+                                        toUpdate = cache.getFromIDCache(cls, cacheId);
+                                    }
+                                    if (c.syncCache().equals(Cache.SyncCacheStrategy.REMOVE_ENTRY_FROM_TYPE_CACHE)) {
+                                        if (toUpdate != null) {
+                                            cache.removeEntryFromCache(cls, cacheId);
+                                            toUpdate = null;
                                         }
+                                    } else {
+                                        Object json = docs == null ? null : docs.get(id.toString());
+                                        //Object is updated in place!
+                                        if (toUpdate != null && !updateFromDocument(cls, toUpdate, json) && morphium.reread(toUpdate) == null) {
+                                            //removed in the meantime
+                                            cache.removeEntryFromCache(cls, cacheId);
+                                            toUpdate = null;
+                                        }
+                                        DBObject doc = getDocument(cls, cacheId, toUpdate, json);
+                                        if (doc != null) {
+                                            //cached results the new version might belong to now, like on local writes
+                                            cache.clearCacheIfNecessary(cls, cacheId, doc);
+                                        } else {
+                                            cache.removeEntryFromCache(cls, cacheId);
+                                        }
+                                    }
+                                    if (engine != null) {
+                                        //keep in memory indexes up to date, unknown objects need a reload
                                         if (toUpdate != null) {
-                                            //Object is updated in place!
-                                            if (c.syncCache().equals(Cache.SyncCacheStrategy.REMOVE_ENTRY_FROM_TYPE_CACHE)) {
-                                                morphium.getCache().removeEntryFromCache(cls, id);
-                                            } else {
-                                                morphium.reread(idCache.get(cls).get(id));
-
-                                            }
+                                            engine.update(cls, toUpdate);
+                                        } else {
+                                            engine.invalidate(cls);
                                         }
                                     }
                                 }
-                                morphium.getCache().setIdCache(idCache);
                                 answer.setMsg("cache cleared for type: " + m.getValue());
                                 firePostClearEvent(cls, m);
                             } catch (CacheSyncVetoException e) {
@@ -448,6 +699,8 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
         } catch (Throwable t) {
             log.error("Could not process message: ", t);
             answer.setMsg("Error processing message: " + t.getMessage());
+        } finally {
+            CacheMetrics.setSyncing(false);
         }
         if (!commitMessage) {
             return null;
@@ -471,4 +724,11 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
         return commitMessage;
     }
 
+    private static class PendingSync {
+        private final Set<String> reasons = new LinkedHashSet<>();
+        private final Set<String> ids = new LinkedHashSet<>();
+        private final Map<String, String> docs = new LinkedHashMap<>();
+        private boolean clearType;
+    }
+
 }
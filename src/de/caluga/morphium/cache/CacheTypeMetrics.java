@@ -0,0 +1,179 @@
+package de.caluga.morphium.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cache metrics of one entity type, see CacheMetrics. Load times are kept in a histogram with buckets growing by
+ * the power of two: bucket 0 counts loads below 1ms, bucket i loads of 2^(i-1) to 2^i ms, the last bucket all
+ * loads of 2^14ms (about 16s) and more.
+ */
+public class CacheTypeMetrics {
+    public static final int BUCKETS = 16;
+
+    private final Class<?> type;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalescedMisses = new AtomicLong();
+    private final AtomicLongArray evictions = new AtomicLongArray(CacheMetrics.EvictionReason.values().length);
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+    private final AtomicLongArray loadTimeHistogram = new AtomicLongArray(BUCKETS);
+
+    public CacheTypeMetrics(Class<?> type) {
+        this.type = type;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * a miss served by the load of another thread
+     */
+    public void coalescedMiss() {
+        coalescedMisses.incrementAndGet();
+    }
+
+    /**
+     * @param ms - duration of a load from mongo in ms
+     */
+    public void loaded(long ms) {
+        loads.incrementAndGet();
+        loadTime.addAndGet(ms);
+        loadTimeHistogram.incrementAndGet(bucketOf(ms));
+    }
+
+    /**
+     * an element was added to the cache
+     *
+     * @param e        - the new element
+     * @param replaced - the element replaced by it, null if none
+     */
+    public void added(CacheElement<?> e, CacheElement<?> replaced) {
+        if (replaced == null) {
+            entries.incrementAndGet();
+        } else {
+            bytes.addAndGet(-replaced.getSize());
+        }
+        bytes.addAndGet(e.getSize());
+    }
+
+    /**
+     * an element was removed. CLEAR is counted as SYNC, if the current thread processes a sync message
+     */
+    public void removed(CacheMetrics.EvictionReason reason, CacheElement<?> e) {
+        entries.decrementAndGet();
+        bytes.addAndGet(-e.getSize());
+        count(reason, 1);
+    }
+
+    /**
+     * counts removals without changing the number of entries - for caches replaced as a whole (see reset)
+     */
+    public void count(CacheMetrics.EvictionReason reason, long cnt) {
+        if (reason == CacheMetrics.EvictionReason.CLEAR && CacheMetrics.isSyncing()) {
+            reason = CacheMetrics.EvictionReason.SYNC;
+        }
+        evictions.addAndGet(reason.ordinal(), cnt);
+    }
+
+    /**
+     * sets number of entries and bytes after the cached results were replaced
+     */
+    public void reset(long entries, long bytes) {
+        this.entries.set(entries);
+        this.bytes.set(bytes);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalescedMisses() {
+        return coalescedMisses.get();
+    }
+
+    /**
+     * @return hits / (hits + misses), 0 if there were no requests
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getEvictions(CacheMetrics.EvictionReason reason) {
+        return evictions.get(reason.ordinal());
+    }
+
+    public long getEntries() {
+        return entries.get();
+    }
+
+    /**
+     * @return estimated size of the cached results in bytes, only known if the cache estimates sizes
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * @return average duration of a load in ms
+     */
+    public double getAverageLoadTime() {
+        long l = loads.get();
+        return l == 0 ? 0 : (double) loadTime.get() / l;
+    }
+
+    /**
+     * @return copy of the load time histogram
+     */
+    public long[] getLoadTimeHistogram() {
+        long[] ret = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            ret[i] = loadTimeHistogram.get(i);
+        }
+        return ret;
+    }
+
+    /**
+     * @return upper limit (exclusive) of the bucket in ms, Long.MAX_VALUE for the last one
+     */
+    public static long getBucketLimit(int bucket) {
+        if (bucket >= BUCKETS - 1) return Long.MAX_VALUE;
+        return 1L << bucket;
+    }
+
+    private static int bucketOf(long ms) {
+        if (ms < 1) return 0;
+        int b = 64 - Long.numberOfLeadingZeros(ms);
+        return Math.min(b, BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return type.getName() + ": hits=" + hits + " misses=" + misses + " coalesced=" + coalescedMisses + " entries=" + entries
+                + " bytes=" + bytes + " loads=" + loads + " avgLoadTime=" + getAverageLoadTime() + " expired=" + getEvictions(CacheMetrics.EvictionReason.EXPIRY)
+                + " size=" + getEvictions(CacheMetrics.EvictionReason.SIZE) + " sync=" + getEvictions(CacheMetrics.EvictionReason.SYNC)
+                + " clear=" + getEvictions(CacheMetrics.EvictionReason.CLEAR);
+    }
+}
@@ -0,0 +1,324 @@
+package de.caluga.morphium.cache;
+
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates a mongo query object against a marshalled document in memory. Supports the usual comparison operators
+ * ($eq, $ne, $gt, $gte, $lt, $lte, $in, $nin, $all, $exists, $size, $regex, $not), $and, $or, $nor, dotted field names
+ * and array fields.
+ * <p/>
+ * Everything else ($where, $elemMatch, $type, $mod, geo queries, unknown value types...) cannot be evaluated, the
+ * result is UNKNOWN then - callers need to assume, that the document matches.
+ */
+public class DocumentMatcher {
+    public enum Result {MATCH, NO_MATCH, UNKNOWN}
+
+    @SuppressWarnings("unchecked")
+    public Result matches(DBObject query, DBObject doc) {
+        if (query == null || query.keySet().isEmpty()) {
+            return Result.MATCH;
+        }
+        try {
+            return matchesDoc(map(query), map(doc)) ? Result.MATCH : Result.NO_MATCH;
+        } catch (UnsupportedQueryException e) {
+            return Result.UNKNOWN;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean matchesDoc(Map<String, Object> query, Map<String, Object> doc) {
+        for (Map.Entry<String, Object> e : query.entrySet()) {
+            String k = e.getKey();
+            Object v = e.getValue();
+            if (k.equals("$and")) {
+                for (Object sub : list(v)) {
+                    if (!matchesDoc(map(sub), doc)) return false;
+                }
+            } else if (k.equals("$or")) {
+                boolean any = false;
+                for (Object sub : list(v)) {
+                    if (matchesDoc(map(sub), doc)) {
+                        any = true;
+                        break;
+                    }
+                }
+                if (!any) return false;
+            } else if (k.equals("$nor")) {
+                for (Object sub : list(v)) {
+                    if (matchesDoc(map(sub), doc)) return false;
+                }
+            } else if (k.startsWith("$")) {
+                throw new UnsupportedQueryException(k);
+            } else {
+                List<Object> values = new ArrayList<>();
+                collect(doc, k.split("\\."), 0, values);
+                if (!matchesField(values, v)) return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean matchesField(List<Object> values, Object condition) {
+        if (isOperatorDoc(condition)) {
+            Map<String, Object> ops = (Map<String, Object>) condition;
+            for (Map.Entry<String, Object> op : ops.entrySet()) {
+                if (!matchesOperator(values, op.getKey(), op.getValue(), ops)) return false;
+            }
+            return true;
+        }
+        return matchesEq(values, condition);
+    }
+
+    private boolean matchesOperator(List<Object> values, String op, Object arg, Map<String, Object> ops) {
+        switch (op) {
+            case "$eq":
+                return matchesEq(values, arg);
+            case "$ne":
+                return !matchesEq(values, arg);
+            case "$gt":
+            case "$gte":
+            case "$lt":
+            case "$lte":
+                for (Object v : expand(values)) {
+                    Integer cmp = compare(v, arg);
+                    if (cmp == null) continue;
+                    if ((op.equals("$gt") && cmp > 0) || (op.equals("$gte") && cmp >= 0) || (op.equals("$lt") && cmp < 0) || (op.equals("$lte") && cmp <= 0)) {
+                        return true;
+                    }
+                }
+                return false;
+            case "$in":
+                for (Object a : list(arg)) {
+                    if (matchesEq(values, a)) return true;
+                }
+                return false;
+            case "$nin":
+                for (Object a : list(arg)) {
+                    if (matchesEq(values, a)) return false;
+                }
+                return true;
+            case "$all":
+                for (Object a : list(arg)) {
+                    if (!matchesEq(values, a)) return false;
+                }
+                return true;
+            case "$exists":
+                boolean exists = !values.isEmpty();
+                return exists == (arg instanceof Boolean ? (Boolean) arg : (arg instanceof Number && ((Number) arg).intValue() != 0));
+            case "$size":
+                if (!(arg instanceof Number)) throw new UnsupportedQueryException(op);
+                for (Object v : values) {
+                    if (v instanceof List && ((List) v).size() == ((Number) arg).intValue()) return true;
+                }
+                return false;
+            case "$regex":
+                Object options = ops.get("$options");
+                Pattern p = arg instanceof Pattern ? (Pattern) arg : Pattern.compile(arg.toString(), flags(options == null ? "" : options.toString()));
+                return matchesEq(values, p);
+            case "$options":
+                //handled with $regex
+                if (!ops.containsKey("$regex")) throw new UnsupportedQueryException(op);
+                return true;
+            case "$not":
+                if (arg instanceof Pattern) {
+                    return !matchesEq(values, arg);
+                }
+                if (isOperatorDoc(arg)) {
+                    return !matchesField(values, arg);
+                }
+                throw new UnsupportedQueryException(op);
+            default:
+                throw new UnsupportedQueryException(op);
+        }
+    }
+
+    /**
+     * equality like mongo - the value or one of its elements (if it is an array) equals the argument, null matches
+     * missing fields
+     */
+    private boolean matchesEq(List<Object> values, Object arg) {
+        if (values.isEmpty()) {
+            return arg == null;
+        }
+        for (Object v : values) {
+            if (valueEquals(v, arg)) return true;
+            if (v instanceof List) {
+                for (Object el : (List) v) {
+                    if (valueEquals(el, arg)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean valueEquals(Object v, Object arg) {
+        arg = normalize(arg);
+        v = normalize(v);
+        if (arg instanceof Pattern) {
+            return v instanceof String && ((Pattern) arg).matcher((String) v).find();
+        }
+        if (arg == null || v == null) {
+            return arg == v;
+        }
+        if (v instanceof Number && arg instanceof Number) {
+            return compareNumbers((Number) v, (Number) arg) == 0;
+        }
+        if (arg instanceof List) {
+            if (!(v instanceof List) || ((List) v).size() != ((List) arg).size()) return false;
+            for (int i = 0; i < ((List) v).size(); i++) {
+                if (!valueEquals(((List) v).get(i), ((List) arg).get(i))) return false;
+            }
+            return true;
+        }
+        if (arg instanceof Map) {
+            if (!(v instanceof Map)) return false;
+            //field order matters, like in mongo
+            Map<String, Object> a = (Map<String, Object>) arg;
+            Map<String, Object> m = (Map<String, Object>) v;
+            if (a.size() != m.size()) return false;
+            Iterator<Map.Entry<String, Object>> it = m.entrySet().iterator();
+            for (Map.Entry<String, Object> e : a.entrySet()) {
+                Map.Entry<String, Object> other = it.next();
+                if (!e.getKey().equals(other.getKey()) || !valueEquals(other.getValue(), e.getValue())) return false;
+            }
+            return true;
+        }
+        return arg.equals(v);
+    }
+
+    /**
+     * compares values of the same type bracket
+     *
+     * @return null if not comparable
+     */
+    @SuppressWarnings("unchecked")
+    private Integer compare(Object v, Object arg) {
+        v = normalize(v);
+        arg = normalize(arg);
+        if (v == null || arg == null) return null;
+        if (v instanceof Number && arg instanceof Number) {
+            return compareNumbers((Number) v, (Number) arg);
+        }
+        if (v instanceof Map || v instanceof List || arg instanceof Map || arg instanceof List || arg instanceof Pattern) {
+            throw new UnsupportedQueryException("comparison of " + arg.getClass().getName());
+        }
+        if (v.getClass().equals(arg.getClass())) {
+            return ((Comparable) v).compareTo(arg);
+        }
+        return null;
+    }
+
+    private int compareNumbers(Number a, Number b) {
+        if ((a instanceof Double || a instanceof Float) || (b instanceof Double || b instanceof Float)) {
+            return Double.compare(a.doubleValue(), b.doubleValue());
+        }
+        return Long.compare(a.longValue(), b.longValue());
+    }
+
+    /**
+     * checks that the value is of a known type - unknown types (DBRefs, binary data...) cannot be compared reliably
+     */
+    private Object normalize(Object o) {
+        if (o == null || o instanceof String || o instanceof Number || o instanceof Boolean || o instanceof ObjectId
+                || o instanceof Pattern || o instanceof Map || o instanceof List) {
+            return o;
+        }
+        if (o instanceof Date) {
+            return new Date(((Date) o).getTime());
+        }
+        if (o instanceof Enum) {
+            return ((Enum) o).name();
+        }
+        if (o instanceof Character) {
+            return o.toString();
+        }
+        throw new UnsupportedQueryException("value of type " + o.getClass().getName());
+    }
+
+    /**
+     * values of all array fields are added as well
+     */
+    private List<Object> expand(List<Object> values) {
+        List<Object> ret = new ArrayList<>(values);
+        for (Object v : values) {
+            if (v instanceof List) {
+                ret.addAll((List<?>) v);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * collects all values for the path - arrays of documents are traversed
+     */
+    @SuppressWarnings("unchecked")
+    private void collect(Object cur, String[] path, int idx, List<Object> values) {
+        if (idx == path.length) {
+            values.add(cur);
+            return;
+        }
+        if (cur instanceof Map) {
+            Map<String, Object> m = (Map<String, Object>) cur;
+            if (m.containsKey(path[idx])) {
+                collect(m.get(path[idx]), path, idx + 1, values);
+            }
+        } else if (cur instanceof List) {
+            List<Object> l = (List<Object>) cur;
+            if (path[idx].matches("[0-9]+")) {
+                int i = Integer.parseInt(path[idx]);
+                if (i < l.size()) {
+                    collect(l.get(i), path, idx + 1, values);
+                }
+            }
+            for (Object el : l) {
+                if (el instanceof Map) {
+                    collect(el, path, idx, values);
+                }
+            }
+        }
+    }
+
+    private boolean isOperatorDoc(Object o) {
+        if (!(o instanceof Map) || ((Map) o).isEmpty()) return false;
+        Object first = ((Map) o).keySet().iterator().next();
+        return first instanceof String && ((String) first).startsWith("$");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> map(Object o) {
+        if (o instanceof Map) return (Map<String, Object>) o;
+        if (o instanceof DBObject && !(o instanceof List)) return ((DBObject) o).toMap();
+        throw new UnsupportedQueryException("no document: " + o);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> list(Object o) {
+        if (o instanceof List) return (List<Object>) o;
+        if (o instanceof Object[]) return Arrays.asList((Object[]) o);
+        if (o instanceof Collection) return new ArrayList<>((Collection<Object>) o);
+        throw new UnsupportedQueryException("no list: " + o);
+    }
+
+    private int flags(String options) {
+        int f = 0;
+        if (options.contains("i")) f |= Pattern.CASE_INSENSITIVE;
+        if (options.contains("m")) f |= Pattern.MULTILINE;
+        if (options.contains("s")) f |= Pattern.DOTALL;
+        if (options.contains("x")) f |= Pattern.COMMENTS;
+        return f;
+    }
+
+    private static class UnsupportedQueryException extends RuntimeException {
+        private static final long serialVersionUID = 4862930015374201163L;
+
+        private UnsupportedQueryException(String msg) {
+            super(msg);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package de.caluga.morphium.cache;
+
+import java.util.Set;
+
+/**
+ * Cache implementations that enforce maxEntries themselves when inserting and can expire entries incrementally.
+ * The CacheHousekeeper does not need to snapshot and rewrite such caches, it just calls expire for every cached
+ * type.
+ */
+public interface EvictingMorphiumCache extends MorphiumCache {
+
+    public Set<Class<?>> getCachedTypes();
+
+    /**
+     * remove all entries of the given type, that are older than validTime
+     *
+     * @param type      - entity type
+     * @param validTime - max age in ms
+     * @return number of removed entries
+     */
+    public int expire(Class<?> type, long validTime);
+}
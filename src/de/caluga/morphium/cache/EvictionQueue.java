@@ -0,0 +1,141 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.annotations.caching.Cache;
+
+import java.util.*;
+
+/**
+ * Keeps track of the order in which cache entries of one segment should be evicted. All operations are O(1).
+ * Not threadsafe - the CacheSegment takes care of locking.
+ */
+public abstract class EvictionQueue {
+
+    public static EvictionQueue create(Cache.ClearStrategy strategy) {
+        if (strategy == null) {
+            strategy = Cache.ClearStrategy.FIFO;
+        }
+        switch (strategy) {
+            case LRU:
+                return new Linked(true);
+            case RANDOM:
+                return new Sampled();
+            case FIFO:
+            default:
+                return new Linked(false);
+        }
+    }
+
+    public abstract void onInsert(CacheKey k);
+
+    public abstract void onAccess(CacheKey k);
+
+    public abstract void onRemove(CacheKey k);
+
+    /**
+     * @return key of the entry to be evicted next, null if empty
+     */
+    public abstract CacheKey nextVictim();
+
+    public abstract void clear();
+
+    public abstract int size();
+
+    /**
+     * LRU (access order) or FIFO (insertion order) using a linked hash map
+     */
+    private static class Linked extends EvictionQueue {
+        private final LinkedHashMap<CacheKey, Boolean> order;
+        private final boolean accessOrder;
+
+        Linked(boolean accessOrder) {
+            this.accessOrder = accessOrder;
+            order = new LinkedHashMap<>(16, 0.75f, accessOrder);
+        }
+
+        @Override
+        public void onInsert(CacheKey k) {
+            if (!accessOrder) {
+                //re-inserted keys move to the end
+                order.remove(k);
+            }
+            order.put(k, Boolean.TRUE);
+        }
+
+        @Override
+        public void onAccess(CacheKey k) {
+            if (accessOrder) {
+                order.get(k);
+            }
+        }
+
+        @Override
+        public void onRemove(CacheKey k) {
+            order.remove(k);
+        }
+
+        @Override
+        public CacheKey nextVictim() {
+            Iterator<CacheKey> it = order.keySet().iterator();
+            if (!it.hasNext()) return null;
+            return it.next();
+        }
+
+        @Override
+        public void clear() {
+            order.clear();
+        }
+
+        @Override
+        public int size() {
+            return order.size();
+        }
+    }
+
+    /**
+     * random eviction - keys are kept in an array list, removal swaps the last element into the gap
+     */
+    private static class Sampled extends EvictionQueue {
+        private final ArrayList<CacheKey> keys = new ArrayList<>();
+        private final HashMap<CacheKey, Integer> positions = new HashMap<>();
+        private final Random random = new Random();
+
+        @Override
+        public void onInsert(CacheKey k) {
+            if (positions.containsKey(k)) return;
+            positions.put(k, keys.size());
+            keys.add(k);
+        }
+
+        @Override
+        public void onAccess(CacheKey k) {
+        }
+
+        @Override
+        public void onRemove(CacheKey k) {
+            Integer idx = positions.remove(k);
+            if (idx == null) return;
+            CacheKey last = keys.remove(keys.size() - 1);
+            if (idx < keys.size()) {
+                keys.set(idx, last);
+                positions.put(last, idx);
+            }
+        }
+
+        @Override
+        public CacheKey nextVictim() {
+            if (keys.isEmpty()) return null;
+            return keys.get(random.nextInt(keys.size()));
+        }
+
+        @Override
+        public void clear() {
+            keys.clear();
+            positions.clear();
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+    }
+}
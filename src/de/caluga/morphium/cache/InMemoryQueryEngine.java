@@ -0,0 +1,543 @@
+package de.caluga.morphium.cache;
+
+import com.mongodb.DBObject;
+import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.Logger;
+import de.caluga.morphium.Morphium;
+import de.caluga.morphium.MorphiumStorageAdapter;
+import de.caluga.morphium.ObjectMapper;
+import de.caluga.morphium.annotations.Index;
+import de.caluga.morphium.annotations.caching.Cache;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Answers queries for types with <code>@Cache(fullCollection=true)</code> from a snapshot of the whole collection.
+ * The query is evaluated using the DocumentMatcher against the marshalled objects, sort, skip and limit are applied
+ * locally. If the query or the sort cannot be evaluated in memory, null is returned - the query needs to be sent to
+ * mongo then.
+ * <p/>
+ * Fields annotated with <code>@Index</code> (or single field indices defined at class level) are indexed in memory
+ * using sorted maps. Equality, $in and range conditions on those fields only evaluate the matching candidates instead
+ * of scanning all objects.
+ * <p/>
+ * Snapshots only cover the default collection of a type, queries on other collections are sent to mongo. They are
+ * kept up to date incrementally for single stores and removes of this morphium instance (and for UPDATE_ENTRY sync
+ * messages carrying the document), writes to other collections drop the snapshot. Everything clearing the cache for the type (bulk writes, updates
+ * by query, sync messages) drops the snapshot, it is reloaded on next access. Snapshots also expire after the cache
+ * timeout.
+ */
+public class InMemoryQueryEngine extends MorphiumStorageAdapter<Object> implements CacheListener {
+    private final ObjectMapper objectMapper;
+    private final AnnotationAndReflectionHelper annotationHelper;
+    private final DocumentMatcher matcher = new DocumentMatcher();
+    private final ConcurrentHashMap<Class<?>, Snapshot> snapshots = new ConcurrentHashMap<>();
+    //changes per type, a load is only accepted if there was no change while reading
+    private final ConcurrentHashMap<Class<?>, Long> generations = new ConcurrentHashMap<>();
+    private volatile long resets = 0;
+
+    private Logger logger = new Logger(InMemoryQueryEngine.class);
+
+    public InMemoryQueryEngine(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        Morphium m = objectMapper.getMorphium();
+        annotationHelper = m != null ? m.getARHelper() : new AnnotationAndReflectionHelper(true);
+    }
+
+    public boolean isLoaded(Class<?> type) {
+        Snapshot s = snapshots.get(type);
+        return s != null && !s.isExpired();
+    }
+
+    /**
+     * @return current generation of the type, to be passed to load()
+     */
+    public long getGeneration(Class<?> type) {
+        Long g = generations.get(type);
+        return (g == null ? 0 : g) + resets;
+    }
+
+    /**
+     * creates the snapshot for the type
+     *
+     * @param all        - all objects of the collection, in natural order
+     * @param generation - generation before reading, if the type was changed in the meantime, the data is not used
+     * @param validFor   - time in ms the snapshot is valid, 0 for unlimited
+     * @return true, if the snapshot was created
+     */
+    public boolean load(Class<?> type, List<?> all, long generation, long validFor) {
+        Snapshot s = new Snapshot(validFor, indexedFields(type));
+        for (Object o : all) {
+            s.put(idOf(o), o, objectMapper.marshall(o));
+        }
+        synchronized (generations) {
+            if (getGeneration(type) != generation) {
+                return false;
+            }
+            snapshots.put(type, s);
+        }
+        return true;
+    }
+
+    /**
+     * evaluates the query against the snapshot of the type
+     *
+     * @param query - mongo query object
+     * @param sort  - sort, may be null
+     * @param skip  - number of results to skip
+     * @param limit - max number of results, 0 means unlimited
+     * @return the result or null, if not loaded or the query could not be evaluated
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> find(Class<? extends T> type, DBObject query, Map<String, Object> sort, int skip, int limit) {
+        Snapshot s = snapshots.get(type);
+        if (s == null || s.isExpired()) {
+            return null;
+        }
+        final List<Entry> found = new ArrayList<>();
+        s.lock.readLock().lock();
+        try {
+            Collection<Entry> candidates = s.candidates(query);
+            for (Entry e : candidates) {
+                DocumentMatcher.Result r = matcher.matches(query, e.doc);
+                if (r == DocumentMatcher.Result.UNKNOWN) {
+                    return null;
+                }
+                if (r == DocumentMatcher.Result.MATCH) {
+                    found.add(e);
+                }
+            }
+        } finally {
+            s.lock.readLock().unlock();
+        }
+        if (sort != null && !sort.isEmpty()) {
+            final Map<String, Object> srt = sort;
+            try {
+                Collections.sort(found, new Comparator<Entry>() {
+                    @Override
+                    public int compare(Entry o1, Entry o2) {
+                        for (Map.Entry<String, Object> s : srt.entrySet()) {
+                            int cmp = compareValues(getValue(o1.doc, s.getKey()), getValue(o2.doc, s.getKey()));
+                            if (cmp != 0) {
+                                return s.getValue() instanceof Number && ((Number) s.getValue()).intValue() < 0 ? -cmp : cmp;
+                            }
+                        }
+                        return 0;
+                    }
+                });
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+        }
+        List<T> ret = new ArrayList<>();
+        for (int i = skip; i < found.size(); i++) {
+            if (limit > 0 && ret.size() >= limit) break;
+            ret.add((T) found.get(i).entity);
+        }
+        return ret;
+    }
+
+    /**
+     * adds or replaces the object in the snapshot of its type
+     */
+    public void update(Class<?> type, Object entity) {
+        changed(type);
+        Snapshot s = snapshots.get(type);
+        if (s == null) return;
+        DBObject doc;
+        try {
+            doc = objectMapper.marshall(entity);
+        } catch (Exception e) {
+            logger.warn("Could not marshall object - dropping snapshot", e);
+            invalidate(type);
+            return;
+        }
+        s.lock.writeLock().lock();
+        try {
+            s.put(idOf(entity), entity, doc);
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Class<?> type, Object id) {
+        changed(type);
+        Snapshot s = snapshots.get(type);
+        if (s == null) return;
+        s.lock.writeLock().lock();
+        try {
+            s.remove(id);
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * drops the snapshot of the type, it will be reloaded on next access
+     */
+    public void invalidate(Class<?> type) {
+        changed(type);
+        snapshots.remove(type);
+    }
+
+    /**
+     * snapshots only contain the default collection of the type. Storage listeners are not told, where an object was
+     * written to - writers report writes to other collections here, the snapshot is dropped then
+     *
+     * @param collection - collection written to, null for the default one
+     */
+    public void writtenTo(Class<?> type, String collection) {
+        if (collection == null || !isFullyCached(type)) {
+            return;
+        }
+        if (!collection.equals(objectMapper.getCollectionName(type))) {
+            invalidate(type);
+        }
+    }
+
+    public void clear() {
+        synchronized (generations) {
+            resets++;
+            snapshots.clear();
+        }
+    }
+
+    private void changed(Class<?> type) {
+        synchronized (generations) {
+            Long g = generations.get(type);
+            generations.put(type, g == null ? 1 : g + 1);
+        }
+    }
+
+    private boolean isFullyCached(Class<?> type) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+        return c != null && c.readCache() && c.fullCollection();
+    }
+
+    private Object idOf(Object o) {
+        Object id = annotationHelper.getId(o);
+        return id == null ? o : id;
+    }
+
+    /**
+     * fields with @Index and single field indices defined at class level
+     */
+    @SuppressWarnings("unchecked")
+    private Set<String> indexedFields(Class<?> type) {
+        Set<String> ret = new HashSet<>();
+        try {
+            ret.addAll(annotationHelper.getFields(type, Index.class));
+            Index i = annotationHelper.getAnnotationFromHierarchy(type, Index.class);
+            if (i != null) {
+                for (String idx : i.value()) {
+                    if (idx.contains(",")) continue;
+                    idx = idx.trim();
+                    if (idx.startsWith("-")) idx = idx.substring(1);
+                    ret.add(annotationHelper.getFieldName(type, idx));
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Could not determine indices for " + type.getName(), e);
+        }
+        return ret;
+    }
+
+    @Override
+    public void postStore(Morphium m, Object r, boolean isNew) {
+        Class<?> type = annotationHelper.getRealClass(r.getClass());
+        if (isFullyCached(type)) {
+            update(type, r);
+        }
+    }
+
+    @Override
+    public void postStore(Morphium m, Map<Object, Boolean> isNew) {
+        for (Object r : isNew.keySet()) {
+            postStore(m, r, isNew.get(r));
+        }
+    }
+
+    @Override
+    public void postRemove(Morphium m, Object r) {
+        Class<?> type = annotationHelper.getRealClass(r.getClass());
+        if (isFullyCached(type)) {
+            remove(type, idOf(r));
+        }
+    }
+
+    @Override
+    public void postRemove(Morphium m, List<Object> lst) {
+        for (Object r : lst) {
+            postRemove(m, r);
+        }
+    }
+
+    @Override
+    public <T> CacheObject<T> wouldAddToCache(CacheObject<T> toCache) {
+        return toCache;
+    }
+
+    @Override
+    public <T> boolean wouldClearCache(Class<T> affectedEntityType) {
+        //bulk writes, updates, drops, sync messages... end up here
+        invalidate(affectedEntityType);
+        return true;
+    }
+
+    @Override
+    public <T> boolean wouldRemoveEntryFromCache(Class cls, Object id, Object entity) {
+        return true;
+    }
+
+    private static Object getValue(DBObject doc, String path) {
+        Object cur = doc;
+        for (String p : path.split("\\.")) {
+            if (cur instanceof List) {
+                //mongo sorts by min/max of array elements
+                throw new UnsupportedOperationException("sorting by array");
+            }
+            if (!(cur instanceof DBObject)) {
+                return null;
+            }
+            cur = ((DBObject) cur).get(p);
+        }
+        if (cur instanceof List) {
+            throw new UnsupportedOperationException("sorting by array");
+        }
+        return cur;
+    }
+
+    /**
+     * compares like mongo: null &lt; numbers &lt; strings &lt; ObjectId &lt; boolean &lt; date
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        int ra = rank(a);
+        int rb = rank(b);
+        if (ra != rb) {
+            return ra < rb ? -1 : 1;
+        }
+        if (a == null) {
+            return 0;
+        }
+        if (a instanceof Number) {
+            Number na = (Number) a;
+            Number nb = (Number) b;
+            if (na instanceof Double || na instanceof Float || nb instanceof Double || nb instanceof Float) {
+                return Double.compare(na.doubleValue(), nb.doubleValue());
+            }
+            return Long.compare(na.longValue(), nb.longValue());
+        }
+        return ((Comparable) a).compareTo(b);
+    }
+
+    private static int rank(Object o) {
+        if (o == null) return 1;
+        if (o instanceof Number) return 2;
+        if (o instanceof String) return 3;
+        if (o instanceof ObjectId) return 7;
+        if (o instanceof Boolean) return 8;
+        if (o instanceof Date) return 9;
+        throw new UnsupportedOperationException("sorting by " + o.getClass().getName());
+    }
+
+    private static boolean isIndexable(Object o) {
+        return o == null || o instanceof Number || o instanceof String || o instanceof ObjectId || o instanceof Boolean || o instanceof Date;
+    }
+
+    private static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(Object o1, Object o2) {
+            return compareValues(o1, o2);
+        }
+    };
+
+    private static class Entry {
+        private final Object entity;
+        private final DBObject doc;
+        private final long seq;
+
+        private Entry(Object entity, DBObject doc, long seq) {
+            this.entity = entity;
+            this.doc = doc;
+            this.seq = seq;
+        }
+    }
+
+    private static final Comparator<Entry> NATURAL_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return Long.compare(o1.seq, o2.seq);
+        }
+    };
+
+    /**
+     * all objects of a type by id and the in memory indices, guarded by lock (after creation)
+     */
+    private static class Snapshot {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final long created = System.currentTimeMillis();
+        private final long validFor;
+        private final HashMap<Object, Entry> byId = new HashMap<>();
+        private final TreeMap<Long, Entry> bySeq = new TreeMap<>();
+        private final HashMap<String, TreeMap<Object, Set<Entry>>> indices = new HashMap<>();
+        private long nextSeq = 0;
+
+        private Snapshot(long validFor, Set<String> indexedFields) {
+            this.validFor = validFor;
+            for (String f : indexedFields) {
+                indices.put(f, new TreeMap<Object, Set<Entry>>(VALUE_ORDER));
+            }
+        }
+
+        private boolean isExpired() {
+            return validFor > 0 && System.currentTimeMillis() - created > validFor;
+        }
+
+        private void put(Object id, Object entity, DBObject doc) {
+            Entry old = remove(id);
+            //updated objects keep their position
+            Entry e = new Entry(entity, doc, old != null ? old.seq : nextSeq++);
+            byId.put(id, e);
+            bySeq.put(e.seq, e);
+            for (Iterator<Map.Entry<String, TreeMap<Object, Set<Entry>>>> it = indices.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, TreeMap<Object, Set<Entry>>> idx = it.next();
+                Object v = getIndexValue(doc, idx.getKey());
+                if (!isIndexable(v)) {
+                    //arrays, embedded documents... index is not usable
+                    it.remove();
+                    continue;
+                }
+                Set<Entry> s = idx.getValue().get(v);
+                if (s == null) {
+                    s = new HashSet<>();
+                    idx.getValue().put(v, s);
+                }
+                s.add(e);
+            }
+        }
+
+        private Entry remove(Object id) {
+            Entry e = byId.remove(id);
+            if (e == null) return null;
+            bySeq.remove(e.seq);
+            for (Map.Entry<String, TreeMap<Object, Set<Entry>>> idx : indices.entrySet()) {
+                Object v = getIndexValue(e.doc, idx.getKey());
+                Set<Entry> s = idx.getValue().get(v);
+                if (s != null) {
+                    s.remove(e);
+                    if (s.isEmpty()) {
+                        idx.getValue().remove(v);
+                    }
+                }
+            }
+            return e;
+        }
+
+        private static Object getIndexValue(DBObject doc, String path) {
+            try {
+                return getValue(doc, path);
+            } catch (UnsupportedOperationException e) {
+                return new Object();
+            }
+        }
+
+        /**
+         * uses the first usable index for a condition of the query, all objects otherwise. The candidates are a
+         * superset of the result and returned in natural order
+         */
+        @SuppressWarnings("unchecked")
+        private Collection<Entry> candidates(DBObject query) {
+            if (query == null || indices.isEmpty()) {
+                return bySeq.values();
+            }
+            List<Map.Entry<String, Object>> conditions = new ArrayList<>();
+            for (String k : query.keySet()) {
+                if (k.equals("$and") && query.get(k) instanceof List) {
+                    for (Object sub : (List) query.get(k)) {
+                        if (sub instanceof DBObject) {
+                            for (String sk : ((DBObject) sub).keySet()) {
+                                conditions.add(new AbstractMap.SimpleEntry<>(sk, ((DBObject) sub).get(sk)));
+                            }
+                        }
+                    }
+                } else {
+                    conditions.add(new AbstractMap.SimpleEntry<>(k, query.get(k)));
+                }
+            }
+            for (Map.Entry<String, Object> c : conditions) {
+                TreeMap<Object, Set<Entry>> idx = indices.get(c.getKey());
+                if (idx == null) continue;
+                List<Entry> ret = lookup(idx, c.getValue());
+                if (ret != null) {
+                    Collections.sort(ret, NATURAL_ORDER);
+                    return ret;
+                }
+            }
+            return bySeq.values();
+        }
+
+        /**
+         * @return candidates or null, if the index cannot be used for this condition
+         */
+        @SuppressWarnings("unchecked")
+        private List<Entry> lookup(TreeMap<Object, Set<Entry>> idx, Object condition) {
+            List<Entry> ret = new ArrayList<>();
+            if (condition instanceof Map) {
+                Map<String, Object> ops = (Map<String, Object>) condition;
+                if (ops.isEmpty() || !ops.keySet().iterator().next().startsWith("$")) {
+                    return null;
+                }
+                Object eq = ops.get("$eq");
+                if (eq != null && isIndexable(eq)) {
+                    addAll(ret, idx.get(eq));
+                    return ret;
+                }
+                Object in = ops.get("$in");
+                if (in instanceof List) {
+                    for (Object v : (List) in) {
+                        if (v == null || !isIndexable(v)) return null;
+                    }
+                    for (Object v : (List) in) {
+                        addAll(ret, idx.get(v));
+                    }
+                    return ret;
+                }
+                Object from = ops.containsKey("$gt") ? ops.get("$gt") : ops.get("$gte");
+                Object to = ops.containsKey("$lt") ? ops.get("$lt") : ops.get("$lte");
+                if ((from == null && to == null) || (from != null && !isIndexable(from)) || (to != null && !isIndexable(to))) {
+                    return null;
+                }
+                NavigableMap<Object, Set<Entry>> range = idx;
+                if (from != null) {
+                    range = range.tailMap(from, true);
+                }
+                if (to != null) {
+                    if (from != null && compareValues(from, to) > 0) {
+                        return ret;
+                    }
+                    range = range.headMap(to, true);
+                }
+                for (Set<Entry> s : range.values()) {
+                    ret.addAll(s);
+                }
+                return ret;
+            }
+            if (condition == null || !isIndexable(condition)) {
+                //null matches missing fields as well
+                return null;
+            }
+            addAll(ret, idx.get(condition));
+            return ret;
+        }
+
+        private void addAll(List<Entry> ret, Set<Entry> s) {
+            if (s != null) {
+                ret.addAll(s);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.annotations.caching.Cache;
+
+import java.util.*;
+
+/**
+ * Ids of objects read by their id (getById, findById), that are kept in the id cache without being part of a cached
+ * result. They are dropped when they are older than the timeout of their type, and the oldest ones if there are more
+ * than maxEntries of them - so they neither count against maxEntries of the query results nor stay forever.
+ * <p/>
+ * Not thread safe, the caches guard it with their own locks.
+ */
+class LoadedIds {
+    private final long timeout;
+    private final int maxEntries;
+    //id -> time loaded, oldest first
+    private final LinkedHashMap<Object, Long> loaded = new LinkedHashMap<>();
+
+    LoadedIds(Cache c) {
+        timeout = c == null ? 60000 : c.timeout();
+        maxEntries = c == null ? -1 : c.maxEntries();
+    }
+
+    /**
+     * records a loaded object
+     *
+     * @return ids to drop from the id cache - expired ones and those exceeding maxEntries
+     */
+    List<Object> add(Object id) {
+        loaded.remove(id);
+        loaded.put(id, System.currentTimeMillis());
+        List<Object> ret = expire(timeout);
+        Iterator<Object> it = loaded.keySet().iterator();
+        while (maxEntries > 0 && loaded.size() > maxEntries) {
+            ret.add(it.next());
+            it.remove();
+        }
+        return ret;
+    }
+
+    /**
+     * @param validTime - max age in ms
+     * @return ids older than validTime, removed from this list
+     */
+    List<Object> expire(long validTime) {
+        List<Object> ret = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Object, Long>> it = loaded.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, Long> e = it.next();
+            if (now - e.getValue() <= validTime) {
+                break;
+            }
+            ret.add(e.getKey());
+            it.remove();
+        }
+        return ret;
+    }
+
+    boolean isExpired(Object id) {
+        Long t = loaded.get(id);
+        return t != null && System.currentTimeMillis() - t > timeout;
+    }
+
+    /**
+     * the object is part of a cached result now, or was removed
+     */
+    void remove(Object id) {
+        loaded.remove(id);
+    }
+
+    void clear() {
+        loaded.clear();
+    }
+}
@@ -0,0 +1,274 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.Logger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sheds cached results when the heap gets tight. Usage thresholds are set on all heap memory pools supporting them
+ * (usually the old generation) to thresholdPercent of their maximum size. Whenever the JVM reports one of those
+ * thresholds to be exceeded (either current usage or usage after a collection), shedPercent of all cached results
+ * are removed from the cache - biggest and least recently used ones first.
+ * <p/>
+ * Shedding runs in its own thread, as notifications are delivered by a JVM internal one. Notifications arriving
+ * within minInterval ms after the last shedding are ignored, so that one spike does not empty the whole cache.
+ * <p/>
+ * Usage thresholds are JVM global settings, previous values are restored on stop().
+ * <p/>
+ * Usage: <code>cfg.setCacheMemoryThreshold(85);</code>
+ */
+public class MemoryPressureMonitor implements NotificationListener {
+    private final MorphiumCache cache;
+    private final int thresholdPercent;
+    private volatile int shedPercent = 25;
+    private volatile long minInterval = 1000;
+    private volatile long lastShed = 0;
+
+    private final AtomicBoolean shedding = new AtomicBoolean(false);
+    private final AtomicLong sheddingRuns = new AtomicLong();
+    private final AtomicLong shedEntries = new AtomicLong();
+
+    private final Map<MemoryPoolMXBean, long[]> previousThresholds = new HashMap<>();
+    private ExecutorService executor;
+
+    private Logger logger = new Logger(MemoryPressureMonitor.class);
+
+    public MemoryPressureMonitor(MorphiumCache cache, int thresholdPercent) {
+        if (thresholdPercent <= 0 || thresholdPercent >= 100) {
+            throw new IllegalArgumentException("threshold needs to be between 1 and 99 percent");
+        }
+        this.cache = cache;
+        this.thresholdPercent = thresholdPercent;
+    }
+
+    public int getThresholdPercent() {
+        return thresholdPercent;
+    }
+
+    public int getShedPercent() {
+        return shedPercent;
+    }
+
+    /**
+     * @param shedPercent - percentage of cached results to remove on every notification
+     */
+    public void setShedPercent(int shedPercent) {
+        this.shedPercent = shedPercent;
+    }
+
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    public void setMinInterval(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * @return number of times, the cache was shed
+     */
+    public long getSheddingRuns() {
+        return sheddingRuns.get();
+    }
+
+    /**
+     * @return total number of cached results removed
+     */
+    public long getShedEntries() {
+        return shedEntries.get();
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cache_shedding");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        int pools = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) continue;
+            long max = pool.getUsage().getMax();
+            if (max <= 0) continue;
+            long threshold = max / 100 * thresholdPercent;
+            long[] prev = new long[]{pool.getUsageThreshold(), pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsageThreshold() : -1};
+            previousThresholds.put(pool, prev);
+            pool.setUsageThreshold(threshold);
+            if (pool.isCollectionUsageThresholdSupported()) {
+                pool.setCollectionUsageThreshold(threshold);
+            }
+            pools++;
+            logger.info("Shedding cache if " + pool.getName() + " exceeds " + threshold + " bytes");
+        }
+        if (pools == 0) {
+            logger.warn("No heap memory pool supports usage thresholds - cache will not be shed on memory pressure");
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+    public synchronized void stop() {
+        if (executor == null) return;
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (Exception e) {
+            logger.warn("Could not remove notification listener", e);
+        }
+        for (Map.Entry<MemoryPoolMXBean, long[]> e : previousThresholds.entrySet()) {
+            try {
+                e.getKey().setUsageThreshold(e.getValue()[0]);
+                if (e.getValue()[1] >= 0) {
+                    e.getKey().setCollectionUsageThreshold(e.getValue()[1]);
+                }
+            } catch (Exception ex) {
+                logger.warn("Could not restore usage threshold of " + e.getKey().getName(), ex);
+            }
+        }
+        previousThresholds.clear();
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if (!type.equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED) && !type.equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+            return;
+        }
+        if (System.currentTimeMillis() - lastShed < minInterval || !shedding.compareAndSet(false, true)) {
+            return;
+        }
+        ExecutorService ex;
+        synchronized (this) {
+            ex = executor;
+        }
+        if (ex == null) {
+            shedding.set(false);
+            return;
+        }
+        try {
+            ex.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shed();
+                    } finally {
+                        shedding.set(false);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            //shut down in the meantime
+            shedding.set(false);
+        }
+    }
+
+    /**
+     * removes shedPercent of the cached results now
+     *
+     * @return number of removed results
+     */
+    public int shed() {
+        lastShed = System.currentTimeMillis();
+        int removed;
+        try {
+            removed = cache.shed(shedPercent);
+        } catch (Exception e) {
+            logger.error("Could not shed cache", e);
+            return 0;
+        }
+        sheddingRuns.incrementAndGet();
+        shedEntries.addAndGet(removed);
+        logger.warn("Memory pressure - removed " + removed + " cached results in " + (System.currentTimeMillis() - lastShed) + "ms");
+        return removed;
+    }
+
+    /**
+     * chooses the results to shed: the ones with the highest product of size and time since last access
+     *
+     * @param candidates - all cached results
+     * @param percent    - percentage to return
+     * @return the candidates to remove
+     */
+    public static List<Candidate> selectVictims(List<Candidate> candidates, int percent) {
+        if (candidates.isEmpty() || percent <= 0) return Collections.emptyList();
+        int cnt = (int) Math.ceil(candidates.size() * Math.min(percent, 100) / 100.0);
+        final long now = System.currentTimeMillis();
+        List<Candidate> sorted = new ArrayList<>(candidates);
+        Collections.sort(sorted, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate o1, Candidate o2) {
+                return Double.compare(o2.score(now), o1.score(now));
+            }
+        });
+        return sorted.subList(0, cnt);
+    }
+
+    /**
+     * a cached result, that might be shed
+     */
+    public static class Candidate {
+        private final Class<?> type;
+        private final CacheKey key;
+        private final long size;
+        private final long lru;
+
+        /**
+         * @param size - (estimated) size in bytes
+         * @param lru  - time of last access
+         */
+        public Candidate(Class<?> type, CacheKey key, long size, long lru) {
+            this.type = type;
+            this.key = key;
+            this.size = size;
+            this.lru = lru;
+        }
+
+        /**
+         * creates a candidate for the element, estimating its size if unknown. Does not touch the lru time
+         */
+        public static Candidate of(Class<?> type, CacheKey key, CacheElement<?> e, ObjectSizeEstimator estimator) {
+            long lru = e.getLru();
+            long size = e.getSize();
+            if (size <= 0) {
+                size = estimator.estimate(e.peekFound());
+            }
+            return new Candidate(type, key, size, lru);
+        }
+
+        public Class<?> getType() {
+            return type;
+        }
+
+        public CacheKey getKey() {
+            return key;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLru() {
+            return lru;
+        }
+
+        private double score(long now) {
+            return (double) Math.max(size, 1) * Math.max(now - lru, 1);
+        }
+    }
+}
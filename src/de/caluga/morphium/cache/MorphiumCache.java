@@ -14,19 +14,26 @@ import java.util.Map;
  * TODO: Add documentation here
  */
 public interface MorphiumCache {
-    public <T> void addToCache(String k, Class<? extends T> type, List<T> ret);
+    public <T> void addToCache(CacheKey k, Class<? extends T> type, List<T> ret);
 
-    public String getCacheKey(DBObject qo, Map<String, Integer> sort, String collection, int skip, int limit);
+    public CacheKey getCacheKey(DBObject qo, Map<String, Integer> sort, String collection, int skip, int limit);
 
-    public <T> List<T> getFromCache(Class<? extends T> type, String k);
+    public <T> List<T> getFromCache(Class<? extends T> type, CacheKey k);
 
-    public Map<Class<?>, Map<String, CacheElement>> cloneCache();
+    /**
+     * the cache element for the key, without touching it (no lru update)
+     *
+     * @return element or null, if not cached
+     */
+    public CacheElement<?> getCacheElement(Class<?> type, CacheKey k);
+
+    public Map<Class<?>, Map<CacheKey, CacheElement<?>>> cloneCache();
 
     public Map<Class<?>, Map<Object, Object>> cloneIdCache();
 
     public void clearCachefor(Class<?> cls);
 
-    public void setCache(Map<Class<?>, Map<String, CacheElement>> cache);
+    public void setCache(Map<Class<?>, Map<CacheKey, CacheElement<?>>> cache);
 
     public void resetCache();
 
@@ -36,12 +43,48 @@ public interface MorphiumCache {
 
     public <T> T getFromIDCache(Class<? extends T> type, Object id);
 
-    public String getCacheKey(Query q);
+    /**
+     * adds an object to the id cache, e.g. when it was missing while resolving a result stored as ids
+     */
+    public void addToIdCache(Class<?> type, Object id, Object entity);
+
+    /**
+     * adds an object read by its id (getById) to the id cache, without a cached query result. It does not count
+     * against maxEntries of the results, but is dropped after the timeout of the type or when more than maxEntries
+     * objects were read that way
+     */
+    public void addLoadedById(Class<?> type, Object id, Object entity);
 
-    public boolean isCached(Class<?> type, String k);
+    public CacheKey getCacheKey(Query<?> q);
+
+    public boolean isCached(Class<?> type, CacheKey k);
 
     public void clearCacheIfNecessary(Class cls);
 
+    /**
+     * like clearCacheIfNecessary(cls), but only removes cached results, that might be affected by storing the given
+     * document: results containing the object and results whose query matches the new document. Results with
+     * queries that cannot be evaluated in memory or that use skip are removed as well. Used for removing objects, too
+     *
+     * @param id  - id of the stored object
+     * @param doc - the marshalled object as stored
+     */
+    public void clearCacheIfNecessary(Class cls, Object id, DBObject doc);
+
+    /**
+     * removes the given percentage of cached results - biggest and least recently used first. Objects not referenced
+     * by any remaining result are dropped from the id cache. Used when the heap runs low, see MemoryPressureMonitor
+     *
+     * @param percent - percentage of cached results to remove
+     * @return number of removed results
+     */
+    public int shed(int percent);
+
+    /**
+     * @return metrics per cached type, maintained by the cache
+     */
+    public CacheMetrics getMetrics();
+
     public void addCacheListener(CacheListener cl);
 
     public void removeCacheListener(CacheListener cl);
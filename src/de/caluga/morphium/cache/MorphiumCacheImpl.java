@@ -1,6 +1,5 @@
 package de.caluga.morphium.cache;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import de.caluga.morphium.AnnotationAndReflectionHelper;
 import de.caluga.morphium.Logger;
@@ -18,16 +17,22 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * TODO: Add documentation here
  */
 public class MorphiumCacheImpl implements MorphiumCache {
-    private Map<Class<?>, Map<String, CacheElement>> cache;
+    private Map<Class<?>, Map<CacheKey, CacheElement<?>>> cache;
     private Map<Class<?>, Map<Object, Object>> idCache;
+    //objects in the id cache read by id, not part of a cached result
+    private final Map<Class<?>, LoadedIds> loadedIds = new HashMap<>();
     private AnnotationAndReflectionHelper annotationHelper = new AnnotationAndReflectionHelper(false); //only used to get id's and annotations, camalcase conversion never happens
+    private DocumentMatcher documentMatcher = new DocumentMatcher();
+    private ObjectSizeEstimator sizeEstimator = new ObjectSizeEstimator();
+    private final CacheMetrics metrics = new CacheMetrics();
+    private volatile boolean estimateSizes = false;
 
     private List<CacheListener> cacheListeners;
 
     private Logger logger = new Logger(MorphiumCacheImpl.class);
 
     public MorphiumCacheImpl() {
-        cache = new HashMap<Class<?>, Map<String, CacheElement>>();
+        cache = new HashMap<Class<?>, Map<CacheKey, CacheElement<?>>>();
         idCache = new HashMap<>();
         cacheListeners = new CopyOnWriteArrayList<CacheListener>();
     }
@@ -51,14 +56,14 @@ public class MorphiumCacheImpl implements MorphiumCache {
      * adds some list of objects to the cache manually...
      * is being used internally, and should be used with care
      *
-     * @param k    - Key, usually the mongodb query string - should be created by createCacheKey
+     * @param k    - Key, should be created by getCacheKey
      * @param type - class type
      * @param ret  - list of results
      * @param <T>  - Type of record
      */
     @SuppressWarnings("unchecked")
     @Override
-    public <T> void addToCache(String k, Class<? extends T> type, List<T> ret) {
+    public <T> void addToCache(CacheKey k, Class<? extends T> type, List<T> ret) {
         if (k == null) {
             return;
         }
@@ -72,8 +77,8 @@ public class MorphiumCacheImpl implements MorphiumCache {
                 return;
             }
         }
-        if (!k.endsWith("idlist")) {
-            //copy from idCache
+        if (!k.isIdList() && k.getProjection() == null) {
+            //copy to idCache - partial objects of projected results must not be returned for other queries
             Map<Class<?>, Map<Object, Object>> idCacheClone = cloneIdCache();
             for (T record : ret) {
                 if (idCacheClone.get(type) == null) {
@@ -82,15 +87,39 @@ public class MorphiumCacheImpl implements MorphiumCache {
                 idCacheClone.get(type).put(annotationHelper.getId(record), record);
             }
             setIdCache(idCacheClone);
+            synchronized (loadedIds) {
+                LoadedIds l = loadedIds.get(type);
+                if (l != null) {
+                    //referenced by a result now
+                    for (T record : ret) {
+                        l.remove(annotationHelper.getId(record));
+                    }
+                }
+            }
         }
 
-        CacheElement<T> e = new CacheElement<T>(ret);
+        CacheElement<?> e;
+        Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+        if (!k.isIdList() && c != null && c.resultMode().equals(Cache.ResultMode.IDS)) {
+            //objects are in the id cache
+            List<Object> ids = new ArrayList<>(ret.size());
+            for (T record : ret) {
+                ids.add(annotationHelper.getId(record));
+            }
+            e = new CacheElement<>(ids);
+            e.setIdsOnly(true);
+        } else {
+            e = new CacheElement<T>(ret);
+        }
         e.setLru(System.currentTimeMillis());
-        Map<Class<?>, Map<String, CacheElement>> cl = (Map<Class<?>, Map<String, CacheElement>>) (((HashMap) cache).clone());
+        if (estimateSizes) {
+            e.setSize(sizeEstimator.estimate(e.getFound()));
+        }
+        Map<Class<?>, Map<CacheKey, CacheElement<?>>> cl = (Map<Class<?>, Map<CacheKey, CacheElement<?>>>) (((HashMap) cache).clone());
         if (cl.get(type) == null) {
-            cl.put(type, new HashMap<String, CacheElement>());
+            cl.put(type, new HashMap<CacheKey, CacheElement<?>>());
         }
-        cl.get(type).put(k, e);
+        metrics.get(type).added(e, cl.get(type).put(k, e));
 
         //atomar execution of this operand - no synchronization needed
         cache = cl;
@@ -111,14 +140,67 @@ public class MorphiumCacheImpl implements MorphiumCache {
     }
 
     @Override
-    public boolean isCached(Class<?> type, String k) {
+    public void clearCacheIfNecessary(Class cls, Object id, DBObject doc) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class);
+        if (c == null || !c.clearOnWrite()) {
+            return;
+        }
+        for (CacheListener l : cacheListeners) {
+            if (!l.wouldClearCache(cls)) {
+                logger.info("Not clearing cache due to veto of cache listener " + l.getClass().getName());
+                return;
+            }
+        }
+        Map<Class<?>, Map<CacheKey, CacheElement<?>>> cl = cloneCache();
+        if (cl.get(cls) != null) {
+            //readers might iterate the current map
+            cl.put(cls, new HashMap<>(cl.get(cls)));
+            ArrayList<CacheKey> toRemove = new ArrayList<CacheKey>();
+            for (Map.Entry<CacheKey, CacheElement<?>> e : cl.get(cls).entrySet()) {
+                if (id != null && e.getValue().peekFound() != null) {
+                    //results containing the old version
+                    boolean ids = e.getValue().isIdsOnly() || e.getKey().isIdList();
+                    boolean found = false;
+                    for (Object el : e.getValue().peekFound()) {
+                        if (id.equals(ids ? el : annotationHelper.getId(el))) {
+                            found = true;
+                            break;
+                        }
+                    }
+                    if (found) {
+                        toRemove.add(e.getKey());
+                        continue;
+                    }
+                }
+                //results of queries with skip might shift, no matter where the document was or is now
+                if (e.getKey().getSkip() > 0 || documentMatcher.matches(e.getKey().getQuery(), doc) != DocumentMatcher.Result.NO_MATCH) {
+                    toRemove.add(e.getKey());
+                }
+            }
+            for (CacheKey k : toRemove) {
+                CacheElement<?> removed = cl.get(cls).remove(k);
+                if (removed != null) {
+                    metrics.get(cls).removed(CacheMetrics.EvictionReason.CLEAR, removed);
+                }
+            }
+            cache = cl;
+        }
+        if (id != null && idCache.get(cls) != null && idCache.get(cls).containsKey(id)) {
+            Map<Class<?>, Map<Object, Object>> idc = cloneIdCache();
+            idc.get(cls).remove(id);
+            setIdCache(idc);
+        }
+    }
+
+    @Override
+    public boolean isCached(Class<?> type, CacheKey k) {
         Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class); ///type.getAnnotation(Cache.class);
         if (c != null) {
             if (!c.readCache()) return false;
         } else {
             return false;
         }
-        Map<Class<?>, Map<String, CacheElement>> snapshotCache = cache;
+        Map<Class<?>, Map<CacheKey, CacheElement<?>>> snapshotCache = cache;
 
         try {
             return snapshotCache.get(type) != null && snapshotCache.get(type).get(k) != null && snapshotCache.get(type).get(k).getFound() != null;
@@ -128,8 +210,7 @@ public class MorphiumCacheImpl implements MorphiumCache {
     }
 
     /**
-     * return object by from cache. Cache key usually is the string-representation of the search
-     * query.toQueryObject()
+     * return object by from cache. Cache key should be created by getCacheKey
      *
      * @param type - type
      * @param k    - cache key
@@ -138,23 +219,45 @@ public class MorphiumCacheImpl implements MorphiumCache {
      */
     @Override
     @SuppressWarnings("unchecked")
-    public <T> List<T> getFromCache(Class<? extends T> type, String k) {
-        Map<Class<?>, Map<String, CacheElement>> snapshotCache = cache;
+    public <T> List<T> getFromCache(Class<? extends T> type, CacheKey k) {
+        Map<Class<?>, Map<CacheKey, CacheElement<?>>> snapshotCache = cache;
         if (snapshotCache.get(type) == null || snapshotCache.get(type).get(k) == null) return null;
         try {
-            final CacheElement cacheElement = snapshotCache.get(type).get(k);
+            final CacheElement<?> cacheElement = snapshotCache.get(type).get(k);
             cacheElement.setLru(System.currentTimeMillis());
-            return cacheElement.getFound();
+            if (cacheElement.isIdsOnly()) {
+                Map<Object, Object> ids = idCache.get(type);
+                List<?> found = cacheElement.getFound();
+                List<T> ret = new ArrayList<>(found.size());
+                for (Object id : found) {
+                    Object o = ids == null ? null : ids.get(id);
+                    if (o == null) {
+                        //incomplete
+                        return null;
+                    }
+                    ret.add((T) o);
+                }
+                return ret;
+            }
+            return (List<T>) cacheElement.getFound();
         } catch (Exception e) {
             //can happen, when cache is cleared in thw wron moment
         }
         return null;
     }
 
+    @Override
+    public CacheElement<?> getCacheElement(Class<?> type, CacheKey k) {
+        Map<Class<?>, Map<CacheKey, CacheElement<?>>> snapshotCache = cache;
+        Map<CacheKey, CacheElement<?>> c = snapshotCache.get(type);
+        if (c == null) return null;
+        return c.get(k);
+    }
+
     @SuppressWarnings("unchecked")
     @Override
-    public Map<Class<?>, Map<String, CacheElement>> cloneCache() {
-        return (Map<Class<?>, Map<String, CacheElement>>) (((HashMap) cache).clone());
+    public Map<Class<?>, Map<CacheKey, CacheElement<?>>> cloneCache() {
+        return (Map<Class<?>, Map<CacheKey, CacheElement<?>>>) (((HashMap) cache).clone());
     }
 
     @SuppressWarnings("unchecked")
@@ -166,28 +269,26 @@ public class MorphiumCacheImpl implements MorphiumCache {
     @SuppressWarnings("unchecked")
     @Override
     public <T> T getFromIDCache(Class<? extends T> type, Object id) {
-        if (idCache.get(type) != null) {
-            return (T) idCache.get(type).get(id);
+        Map<Object, Object> ids = idCache.get(type);
+        if (ids == null) {
+            return null;
         }
-        return null;
+        Object ret = ids.get(id);
+        if (ret != null) {
+            synchronized (loadedIds) {
+                LoadedIds l = loadedIds.get(type);
+                if (l != null && l.isExpired(id)) {
+                    return null;
+                }
+            }
+        }
+        return (T) ret;
     }
 
 
-    @SuppressWarnings("StringBufferMayBeStringBuilder")
     @Override
-    public String getCacheKey(DBObject qo, Map<String, Integer> sort, String collection, int skip, int limit) {
-        StringBuilder b = new StringBuilder();
-        b.append(qo.toString());
-        b.append(" c:" + collection);
-        b.append(" l:");
-        b.append(limit);
-        b.append(" s:");
-        b.append(skip);
-        if (sort != null) {
-            b.append(" sort:");
-            b.append(new BasicDBObject(sort).toString());
-        }
-        return b.toString();
+    public CacheKey getCacheKey(DBObject qo, Map<String, Integer> sort, String collection, int skip, int limit) {
+        return new CacheKey(qo, sort, null, collection, skip, limit);
     }
 
     /**
@@ -197,8 +298,8 @@ public class MorphiumCacheImpl implements MorphiumCache {
      * @return the resulting cache key
      */
     @Override
-    public String getCacheKey(Query q) {
-        return getCacheKey(q.toQueryObject(), q.getSort(), q.getCollectionName(), q.getSkip(), q.getLimit());
+    public CacheKey getCacheKey(Query<?> q) {
+        return new CacheKey(q.toQueryObject(), q.getSort(), q.getReturnedFields(), q.getCollectionName(), q.getSkip(), q.getLimit());
     }
 
 
@@ -211,28 +312,120 @@ public class MorphiumCacheImpl implements MorphiumCache {
             }
         }
         if (cache.get(cls) != null) {
+            metrics.get(cls).count(CacheMetrics.EvictionReason.CLEAR, cache.get(cls).size());
+            metrics.get(cls).reset(0, 0);
             cache.get(cls).clear();
         }
         if (idCache.get(cls) != null) {
             idCache.get(cls).clear();
         }
+        synchronized (loadedIds) {
+            loadedIds.remove(cls);
+        }
         //clearCacheFor(cls);
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public int shed(int percent) {
+        Map<Class<?>, Map<CacheKey, CacheElement<?>>> snapshotCache = cache;
+        List<MemoryPressureMonitor.Candidate> candidates = new ArrayList<>();
+        for (Map.Entry<Class<?>, Map<CacheKey, CacheElement<?>>> t : snapshotCache.entrySet()) {
+            for (Map.Entry<CacheKey, CacheElement<?>> e : t.getValue().entrySet()) {
+                candidates.add(MemoryPressureMonitor.Candidate.of(t.getKey(), e.getKey(), e.getValue(), sizeEstimator));
+            }
+        }
+        List<MemoryPressureMonitor.Candidate> victims = MemoryPressureMonitor.selectVictims(candidates, percent);
+        if (victims.isEmpty()) {
+            return 0;
+        }
+        Map<Class<?>, Map<CacheKey, CacheElement<?>>> cl = cloneCache();
+        Set<Class<?>> affected = new HashSet<>();
+        for (MemoryPressureMonitor.Candidate c : victims) {
+            if (cl.get(c.getType()) == null) continue;
+            if (affected.add(c.getType())) {
+                cl.put(c.getType(), new HashMap<>(cl.get(c.getType())));
+            }
+            CacheElement<?> removed = cl.get(c.getType()).remove(c.getKey());
+            if (removed != null) {
+                metrics.get(c.getType()).removed(CacheMetrics.EvictionReason.SIZE, removed);
+            }
+        }
+        cache = cl;
+
+        //drop objects not referenced by any cached result anymore
+        Map<Class<?>, Map<Object, Object>> idc = cloneIdCache();
+        for (Class<?> type : affected) {
+            if (idc.get(type) == null) continue;
+            Set<Object> referenced = new HashSet<>();
+            for (Map.Entry<CacheKey, CacheElement<?>> e : cl.get(type).entrySet()) {
+                boolean ids = e.getValue().isIdsOnly() || e.getKey().isIdList();
+                for (Object el : (List<Object>) e.getValue().peekFound()) {
+                    referenced.add(ids ? el : annotationHelper.getId(el));
+                }
+            }
+            Map<Object, Object> remaining = new Hashtable<>();
+            for (Map.Entry<Object, Object> e : idc.get(type).entrySet()) {
+                if (referenced.contains(e.getKey())) {
+                    remaining.put(e.getKey(), e.getValue());
+                }
+            }
+            idc.put(type, remaining);
+        }
+        setIdCache(idc);
+        return victims.size();
+    }
+
     @Override
     public void resetCache() {
-        setCache(new HashMap<Class<?>, Map<String, CacheElement>>());
+        for (Map.Entry<Class<?>, Map<CacheKey, CacheElement<?>>> e : cache.entrySet()) {
+            metrics.get(e.getKey()).count(CacheMetrics.EvictionReason.CLEAR, e.getValue().size());
+        }
+        setCache(new HashMap<Class<?>, Map<CacheKey, CacheElement<?>>>());
+    }
+
+    public boolean isEstimateSizes() {
+        return estimateSizes;
     }
 
+    /**
+     * if enabled, the size of every added result is estimated and reported as bytes in the metrics. This cache has
+     * no byte budget, so this is disabled by default - shed() estimates the sizes it needs on its own
+     */
+    public void setEstimateSizes(boolean estimateSizes) {
+        this.estimateSizes = estimateSizes;
+    }
+
+    @Override
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * replaces the cache content - number of entries and bytes of the metrics are recalculated, removals need to
+     * be counted by the caller
+     */
     @Override
-    public void setCache(Map<Class<?>, Map<String, CacheElement>> cache) {
+    public void setCache(Map<Class<?>, Map<CacheKey, CacheElement<?>>> cache) {
+        for (CacheTypeMetrics m : metrics.getAll().values()) {
+            if (!cache.containsKey(m.getType())) {
+                m.reset(0, 0);
+            }
+        }
+        for (Map.Entry<Class<?>, Map<CacheKey, CacheElement<?>>> e : cache.entrySet()) {
+            long bytes = 0;
+            for (CacheElement<?> el : e.getValue().values()) {
+                bytes += el.getSize();
+            }
+            metrics.get(e.getKey()).reset(e.getValue().size(), bytes);
+        }
         this.cache = cache;
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public void removeEntryFromCache(Class cls, Object id) {
-        Map<Class<?>, Map<String, CacheElement>> c = cloneCache();
+        Map<Class<?>, Map<CacheKey, CacheElement<?>>> c = cloneCache();
         Map<Class<?>, Map<Object, Object>> idc = cloneIdCache();
         if (idc.get(cls) != null && idc.get(cls).get(id) != null) {
             for (CacheListener cl : cacheListeners) {
@@ -242,14 +435,22 @@ public class MorphiumCacheImpl implements MorphiumCache {
                 }
             }
         }
-        idc.get(cls).remove(id);
+        if (idc.get(cls) != null) {
+            idc.get(cls).remove(id);
+        }
+        if (c.get(cls) == null) {
+            setIdCache(idc);
+            return;
+        }
+        //readers might iterate the current map
+        c.put(cls, new HashMap<>(c.get(cls)));
 
-        ArrayList<String> toRemove = new ArrayList<String>();
-        for (String key : c.get(cls).keySet()) {
+        ArrayList<CacheKey> toRemove = new ArrayList<CacheKey>();
+        for (CacheKey key : c.get(cls).keySet()) {
 
             if (c.get(cls).get(key) != null) {
-                for (Object el : c.get(cls).get(key).getFound()) {
-                    Object lid = annotationHelper.getId(el);
+                for (Object el : c.get(cls).get(key).peekFound()) {
+                    Object lid = c.get(cls).get(key).isIdsOnly() || key.isIdList() ? el : annotationHelper.getId(el);
                     if (lid == null) {
                         logger.error("Null id in CACHE?");
                         toRemove.add(key);
@@ -262,13 +463,50 @@ public class MorphiumCacheImpl implements MorphiumCache {
                 logger.error("Null element in CACHE?");
             }
         }
-        for (String k : toRemove) {
-            c.get(cls).remove(k);
+        for (CacheKey k : toRemove) {
+            CacheElement<?> removed = c.get(cls).remove(k);
+            if (removed != null) {
+                metrics.get(cls).removed(CacheMetrics.EvictionReason.CLEAR, removed);
+            }
         }
-        setCache(c);
+        cache = c;
         setIdCache(idc);
     }
 
+    @Override
+    public void addToIdCache(Class<?> type, Object id, Object entity) {
+        Map<Class<?>, Map<Object, Object>> idCacheClone = cloneIdCache();
+        if (idCacheClone.get(type) == null) {
+            idCacheClone.put(type, new Hashtable<Object, Object>());
+        }
+        idCacheClone.get(type).put(id, entity);
+        setIdCache(idCacheClone);
+    }
+
+    @Override
+    public void addLoadedById(Class<?> type, Object id, Object entity) {
+        List<Object> dropped;
+        synchronized (loadedIds) {
+            LoadedIds l = loadedIds.get(type);
+            if (l == null) {
+                l = new LoadedIds(annotationHelper.getAnnotationFromHierarchy(type, Cache.class));
+                loadedIds.put(type, l);
+            }
+            dropped = l.add(id);
+        }
+        Map<Object, Object> ids = idCache.get(type);
+        if (ids == null) {
+            Map<Class<?>, Map<Object, Object>> idCacheClone = cloneIdCache();
+            ids = new Hashtable<>();
+            idCacheClone.put(type, ids);
+            setIdCache(idCacheClone);
+        }
+        ids.put(id, entity);
+        for (Object o : dropped) {
+            ids.remove(o);
+        }
+    }
+
     @Override
     public void setIdCache(Map<Class<?>, Map<Object, Object>> c) {
         idCache = c;
@@ -0,0 +1,135 @@
+package de.caluga.morphium.cache;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the retained heap size of cached results. The shallow layout of every class (header, primitive fields
+ * and references) is calculated only once and kept. Deep sizes are calculated by walking the object graph of a
+ * limited number of sample elements - the size of a list is then extrapolated from the average of the samples.
+ * <p/>
+ * This is an estimation (assuming compressed oops on a 64bit VM), not an exact measurement - but good enough to size
+ * the cache as a share of the heap.
+ */
+public class ObjectSizeEstimator {
+    private static final int HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int MAX_DEPTH = 8;
+    private static final int MAX_SAMPLES = 16;
+
+    private final ConcurrentHashMap<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<>();
+
+    /**
+     * estimated size of a cached result. Up to 16 evenly distributed elements are measured
+     *
+     * @param lst - list of entities (or ids)
+     * @return estimated size in bytes
+     */
+    public long estimate(List<?> lst) {
+        if (lst == null) return 0;
+        long base = align(HEADER + 3 * REFERENCE) + align(ARRAY_HEADER + (long) lst.size() * REFERENCE);
+        int sz = lst.size();
+        if (sz == 0) return base;
+        int samples = Math.min(sz, MAX_SAMPLES);
+        int step = sz / samples;
+        long sum = 0;
+        for (int i = 0; i < samples; i++) {
+            sum += estimate(lst.get(i * step));
+        }
+        return base + (sum / samples) * sz;
+    }
+
+    /**
+     * estimated deep size of one object
+     */
+    public long estimate(Object o) {
+        if (o == null) return 0;
+        return deepSize(o, new IdentityHashMap<Object, Boolean>(), 0);
+    }
+
+    private long deepSize(Object o, IdentityHashMap<Object, Boolean> visited, int depth) {
+        if (o == null || visited.containsKey(o)) return 0;
+        visited.put(o, Boolean.TRUE);
+        Class<?> cls = o.getClass();
+        if (cls.isEnum() || o instanceof Class) {
+            //shared instances
+            return 0;
+        }
+        if (cls.isArray()) {
+            int len = Array.getLength(o);
+            Class<?> ct = cls.getComponentType();
+            if (ct.isPrimitive()) {
+                return align(ARRAY_HEADER + (long) len * primitiveSize(ct));
+            }
+            long sz = align(ARRAY_HEADER + (long) len * REFERENCE);
+            if (depth < MAX_DEPTH) {
+                for (int i = 0; i < len; i++) {
+                    sz += deepSize(Array.get(o, i), visited, depth + 1);
+                }
+            }
+            return sz;
+        }
+        ClassLayout l = getLayout(cls);
+        long sz = l.shallowSize;
+        if (depth < MAX_DEPTH) {
+            for (Field f : l.references) {
+                try {
+                    sz += deepSize(f.get(o), visited, depth + 1);
+                } catch (IllegalAccessException ignored) {
+                }
+            }
+        }
+        return sz;
+    }
+
+    private ClassLayout getLayout(Class<?> cls) {
+        ClassLayout l = layouts.get(cls);
+        if (l == null) {
+            l = new ClassLayout(cls);
+            layouts.putIfAbsent(cls, l);
+        }
+        return l;
+    }
+
+    private static int primitiveSize(Class<?> t) {
+        if (t == long.class || t == double.class) return 8;
+        if (t == int.class || t == float.class) return 4;
+        if (t == short.class || t == char.class) return 2;
+        return 1;
+    }
+
+    private static long align(long sz) {
+        return (sz + 7) & ~7L;
+    }
+
+    private static class ClassLayout {
+        private final long shallowSize;
+        private final List<Field> references = new ArrayList<>();
+
+        private ClassLayout(Class<?> cls) {
+            long sz = HEADER;
+            Class<?> c = cls;
+            while (c != null) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers())) continue;
+                    if (f.getType().isPrimitive()) {
+                        sz += primitiveSize(f.getType());
+                    } else {
+                        sz += REFERENCE;
+                        try {
+                            f.setAccessible(true);
+                            references.add(f);
+                        } catch (SecurityException ignored) {
+                        }
+                    }
+                }
+                c = c.getSuperclass();
+            }
+            shallowSize = align(sz);
+        }
+    }
+}
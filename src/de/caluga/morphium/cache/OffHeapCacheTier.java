@@ -0,0 +1,284 @@
+package de.caluga.morphium.cache;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.Logger;
+import de.caluga.morphium.ObjectMapper;
+import org.bson.BasicBSONEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Second level cache tier keeping cached results as BSON in direct (off-heap) ByteBuffers. Entries evicted from the
+ * SegmentedMorphiumCacheImpl due to maxEntries or maxBytes limits are stored here and decoded using the ObjectMapper
+ * on a hit - trading some CPU for a higher hit rate without putting pressure on the garbage collector.
+ * <p/>
+ * The tier is limited to maxBytes of encoded data, oldest entries are dropped first. Entries keep their original
+ * creation time, so expiry works the same way as for the heap cache.
+ * <p/>
+ * Usage: <code>cfg.setOffHeapCacheBytes(512 * 1024 * 1024);</code> or
+ * <code>segmentedCache.setOffHeapTier(new OffHeapCacheTier(morphium.getMapper(), maxBytes));</code>
+ */
+public class OffHeapCacheTier {
+    private static final String LIST_FIELD = "l";
+
+    private final ObjectMapper objectMapper;
+    private final AnnotationAndReflectionHelper annotationHelper = new AnnotationAndReflectionHelper(false);
+    private final long maxBytes;
+    private long bytes;
+    private int count;
+
+    //all guarded by this
+    private final HashMap<Class<?>, TypeStore> stores = new HashMap<>();
+    private final ArrayDeque<OffHeapEntry> insertionOrder = new ArrayDeque<>();
+
+    private Logger logger = new Logger(OffHeapCacheTier.class);
+
+    public OffHeapCacheTier(ObjectMapper objectMapper, long maxBytes) {
+        this.objectMapper = objectMapper;
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return bytes currently used off heap
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * encodes the given element and stores it off heap, replacing an existing entry for the same key
+     */
+    public void put(Class<?> type, CacheKey k, CacheElement<?> e) {
+        if (e.peekFound() == null) return;
+        boolean idList = k.isIdList() || e.isIdsOnly();
+        BasicDBList lst = new BasicDBList();
+        List<Object> ids = new ArrayList<>();
+        byte[] data;
+        try {
+            for (Object o : e.peekFound()) {
+                if (idList) {
+                    lst.add(o);
+                    ids.add(o);
+                } else {
+                    lst.add(objectMapper.marshall(o));
+                    Object id = annotationHelper.getId(o);
+                    if (id != null) {
+                        ids.add(id);
+                    }
+                }
+            }
+            data = new BasicBSONEncoder().encode(new BasicDBObject(LIST_FIELD, lst));
+        } catch (Exception ex) {
+            logger.warn("Could not encode cache entry for " + type.getName() + " - not storing off heap", ex);
+            return;
+        }
+        if (data.length > maxBytes) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data);
+        OffHeapEntry entry = new OffHeapEntry(type, k, e.getCreated(), buf, ids, e.isIdsOnly());
+
+        synchronized (this) {
+            TypeStore s = stores.get(type);
+            if (s == null) {
+                s = new TypeStore();
+                stores.put(type, s);
+            }
+            removeLocked(s, k);
+            s.entries.put(k, entry);
+            for (Object id : ids) {
+                Set<CacheKey> keys = s.keysById.get(id);
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    s.keysById.put(id, keys);
+                }
+                keys.add(k);
+            }
+            bytes += data.length;
+            count++;
+            insertionOrder.add(entry);
+            if (insertionOrder.size() > 2 * count + 1000) {
+                compactInsertionOrder();
+            }
+            while (bytes > maxBytes && !insertionOrder.isEmpty()) {
+                OffHeapEntry victim = insertionOrder.poll();
+                TypeStore vs = stores.get(victim.type);
+                if (vs != null && vs.entries.get(victim.key) == victim) {
+                    removeLocked(vs, victim.key);
+                }
+            }
+        }
+    }
+
+    public synchronized boolean contains(Class<?> type, CacheKey k) {
+        TypeStore s = stores.get(type);
+        return s != null && s.entries.containsKey(k);
+    }
+
+    /**
+     * removes the entry from the tier and decodes it
+     *
+     * @return the decoded element or null, if not stored
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CacheElement<T> take(Class<? extends T> type, CacheKey k) {
+        OffHeapEntry entry;
+        synchronized (this) {
+            TypeStore s = stores.get(type);
+            if (s == null) return null;
+            entry = removeLocked(s, k);
+        }
+        if (entry == null) return null;
+
+        byte[] data = new byte[entry.data.capacity()];
+        ByteBuffer buf = entry.data.duplicate();
+        buf.rewind();
+        buf.get(data);
+        DBObject doc = new DefaultDBDecoder().decode(data, (DBCollection) null);
+        List<Object> encoded = (List<Object>) doc.get(LIST_FIELD);
+        List<T> ret = new ArrayList<>(encoded.size());
+        boolean idList = k.isIdList() || entry.idsOnly;
+        for (Object o : encoded) {
+            if (idList) {
+                ret.add((T) o);
+            } else {
+                ret.add(objectMapper.unmarshall(type, (DBObject) o));
+            }
+        }
+        CacheElement<T> e = new CacheElement<>(ret);
+        e.setCreated(entry.created);
+        e.setIdsOnly(entry.idsOnly);
+        return e;
+    }
+
+    /**
+     * @return copy of all keys stored for the type
+     */
+    public synchronized Set<CacheKey> getKeys(Class<?> type) {
+        TypeStore s = stores.get(type);
+        if (s == null) return new HashSet<>();
+        return new HashSet<>(s.entries.keySet());
+    }
+
+    public synchronized int removeEntriesContaining(Class<?> type, Object id) {
+        TypeStore s = stores.get(type);
+        if (s == null) return 0;
+        Set<CacheKey> keys = s.keysById.get(id);
+        if (keys == null) return 0;
+        int cnt = 0;
+        for (CacheKey k : new ArrayList<>(keys)) {
+            if (removeLocked(s, k) != null) {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    public synchronized void remove(Class<?> type, CacheKey k) {
+        TypeStore s = stores.get(type);
+        if (s != null) {
+            removeLocked(s, k);
+        }
+    }
+
+    /**
+     * removes all entries of the type older than validTime. Only metadata is scanned, data is not touched
+     *
+     * @return number of removed entries
+     */
+    public synchronized int expire(Class<?> type, long validTime) {
+        TypeStore s = stores.get(type);
+        if (s == null) return 0;
+        long now = System.currentTimeMillis();
+        int cnt = 0;
+        for (OffHeapEntry e : new ArrayList<>(s.entries.values())) {
+            if (now - e.created > validTime) {
+                removeLocked(s, e.key);
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    public synchronized void clear(Class<?> type) {
+        TypeStore s = stores.remove(type);
+        if (s == null) return;
+        for (OffHeapEntry e : s.entries.values()) {
+            bytes -= e.data.capacity();
+            count--;
+        }
+    }
+
+    public synchronized void clear() {
+        stores.clear();
+        insertionOrder.clear();
+        bytes = 0;
+        count = 0;
+    }
+
+    private void compactInsertionOrder() {
+        Iterator<OffHeapEntry> it = insertionOrder.iterator();
+        while (it.hasNext()) {
+            OffHeapEntry e = it.next();
+            TypeStore s = stores.get(e.type);
+            if (s == null || s.entries.get(e.key) != e) {
+                it.remove();
+            }
+        }
+    }
+
+    private OffHeapEntry removeLocked(TypeStore s, CacheKey k) {
+        OffHeapEntry e = s.entries.remove(k);
+        if (e == null) return null;
+        bytes -= e.data.capacity();
+        count--;
+        for (Object id : e.ids) {
+            Set<CacheKey> keys = s.keysById.get(id);
+            if (keys == null) continue;
+            keys.remove(k);
+            if (keys.isEmpty()) {
+                s.keysById.remove(id);
+            }
+        }
+        //stale marker in insertionOrder is skipped when polled or removed when compacting
+        return e;
+    }
+
+    private static class TypeStore {
+        private final HashMap<CacheKey, OffHeapEntry> entries = new HashMap<>();
+        private final HashMap<Object, Set<CacheKey>> keysById = new HashMap<>();
+    }
+
+    private static class OffHeapEntry {
+        private final Class<?> type;
+        private final CacheKey key;
+        private final long created;
+        private final ByteBuffer data;
+        private final List<Object> ids;
+        private final boolean idsOnly;
+
+        private OffHeapEntry(Class<?> type, CacheKey key, long created, ByteBuffer data, List<Object> ids, boolean idsOnly) {
+            this.type = type;
+            this.key = key;
+            this.created = created;
+            this.data = data;
+            this.ids = ids;
+            this.idsOnly = idsOnly;
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package de.caluga.morphium.cache;
+
+import com.mongodb.DBObject;
+import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.Logger;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.query.Query;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * MorphiumCache implementation using one concurrent segment per entity type instead of copying the whole cache on
+ * every modification (like MorphiumCacheImpl does). Inserts, lookups and removals are O(1) and do not create garbage
+ * apart from the cache element itself.
+ * <p/>
+ * maxEntries and the ClearStrategy of @Cache are enforced on insert, expiry is done incrementally by the
+ * CacheHousekeeper calling expire().
+ * <p/>
+ * Memory usage can be limited per type (@Cache maxBytes) and globally (setMaxBytes, or maxCacheBytes in the
+ * MorphiumConfig). If the global budget is exceeded, entries are evicted from the biggest segment according to its
+ * ClearStrategy.
+ * <p/>
+ * For types using ResultMode.IDS only the ids of a result are stored per entry, the objects are kept once in the id
+ * cache. Results are rebuilt from the id cache on access - if objects are missing, null is returned and the query
+ * needs to read the missing objects (see QueryImpl).
+ * <p/>
+ * Optionally entries evicted due to those limits are moved to an OffHeapCacheTier and promoted back to the heap on a
+ * hit. Promoted entries keep their creation time, so they are not valid longer than the timeout of the type (expiry
+ * might delay the removal of promoted entries for up to one more timeout period).
+ * <p/>
+ * Usage: <code>cfg.setCache(new SegmentedMorphiumCacheImpl());</code>
+ *
+ * @see CacheSegment
+ */
+public class SegmentedMorphiumCacheImpl implements EvictingMorphiumCache {
+    private final ConcurrentHashMap<Class<?>, CacheSegment> segments;
+    private AnnotationAndReflectionHelper annotationHelper = new AnnotationAndReflectionHelper(false); //only used to get id's and annotations, camalcase conversion never happens
+
+    private List<CacheListener> cacheListeners;
+    private final ObjectSizeEstimator sizeEstimator = new ObjectSizeEstimator();
+    private final DocumentMatcher documentMatcher = new DocumentMatcher();
+    private final CacheMetrics metrics = new CacheMetrics();
+    private volatile long maxBytes = -1;
+    private volatile boolean estimateSizes = false;
+    private volatile OffHeapCacheTier offHeapTier;
+    private final CacheEvictionListener evictionListener = new CacheEvictionListener() {
+        @Override
+        public void onEviction(Class<?> type, CacheKey k, CacheElement<?> e) {
+            OffHeapCacheTier t = offHeapTier;
+            if (t != null) {
+                t.put(type, k, e);
+            }
+        }
+    };
+
+    private Logger logger = new Logger(SegmentedMorphiumCacheImpl.class);
+
+    public SegmentedMorphiumCacheImpl() {
+        segments = new ConcurrentHashMap<>();
+        cacheListeners = new CopyOnWriteArrayList<>();
+    }
+
+    public SegmentedMorphiumCacheImpl(long maxBytes) {
+        this();
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * global limit for the estimated size of all cached results. Sizes are only estimated while a limit is set, so it
+     * should be set before results are added
+     *
+     * @param maxBytes - max size in bytes, -1 for unlimited
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isEstimateSizes() {
+        return estimateSizes;
+    }
+
+    /**
+     * if enabled, the size of every added result is estimated and reported as bytes in the metrics, even without a
+     * byte budget. Estimating walks the whole result, so it is only done by default for types with @Cache maxBytes or
+     * when the global maxBytes is set
+     */
+    public void setEstimateSizes(boolean estimateSizes) {
+        this.estimateSizes = estimateSizes;
+    }
+
+    public OffHeapCacheTier getOffHeapTier() {
+        return offHeapTier;
+    }
+
+    /**
+     * sets the second level tier, evicted entries are moved to. Null disables the tier
+     */
+    public void setOffHeapTier(OffHeapCacheTier offHeapTier) {
+        OffHeapCacheTier old = this.offHeapTier;
+        this.offHeapTier = offHeapTier;
+        if (old != null && old != offHeapTier) {
+            old.clear();
+        }
+    }
+
+    /**
+     * @return estimated size of all cached results in bytes
+     */
+    public long getBytes() {
+        long ret = 0;
+        for (CacheSegment s : segments.values()) {
+            ret += s.getBytes();
+        }
+        return ret;
+    }
+
+    @Override
+    public void addCacheListener(CacheListener cl) {
+        cacheListeners.add(cl);
+    }
+
+    @Override
+    public boolean isListenerRegistered(CacheListener cl) {
+        return cacheListeners.contains(cl);
+    }
+
+    @Override
+    public void removeCacheListener(CacheListener cl) {
+        cacheListeners.remove(cl);
+    }
+
+    /**
+     * returns the segment for the given type
+     *
+     * @param type   - entity type
+     * @param create - create segment, if not there yet
+     * @return segment or null, if none exists and create is false
+     */
+    public CacheSegment getSegment(Class<?> type, boolean create) {
+        CacheSegment s = segments.get(type);
+        if (s == null && create) {
+            s = new CacheSegment(type, annotationHelper);
+            s.setEvictionListener(evictionListener);
+            s.setMetrics(metrics.get(type));
+            CacheSegment old = segments.putIfAbsent(type, s);
+            if (old != null) {
+                s = old;
+            }
+        }
+        return s;
+    }
+
+    @Override
+    public Set<Class<?>> getCachedTypes() {
+        return segments.keySet();
+    }
+
+    @Override
+    public int expire(Class<?> type, long validTime) {
+        OffHeapCacheTier t = offHeapTier;
+        int ret = 0;
+        if (t != null) {
+            ret += t.expire(type, validTime);
+        }
+        CacheSegment s = segments.get(type);
+        if (s == null) return ret;
+        return ret + s.expire(validTime);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> void addToCache(CacheKey k, Class<? extends T> type, List<T> ret) {
+        if (k == null) {
+            return;
+        }
+        CacheObject<T> co = new CacheObject<T>();
+        co.setKey(k);
+        co.setType(type);
+        co.setResult(ret);
+        for (CacheListener cl : cacheListeners) {
+            co = cl.wouldAddToCache(co);
+            if (co == null) {
+                return;
+            }
+        }
+        CacheSegment s = getSegment(type, true);
+        CacheElement<?> e;
+        List<T> entities = null;
+        Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+        if (!k.isIdList() && c != null && c.resultMode().equals(Cache.ResultMode.IDS)) {
+            List<Object> ids = new ArrayList<>(ret.size());
+            for (T o : ret) {
+                ids.add(annotationHelper.getId(o));
+            }
+            e = new CacheElement<>(ids);
+            e.setIdsOnly(true);
+            if (k.getProjection() == null) {
+                //partial objects must not be returned for other queries
+                entities = ret;
+            }
+        } else {
+            e = new CacheElement<T>(ret);
+        }
+        e.setLru(System.currentTimeMillis());
+        OffHeapCacheTier t = offHeapTier;
+        if (t != null) {
+            t.remove(type, k);
+        }
+        store(s, k, e, entities);
+    }
+
+    private void store(CacheSegment s, CacheKey k, CacheElement<?> e, List<?> entities) {
+        if (estimateSizes || maxBytes > 0 || s.getMaxBytes() > 0) {
+            e.setSize(sizeEstimator.estimate(e.peekFound()));
+        }
+        s.put(k, e, entities);
+        if (maxBytes > 0) {
+            enforceGlobalLimit();
+        }
+    }
+
+    private void enforceGlobalLimit() {
+        long over = getBytes() - maxBytes;
+        while (over > 0) {
+            CacheSegment biggest = null;
+            for (CacheSegment s : segments.values()) {
+                if (biggest == null || s.getBytes() > biggest.getBytes()) {
+                    biggest = s;
+                }
+            }
+            if (biggest == null || biggest.getBytes() == 0) {
+                return;
+            }
+            long freed = biggest.evictBytes(over);
+            if (freed == 0) {
+                return;
+            }
+            over -= freed;
+        }
+    }
+
+    @Override
+    public void clearCacheIfNecessary(Class cls) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class);
+        if (c != null) {
+            if (c.clearOnWrite()) {
+                clearCachefor(cls);
+            }
+        }
+    }
+
+    @Override
+    public void clearCacheIfNecessary(Class cls, Object id, DBObject doc) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class);
+        if (c == null || !c.clearOnWrite()) {
+            return;
+        }
+        for (CacheListener l : cacheListeners) {
+            if (!l.wouldClearCache(cls)) {
+                logger.info("Not clearing cache due to veto of cache listener " + l.getClass().getName());
+                return;
+            }
+        }
+        CacheSegment s = segments.get(cls);
+        OffHeapCacheTier t = offHeapTier;
+        if (id != null) {
+            //results containing the old version
+            if (s != null) {
+                s.removeEntriesContaining(id);
+            }
+            if (t != null) {
+                t.removeEntriesContaining(cls, id);
+            }
+        }
+        if (s != null) {
+            for (CacheKey k : new ArrayList<>(s.getEntries().keySet())) {
+                if (affects(k, doc)) {
+                    s.remove(k);
+                }
+            }
+        }
+        if (t != null) {
+            for (CacheKey k : t.getKeys(cls)) {
+                if (affects(k, doc)) {
+                    t.remove(cls, k);
+                }
+            }
+        }
+    }
+
+    /**
+     * results of queries with skip might shift, no matter where the document was or is now
+     */
+    private boolean affects(CacheKey k, DBObject doc) {
+        return k.getSkip() > 0 || documentMatcher.matches(k.getQuery(), doc) != DocumentMatcher.Result.NO_MATCH;
+    }
+
+    @Override
+    public boolean isCached(Class<?> type, CacheKey k) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+        if (c == null || !c.readCache()) {
+            return false;
+        }
+        CacheSegment s = segments.get(type);
+        if (s != null) {
+            CacheElement<?> e = s.get(k);
+            if (e != null && e.getFound() != null) {
+                return true;
+            }
+        }
+        OffHeapCacheTier t = offHeapTier;
+        return t != null && t.contains(type, k);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getFromCache(Class<? extends T> type, CacheKey k) {
+        CacheSegment s = segments.get(type);
+        CacheElement<?> e = s == null ? null : s.get(k);
+        if (e == null) {
+            OffHeapCacheTier t = offHeapTier;
+            if (t == null) return null;
+            e = t.take(type, k);
+            if (e == null) return null;
+            //promoting back to heap
+            s = getSegment(type, true);
+            store(s, k, e, null);
+        }
+        e.setLru(System.currentTimeMillis());
+        if (e.isIdsOnly()) {
+            List<?> ids = e.getFound();
+            List<T> ret = new ArrayList<>(ids.size());
+            for (Object id : ids) {
+                Object o = s.getById(id);
+                if (o == null) {
+                    //incomplete
+                    return null;
+                }
+                ret.add((T) o);
+            }
+            return ret;
+        }
+        return (List<T>) e.getFound();
+    }
+
+    @Override
+    public CacheElement<?> getCacheElement(Class<?> type, CacheKey k) {
+        CacheSegment s = segments.get(type);
+        if (s == null) return null;
+        return s.getEntries().get(k);
+    }
+
+    /**
+     * creates a snapshot of the current cache content. Is O(n) - should not be used in hot paths!
+     */
+    @Override
+    public Map<Class<?>, Map<CacheKey, CacheElement<?>>> cloneCache() {
+        HashMap<Class<?>, Map<CacheKey, CacheElement<?>>> ret = new HashMap<>();
+        for (Map.Entry<Class<?>, CacheSegment> e : segments.entrySet()) {
+            ret.put(e.getKey(), new HashMap<>(e.getValue().getEntries()));
+        }
+        return ret;
+    }
+
+    /**
+     * creates a snapshot of the current id cache content. Is O(n) - should not be used in hot paths!
+     */
+    @Override
+    public Map<Class<?>, Map<Object, Object>> cloneIdCache() {
+        HashMap<Class<?>, Map<Object, Object>> ret = new HashMap<>();
+        for (Map.Entry<Class<?>, CacheSegment> e : segments.entrySet()) {
+            ret.put(e.getKey(), new HashMap<>(e.getValue().getIds()));
+        }
+        return ret;
+    }
+
+    @Override
+    public void addToIdCache(Class<?> type, Object id, Object entity) {
+        CacheSegment s = segments.get(type);
+        if (s != null) {
+            s.putIdIfReferenced(id, entity);
+        }
+    }
+
+    @Override
+    public void addLoadedById(Class<?> type, Object id, Object entity) {
+        getSegment(type, true).putLoadedById(id, entity);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T getFromIDCache(Class<? extends T> type, Object id) {
+        CacheSegment s = segments.get(type);
+        if (s == null) return null;
+        return (T) s.getById(id);
+    }
+
+    @Override
+    public CacheKey getCacheKey(DBObject qo, Map<String, Integer> sort, String collection, int skip, int limit) {
+        return new CacheKey(qo, sort, null, collection, skip, limit);
+    }
+
+    @Override
+    public CacheKey getCacheKey(Query<?> q) {
+        return new CacheKey(q.toQueryObject(), q.getSort(), q.getReturnedFields(), q.getCollectionName(), q.getSkip(), q.getLimit());
+    }
+
+    @Override
+    public void clearCachefor(Class<?> cls) {
+        for (CacheListener cl : cacheListeners) {
+            if (!cl.wouldClearCache(cls)) {
+                logger.info("Not clearing cache due to veto of cache listener " + cl.getClass().getName());
+                return;
+            }
+        }
+        CacheSegment s = segments.get(cls);
+        if (s != null) {
+            s.clear();
+        }
+        OffHeapCacheTier t = offHeapTier;
+        if (t != null) {
+            t.clear(cls);
+        }
+    }
+
+    /**
+     * shed results are just removed, not moved to the off heap tier - encoding them would need even more memory
+     */
+    @Override
+    public int shed(int percent) {
+        List<MemoryPressureMonitor.Candidate> candidates = new ArrayList<>();
+        for (CacheSegment s : segments.values()) {
+            for (Map.Entry<CacheKey, CacheElement<?>> e : s.getEntries().entrySet()) {
+                candidates.add(MemoryPressureMonitor.Candidate.of(s.getType(), e.getKey(), e.getValue(), sizeEstimator));
+            }
+        }
+        int removed = 0;
+        for (MemoryPressureMonitor.Candidate c : MemoryPressureMonitor.selectVictims(candidates, percent)) {
+            CacheSegment s = segments.get(c.getType());
+            if (s != null && s.remove(c.getKey(), CacheMetrics.EvictionReason.SIZE) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void resetCache() {
+        for (CacheSegment s : segments.values()) {
+            s.clear();
+        }
+        segments.clear();
+        OffHeapCacheTier t = offHeapTier;
+        if (t != null) {
+            t.clear();
+        }
+    }
+
+    /**
+     * replaces the cached query results of all types - id caches are kept
+     *
+     * @param cache - new cache content
+     */
+    @Override
+    public void setCache(Map<Class<?>, Map<CacheKey, CacheElement<?>>> cache) {
+        for (Map.Entry<Class<?>, CacheSegment> e : segments.entrySet()) {
+            if (!cache.containsKey(e.getKey())) {
+                e.getValue().setEntries(new HashMap<CacheKey, CacheElement<?>>());
+            }
+        }
+        for (Map.Entry<Class<?>, Map<CacheKey, CacheElement<?>>> e : cache.entrySet()) {
+            getSegment(e.getKey(), true).setEntries(e.getValue());
+        }
+    }
+
+    @Override
+    public void setIdCache(Map<Class<?>, Map<Object, Object>> c) {
+        for (Map.Entry<Class<?>, CacheSegment> e : segments.entrySet()) {
+            if (!c.containsKey(e.getKey())) {
+                e.getValue().setIds(new HashMap<>());
+            }
+        }
+        for (Map.Entry<Class<?>, Map<Object, Object>> e : c.entrySet()) {
+            getSegment(e.getKey(), true).setIds(e.getValue());
+        }
+    }
+
+    @Override
+    public void removeEntryFromCache(Class cls, Object id) {
+        OffHeapCacheTier t = offHeapTier;
+        CacheSegment s = segments.get(cls);
+        if (s == null) {
+            if (t != null) {
+                t.removeEntriesContaining(cls, id);
+            }
+            return;
+        }
+        Object entity = s.getById(id);
+        if (entity != null) {
+            for (CacheListener cl : cacheListeners) {
+                if (!cl.wouldRemoveEntryFromCache(cls, id, entity)) {
+                    logger.info("Not removing from cache due to veto from CacheListener " + cl.getClass().getName());
+                    return;
+                }
+            }
+        }
+        s.removeEntriesContaining(id);
+        if (t != null) {
+            t.removeEntriesContaining(cls, id);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure, that concurrent cache misses for the same cache key only cause one single read from mongo. The first
+ * thread missing the cache runs the loader, all others arriving while the load is in flight wait for it and share
+ * the result. If waiting takes longer than the timeout, the waiting thread loads the data itself.
+ * <p/>
+ * Background refreshes (refresh ahead, stale while revalidate) are registered as in flight loads as well - so there
+ * is only one refresh per key at a time and misses during the refresh wait for it.
+ */
+public class SingleFlightLoader {
+    private final ConcurrentHashMap<List<Object>, Flight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private volatile CacheMetrics metrics;
+
+    private Logger logger = new Logger(SingleFlightLoader.class);
+
+    /**
+     * runs the loader, unless a load for the same type and key is already running. In that case, wait for its result.
+     * As results are shared, all loaders for one key need to return the same kind of result (the list of the query).
+     *
+     * @param type    - entity type
+     * @param k       - cache key
+     * @param loader  - reads the data from mongo (and usually adds it to the cache)
+     * @param timeout - max time to wait for a running load in ms, if &lt;=0 no coalescing is done
+     * @return the loaded data
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T load(Class<?> type, CacheKey k, Callable<T> loader, long timeout) {
+        if (timeout <= 0 || k == null) {
+            return call(loader);
+        }
+        List<Object> flightKey = Arrays.asList(type, k);
+        Flight f = new Flight();
+        Flight running = inFlight.putIfAbsent(flightKey, f);
+        if (running == null) {
+            loads.incrementAndGet();
+            try {
+                f.result = call(loader);
+                return (T) f.result;
+            } catch (RuntimeException e) {
+                f.error = e;
+                throw e;
+            } finally {
+                inFlight.remove(flightKey, f);
+                f.done.countDown();
+            }
+        }
+
+        try {
+            if (!running.done.await(timeout, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                logger.warn("Timeout waiting for running load of " + type.getName() + " - loading myself");
+                return call(loader);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return call(loader);
+        }
+        if (running.error != null) {
+            //the leader failed - try it ourselves
+            return call(loader);
+        }
+        coalesced.incrementAndGet();
+        CacheMetrics m = metrics;
+        if (m != null) {
+            m.get(type).coalescedMiss();
+        }
+        return (T) running.result;
+    }
+
+    /**
+     * runs the loader in background, unless a load for the same type and key is already running
+     *
+     * @param executor - executor to run the load, if it rejects the task, no refresh is done
+     * @return true, if the refresh was started
+     */
+    public boolean refreshAsync(Class<?> type, CacheKey k, final Callable<?> loader, Executor executor) {
+        final List<Object> flightKey = Arrays.asList(type, k);
+        final Flight f = new Flight();
+        if (inFlight.putIfAbsent(flightKey, f) != null) {
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        f.result = call(loader);
+                    } catch (RuntimeException e) {
+                        logger.warn("Background refresh failed", e);
+                        f.error = e;
+                    } finally {
+                        inFlight.remove(flightKey, f);
+                        f.done.countDown();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            f.error = e;
+            inFlight.remove(flightKey, f);
+            f.done.countDown();
+            return false;
+        }
+        refreshes.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * coalesced misses are reported to these metrics per type
+     */
+    public void setMetrics(CacheMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private <T> T call(Callable<T> loader) {
+        try {
+            return loader.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return number of loads actually executed
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * @return number of requests, that were served by a load of another thread
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return number of requests, that gave up waiting and loaded themselves
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return number of background refreshes started
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private static class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Object result;
+        private volatile RuntimeException error;
+    }
+}
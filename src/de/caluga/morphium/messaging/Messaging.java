@@ -1,21 +1,18 @@
 package de.caluga.morphium.messaging;
 
+import com.mongodb.*;
 import de.caluga.morphium.Logger;
 import de.caluga.morphium.Morphium;
-import de.caluga.morphium.MorphiumSingleton;
 import de.caluga.morphium.ShutdownListener;
 import de.caluga.morphium.async.AsyncOperationCallback;
 import de.caluga.morphium.async.AsyncOperationType;
-import de.caluga.morphium.query.MorphiumIterator;
 import de.caluga.morphium.query.Query;
+import org.bson.types.ObjectId;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 /**
  * User: Stephan Bösebeck
@@ -23,13 +20,19 @@ import java.util.concurrent.TimeUnit;
  * Time: 15:48
  * <p/>
  * Messaging implements a simple, threadsafe and messaging api. Used for cache synchronization.
+ * <p/>
+ * By default new messages are found by polling every <code>pause</code> ms. With push delivery enabled, every stored
+ * message is signalled in a small capped collection (collection name + "_signal"), which is followed using a tailable
+ * cursor - processing starts as soon as a message is stored. Locking and processing of the messages stay the same,
+ * the signal just triggers the next cycle. Polling every <code>pause</code> ms is kept as fallback for messages
+ * stored without signal (e.g. by nodes not using push delivery).
  */
 @SuppressWarnings({"ConstantConditions", "unchecked", "UnusedDeclaration"})
 public class Messaging extends Thread implements ShutdownListener {
     private static Logger log = new Logger(Messaging.class);
 
     private Morphium morphium;
-    private boolean running;
+    private volatile boolean running;
     private int pause = 5000;
     private String id;
     private boolean autoAnswer = false;
@@ -41,11 +44,41 @@ public class Messaging extends Thread implements ShutdownListener {
     private Map<String, List<MessageListener>> listenerByName;
     private String queueName;
 
-    private ThreadPoolExecutor threadPool;
+    private volatile ThreadPoolExecutor threadPool;
 
     private boolean multithreadded = false;
     private int windowSize = 1000;
 
+    private volatile ThreadPoolExecutor[] partitionLanes;
+    //partitions set while running, applied between two batches (-1 if none)
+    private volatile int requestedPartitions = -1;
+
+    private int[] priorityWeights;
+
+    //running messagings with loopback enabled by morphium instance and queue
+    private static final Map<Morphium, Map<String, List<Messaging>>> localMessagings = new IdentityHashMap<>();
+    private boolean loopback = false;
+    private boolean loopbackPersistent = false;
+    private final LinkedBlockingQueue<Msg> localQueue = new LinkedBlockingQueue<>();
+    private int loopbackCounter = 0;
+
+    //per priority: all broadcasts up to this sequence number were processed
+    private final long[] broadcastSeq = new long[MsgPriority.values().length];
+    //per priority: broadcasts with higher sequence numbers already processed
+    private final List<TreeSet<Long>> broadcastsSeen = new ArrayList<>();
+    private final long[] broadcastGapSince = new long[MsgPriority.values().length];
+    //per priority: read position stored in the sequence collection, only for sender ids set explicitly
+    private final long[] savedBroadcastSeq = new long[MsgPriority.values().length];
+    private boolean persistentSenderId = false;
+    private long broadcastGapTimeout = 10000;
+    private final int[] claimCredits = new int[MsgPriority.values().length];
+
+    private boolean pushDelivery = false;
+    private int signalCollectionSize = 1024 * 1024;
+    private final Object signalMonitor = new Object();
+    private boolean signalled = false;
+    private Thread signalTailer;
+
 
     /**
      * attaches to the default queue named "msg"
@@ -77,9 +110,11 @@ public class Messaging extends Thread implements ShutdownListener {
 
 
         if (multithreadded) {
+            //bounded queue - if all threads are busy and the queue is full, the dispatching thread waits for a free slot
             threadPool = new ThreadPoolExecutor(morphium.getConfig().getThreadPoolMessagingCoreSize(), morphium.getConfig().getThreadPoolMessagingMaxSize(),
                     morphium.getConfig().getThreadPoolMessagingKeepAliveTime(), TimeUnit.MILLISECONDS,
-                    new LinkedBlockingQueue<Runnable>());
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, morphium.getConfig().getThreadPoolMessagingQueueSize())),
+                    new WaitForSlotPolicy());
         }
         morphium.addShutdownListener(this);
 
@@ -108,6 +143,9 @@ public class Messaging extends Thread implements ShutdownListener {
 //            log.error("Could not ensure indices", e);
 //        }
 
+        for (MsgPriority p : MsgPriority.values()) {
+            broadcastsSeen.add(new TreeSet<Long>());
+        }
         listeners = new CopyOnWriteArrayList<>();
         listenerByName = new HashMap<String, List<MessageListener>>();
     }
@@ -116,172 +154,146 @@ public class Messaging extends Thread implements ShutdownListener {
         if (log.isDebugEnabled()) {
             log.debug("Messaging " + id + " started");
         }
-        Map<String, Object> values = new HashMap<String, Object>();
+        if (pushDelivery) {
+            startSignalTailer();
+        }
+        if (loopback) {
+            registerLocal();
+        }
+        initBroadcastSeq();
         while (running) {
-
+            int partitions = requestedPartitions;
+            if (partitions >= 0) {
+                //all lanes are idle between batches
+                requestedPartitions = -1;
+                createPartitions(partitions);
+            }
+            boolean found = false;
+            boolean more = false;
             try {
-                Query<Msg> q = morphium.createQueryFor(Msg.class);
-                q.setCollectionName(getCollectionName());
-//                //removing all outdated stuff
-//                q = q.where("this.ttl<" + System.currentTimeMillis() + "-this.timestamp");
-//                if (log.isDebugEnabled() && q.countAll() > 0) {
-//                    log.debug("Deleting outdate messages: " + q.countAll());
-//                }
-//                morphium.remove(q);
-//                q = q.q();
-                //locking messages...
-                q.or(q.q().f(Msg.Fields.sender).ne(id).f(Msg.Fields.lockedBy).eq(null).f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(null),
-                        q.q().f(Msg.Fields.sender).ne(id).f(Msg.Fields.lockedBy).eq(null).f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(id));
-                values.put("locked_by", id);
-                values.put("locked", System.currentTimeMillis());
-                morphium.set(q, values, false, processMultiple);
-                q = q.q();
-                q.or(q.q().f(Msg.Fields.lockedBy).eq(id),
-                        q.q().f(Msg.Fields.lockedBy).eq("ALL").f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(id),
-                        q.q().f(Msg.Fields.lockedBy).eq("ALL").f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(null));
-                q.sort(Msg.Fields.timestamp);
-
-//                List<Msg> messages = q.asList();
-                MorphiumIterator<Msg> messages = q.asIterable(windowSize);
-                messages.setMultithreaddedAccess(multithreadded);
-
-                final List<Msg> toStore = new ArrayList<>();
-                final List<Runnable> toExec = new ArrayList<>();
-//                int count=0;
-                for (final Msg m : messages) {
-//                    count++;
-//                    System.out.println("Processing message " + count);
-                    Runnable r = new Runnable() {
-                        @Override
-                        public void run() {
-                            if (m.getProcessedBy() != null && m.getProcessedBy().contains(id)) {
-                                log.fatal("Was already processed - ERROR?");
-                                throw new RuntimeException("was already processed - error on mongo query result!");
-                            }
-                            final Msg msg = morphium.reread(m, getCollectionName()); //make sure it's current version in DB
-//                            System.out.println("Processing message "+msg.getMsgId()+ " / "+m.getMsgId());
-                            if (msg == null) {
-                                return; //was deleted
-                            }
-                            if (msg.getProcessedBy() != null && msg.getProcessedBy().contains(id)) {
-                                log.info("Was already processed - multithreadding?");
-                                return;
-                            }
-                            if (!msg.getLockedBy().equals(id) && !msg.getLockedBy().equals("ALL")) {
-                                //over-locked by someone else
-                                return;
-                            }
-                            if (msg.getTtl() < System.currentTimeMillis() - msg.getTimestamp()) {
-                                //Delete outdated msg!
-                                log.info("Found outdated message - deleting it!");
-                                morphium.delete(msg, getCollectionName());
-                                return;
-                            }
-                            try {
-                                for (MessageListener l : listeners) {
-                                    Msg answer = l.onMessage(Messaging.this, msg);
-                                    if (autoAnswer && answer == null) {
-                                        answer = new Msg(msg.getName(), "received", "");
-                                    }
-                                    if (answer != null) {
-                                        msg.sendAnswer(Messaging.this, answer);
-                                    }
-                                }
-
-                                if (listenerByName.get(msg.getName()) != null) {
-                                    for (MessageListener l : listenerByName.get(msg.getName())) {
-                                        Msg answer = l.onMessage(Messaging.this, msg);
-                                        if (autoAnswer && answer == null) {
-                                            answer = new Msg(msg.getName(), "received", "");
-                                        }
-                                        if (answer != null) {
-                                            msg.setDeleteAt(new Date(System.currentTimeMillis() + msg.getTtl()));
-                                            msg.sendAnswer(Messaging.this, answer);
-                                        }
-                                    }
-                                }
-                            } catch (Throwable t) {
-//                        msg.addAdditional("Processing of message failed by "+getSenderId()+": "+t.getMessage());
-                                log.error("Processing failed", t);
-                            }
-
-//                            if (msg.getType().equals(MsgType.SINGLE)) {
-//                                //removing it
-//                                morphium.delete(msg, getCollectionName());
-//                            }
-                            //updating it to be processed by others...
-                            if (msg.getLockedBy().equals("ALL")) {
-                                toExec.add(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        Query<Msg> idq = MorphiumSingleton.get().createQueryFor(Msg.class);
-                                        idq.setCollectionName(getCollectionName());
-                                        idq.f(Msg.Fields.msgId).eq(msg.getMsgId());
-
-                                        MorphiumSingleton.get().push(idq, Msg.Fields.processedBy, id);
-                                    }
-                                });
-
-                            } else {
-                                //Exclusive message
-                                msg.addProcessedId(id);
-                                msg.setLockedBy(null);
-                                msg.setLocked(0);
-                                toStore.add(msg);
-                            }
-                        }
-                    };
+                final List<Object> processed = Collections.synchronizedList(new ArrayList<>());
+                final List<Object> outdated = Collections.synchronizedList(new ArrayList<>());
+                final List<Future<?>> futures = new ArrayList<>();
+                //messages sent in this JVM and sequenced broadcasts, they are not acknowledged in mongo
+                List<Object> notStored = Collections.synchronizedList(new ArrayList<>());
+                List<Msg> local = new ArrayList<>();
+                localQueue.drainTo(local);
+                for (Msg m : local) {
+                    found = true;
+                    dispatch(m, createProcessor(m, notStored, notStored), futures);
+                }
+                Msg claimed = null;
+                if (processMultiple) {
+                    //locking messages...
+                    Query<Msg> q = morphium.createQueryFor(Msg.class);
+                    q.setCollectionName(getCollectionName());
+                    q.or(q.q().f(Msg.Fields.sender).ne(id).f(Msg.Fields.lockedBy).eq(null).f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(null),
+                            q.q().f(Msg.Fields.sender).ne(id).f(Msg.Fields.lockedBy).eq(null).f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(id));
+                    Map<String, Object> values = new HashMap<String, Object>();
+                    values.put("locked_by", id);
+                    values.put("locked", System.currentTimeMillis());
+                    morphium.set(q, values, false, true);
+                } else {
+                    claimed = claimOne();
+                }
+                if (claimed != null) {
+                    found = true;
+                    dispatch(claimed, createProcessor(claimed, processed, outdated), futures);
+                }
 
+                //every priority gets its weighted share of the window, processed from HIGH to LOW
+                //unused shares are passed on to the lower priorities
+                int budget = windowSize;
+                int weightLeft = 0;
+                for (MsgPriority p : MsgPriority.values()) {
+                    weightLeft += getPriorityWeight(p);
+                }
+                for (MsgPriority p : MsgPriority.values()) {
+                    int w = getPriorityWeight(p);
+                    int quota = budget <= 0 || weightLeft <= w ? budget : Math.max(1, budget * w / weightLeft);
+                    weightLeft -= w;
+                    if (quota <= 0) {
+                        more = true;
+                        continue;
+                    }
+                    Query<Msg> q = morphium.createQueryFor(Msg.class);
+                    q.setCollectionName(getCollectionName());
+                    //broadcasts newer than the last processed sequence number, that were not seen yet
+                    Query<Msg> sequenced = q.q().f(Msg.Fields.lockedBy).eq("ALL").f(Msg.Fields.recipient).eq(null).f(Msg.Fields.seq).gt(broadcastSeq[p.ordinal()]);
+                    if (!broadcastsSeen.get(p.ordinal()).isEmpty()) {
+                        sequenced.f(Msg.Fields.seq).nin(new ArrayList<>(broadcastsSeen.get(p.ordinal())));
+                    }
+                    //all messages locked by this node, broadcasts to this node and new broadcasts - locks are only
+                    //released by acknowledging
+                    q.or(q.q().f(Msg.Fields.lockedBy).eq(id).f(Msg.Fields.processedBy).ne(id),
+                            q.q().f(Msg.Fields.lockedBy).eq("ALL").f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(id),
+                            sequenced,
+                            //broadcasts of nodes not using sequence numbers
+                            q.q().f(Msg.Fields.lockedBy).eq("ALL").f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(null).f(Msg.Fields.seq).eq(null));
+                    addPriorityFilter(q, p);
+                    if (claimed != null) {
+                        q.f(Msg.Fields.msgId).ne(claimed.getMsgId());
+                    }
+                    //msgId as tie breaker keeps the order of messages sent within the same ms
+                    q.sort(Msg.Fields.timestamp, Msg.Fields.msgId);
+                    q.limit(quota);
 
-                    if (multithreadded) {
-                        boolean queued = false;
-                        while (!queued) {
-                            try {
-                                threadPool.execute(r);
-                                queued = true;
-                            } catch (Throwable e) {
+                    List<Msg> messages = q.asList();
+                    for (final Msg m : messages) {
+                        if (m.getSeq() != null && m.getRecipient() == null && "ALL".equals(m.getLockedBy())) {
+                            //sequenced broadcast - not acknowledged, only the sequence number is remembered
+                            if (!broadcastsSeen.get(p.ordinal()).add(m.getSeq()) || m.getProcessedBy() != null && m.getProcessedBy().contains(id)) {
+                                //seen before or own message / delivered locally
+                                continue;
                             }
+                            dispatch(m, createProcessor(m, notStored, outdated), futures);
+                        } else {
+                            dispatch(m, createProcessor(m, processed, outdated), futures);
                         }
-                    } else {
-                        r.run();
+                        found = true;
+                    }
+                    if (messages.size() == quota) {
+                        //there might be more - messages skipped here are not fetched again
+                        more = true;
                     }
+                    budget -= messages.size();
+                    advanceBroadcastSeq(p);
                 }
 
                 //wait for all threads to finish
-                if (multithreadded) {
-                    while (threadPool != null && threadPool.getActiveCount() > 0) {
-                        Thread.sleep(100);
-                    }
-                }
-                morphium.storeList(toStore, getCollectionName());
-                for (Runnable r : toExec) {
-                    if (multithreadded) {
-                        boolean queued = false;
-                        while (!queued) {
-                            try {
-                                threadPool.execute(r);
-                                queued = true;
-                            } catch (Throwable t) {
-                            }
-                        }
-                    } else {
-                        r.run();
-                    }
+                boolean finished = true;
+                for (Future<?> f : futures) {
+                    waitFor(f);
+                    finished = finished && f.isDone() && !f.isCancelled();
                 }
-                while (morphium.getWriteBufferCount() > 0) {
-                    Thread.sleep(100);
+                acknowledge(processed, outdated);
+                if (finished) {
+                    saveBroadcastSeq();
                 }
             } catch (Throwable e) {
                 log.error("Unhandled exception " + e.getMessage(), e);
             } finally {
                 try {
-                    sleep(pause);
+                    if (more) {
+                        //quota of a priority exceeded - continue right away
+                    } else if (pushDelivery) {
+                        //there might be more messages than signals processed - only wait if there was nothing to do
+                        if (!found) {
+                            waitForSignal();
+                        }
+                    } else {
+                        //woken up early by local messages
+                        waitForSignal();
+                    }
                 } catch (InterruptedException ignored) {
                 }
             }
 
 
         }
+        //lane threads never time out
+        shutdownPartitions();
+        unregisterLocal();
         if (log.isDebugEnabled()) {
             log.debug("Messaging " + id + " stopped!");
         }
@@ -291,6 +303,289 @@ public class Messaging extends Thread implements ShutdownListener {
         }
     }
 
+    public String getSequenceCollectionName() {
+        return getCollectionName() + "_seq";
+    }
+
+    /**
+     * next sequence number for broadcasts of the given priority - one atomic increment
+     */
+    private long nextBroadcastSeq(MsgPriority p) {
+        DBObject ret = morphium.getDatabase().getCollection(getSequenceCollectionName()).findAndModify(new BasicDBObject("_id", "broadcast_" + p.name()), null, null, false,
+                new BasicDBObject("$inc", new BasicDBObject("value", 1L)), true, true);
+        return ((Number) ret.get("value")).longValue();
+    }
+
+    private String getBroadcastCursorId(MsgPriority p) {
+        return "cursor_" + id + "_" + p.name();
+    }
+
+    /**
+     * starts where this sender id stopped before, otherwise with the oldest broadcast still stored, or only new ones if
+     * there are none
+     */
+    private void initBroadcastSeq() {
+        for (MsgPriority p : MsgPriority.values()) {
+            broadcastsSeen.get(p.ordinal()).clear();
+            broadcastGapSince[p.ordinal()] = 0;
+            DBObject cursor = null;
+            if (persistentSenderId) {
+                cursor = morphium.getDatabase().getCollection(getSequenceCollectionName()).findOne(new BasicDBObject("_id", getBroadcastCursorId(p)));
+            }
+            Query<Msg> q = morphium.createQueryFor(Msg.class);
+            q.setCollectionName(getCollectionName());
+            q.f(Msg.Fields.lockedBy).eq("ALL").f(Msg.Fields.recipient).eq(null).f(Msg.Fields.seq).exists();
+            addPriorityFilter(q, p);
+            q.sort(Msg.Fields.seq);
+            Msg oldest = q.get();
+            if (oldest != null) {
+                broadcastSeq[p.ordinal()] = oldest.getSeq() - 1;
+                if (cursor != null) {
+                    //broadcasts older than the oldest one stored are gone anyway
+                    broadcastSeq[p.ordinal()] = Math.max(broadcastSeq[p.ordinal()], ((Number) cursor.get("value")).longValue());
+                }
+            } else {
+                DBObject cnt = morphium.getDatabase().getCollection(getSequenceCollectionName()).findOne(new BasicDBObject("_id", "broadcast_" + p.name()));
+                broadcastSeq[p.ordinal()] = cnt == null ? 0 : ((Number) cnt.get("value")).longValue();
+            }
+            savedBroadcastSeq[p.ordinal()] = cursor == null ? -1 : ((Number) cursor.get("value")).longValue();
+        }
+    }
+
+    /**
+     * stores the position up to which broadcasts were processed, if it changed - only for explicitly set sender ids,
+     * random ones are never used again
+     */
+    private void saveBroadcastSeq() {
+        if (!persistentSenderId) {
+            return;
+        }
+        for (MsgPriority p : MsgPriority.values()) {
+            int idx = p.ordinal();
+            if (broadcastSeq[idx] == savedBroadcastSeq[idx]) {
+                continue;
+            }
+            morphium.getDatabase().getCollection(getSequenceCollectionName()).update(new BasicDBObject("_id", getBroadcastCursorId(p)),
+                    new BasicDBObject("$set", new BasicDBObject("value", broadcastSeq[idx])), true, false);
+            savedBroadcastSeq[idx] = broadcastSeq[idx];
+        }
+    }
+
+    /**
+     * moves the sequence number of the priority forward as far as all broadcasts were seen. Sequence numbers missing
+     * for longer than broadcastGapTimeout are skipped, if no message with that number was stored until then.
+     */
+    private void advanceBroadcastSeq(MsgPriority p) {
+        int idx = p.ordinal();
+        TreeSet<Long> seen = broadcastsSeen.get(idx);
+        while (!seen.isEmpty() && seen.first() <= broadcastSeq[idx] + 1) {
+            broadcastSeq[idx] = Math.max(broadcastSeq[idx], seen.pollFirst());
+        }
+        if (seen.isEmpty()) {
+            broadcastGapSince[idx] = 0;
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (broadcastGapSince[idx] == 0) {
+            broadcastGapSince[idx] = now;
+        } else if (now - broadcastGapSince[idx] > broadcastGapTimeout) {
+            //messages within the gap might exist, but were not fetched yet
+            Query<Msg> q = morphium.createQueryFor(Msg.class);
+            q.setCollectionName(getCollectionName());
+            q.f(Msg.Fields.lockedBy).eq("ALL").f(Msg.Fields.recipient).eq(null).f(Msg.Fields.seq).gt(broadcastSeq[idx]).f(Msg.Fields.seq).lt(seen.first());
+            addPriorityFilter(q, p);
+            q.sort(Msg.Fields.seq);
+            Msg m = q.get();
+            long next = m == null ? seen.first() : m.getSeq();
+            log.warn("Skipping missing broadcasts " + (broadcastSeq[idx] + 1) + " to " + (next - 1));
+            broadcastSeq[idx] = next - 1;
+            broadcastGapSince[idx] = 0;
+            advanceBroadcastSeq(p);
+        }
+    }
+
+    private void addPriorityFilter(Query<Msg> q, MsgPriority p) {
+        if (p.equals(MsgPriority.NORMAL)) {
+            //messages without priority are normal ones
+            List<String> others = new ArrayList<>();
+            for (MsgPriority o : MsgPriority.values()) {
+                if (!o.equals(MsgPriority.NORMAL)) {
+                    others.add(o.name());
+                }
+            }
+            q.f(Msg.Fields.priority).nin(others);
+        } else {
+            q.f(Msg.Fields.priority).eq(p.name());
+        }
+    }
+
+    /**
+     * order in which the priorities are tried when claiming one message - smooth weighted round robin, so every
+     * priority gets its weighted share of the claims when there are messages of all priorities
+     */
+    private List<MsgPriority> nextClaimOrder() {
+        List<MsgPriority> ret = new ArrayList<>();
+        synchronized (claimCredits) {
+            int total = 0;
+            MsgPriority best = null;
+            for (MsgPriority p : MsgPriority.values()) {
+                int w = getPriorityWeight(p);
+                total += w;
+                claimCredits[p.ordinal()] += w;
+                if (best == null || claimCredits[p.ordinal()] > claimCredits[best.ordinal()]) {
+                    best = p;
+                }
+            }
+            claimCredits[best.ordinal()] -= total;
+            ret.add(best);
+        }
+        for (MsgPriority p : MsgPriority.values()) {
+            if (!ret.contains(p)) {
+                ret.add(p);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * atomically locks the oldest message available for this node, the priority tried first changes according to the
+     * priority weights
+     *
+     * @return the locked message or null, if there is none
+     */
+    private Msg claimOne() {
+        for (MsgPriority p : nextClaimOrder()) {
+            Query<Msg> q = morphium.createQueryFor(Msg.class);
+            q.or(q.q().f(Msg.Fields.sender).ne(id).f(Msg.Fields.lockedBy).eq(null).f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(null),
+                    q.q().f(Msg.Fields.sender).ne(id).f(Msg.Fields.lockedBy).eq(null).f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.recipient).eq(id));
+            addPriorityFilter(q, p);
+            BasicDBObject update = new BasicDBObject("$set", new BasicDBObject("locked_by", id).append("locked", System.currentTimeMillis()));
+            DBObject ret = morphium.getDatabase().getCollection(getCollectionName()).findAndModify(q.toQueryObject(), null, new BasicDBObject("timestamp", 1).append("_id", 1), false, update, true, false);
+            if (ret != null) {
+                return morphium.getMapper().unmarshall(Msg.class, ret);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * runs the message processor - in multithreadded mode in the thread pool, with partitions in the lane of the
+     * message's partition key. Submitting blocks while the pool or lane is saturated, the returned futures are used
+     * to wait for the whole batch
+     */
+    private void dispatch(Msg m, Runnable r, List<Future<?>> futures) {
+        ThreadPoolExecutor[] lanes = partitionLanes;
+        ThreadPoolExecutor p = threadPool;
+        if (lanes != null && (m.getPartitionKey() != null || p == null)) {
+            //messages without key are only spread across the lanes
+            Object key = m.getPartitionKey() != null ? m.getPartitionKey() : m.getMsgId();
+            futures.add(lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length].submit(r));
+        } else if (multithreadded && p != null) {
+            futures.add(p.submit(r));
+        } else {
+            r.run();
+        }
+    }
+
+    /**
+     * waits for a processor - gives up, if the messaging is stopped. Processors cancelled on shutdown are not waited for
+     */
+    private void waitFor(Future<?> f) throws InterruptedException {
+        while (true) {
+            try {
+                f.get(1000, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                if (!running) {
+                    return;
+                }
+            } catch (CancellationException e) {
+                return;
+            } catch (ExecutionException e) {
+                log.error("Processing failed", e.getCause());
+                return;
+            }
+        }
+    }
+
+    private Runnable createProcessor(final Msg msg, final List<Object> processed, final List<Object> outdated) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                //no reread necessary: the message was either locked by this node or is a broadcast not processed yet
+                if (msg.getTtl() < System.currentTimeMillis() - msg.getTimestamp()) {
+                    //Delete outdated msg!
+                    log.info("Found outdated message - deleting it!");
+                    outdated.add(msg.getMsgId());
+                    return;
+                }
+                try {
+                    for (MessageListener l : listeners) {
+                        Msg answer = l.onMessage(Messaging.this, msg);
+                        if (autoAnswer && answer == null) {
+                            answer = new Msg(msg.getName(), "received", "");
+                        }
+                        if (answer != null) {
+                            msg.sendAnswer(Messaging.this, answer);
+                        }
+                    }
+
+                    if (listenerByName.get(msg.getName()) != null) {
+                        for (MessageListener l : listenerByName.get(msg.getName())) {
+                            Msg answer = l.onMessage(Messaging.this, msg);
+                            if (autoAnswer && answer == null) {
+                                answer = new Msg(msg.getName(), "received", "");
+                            }
+                            if (answer != null) {
+                                msg.setDeleteAt(new Date(System.currentTimeMillis() + msg.getTtl()));
+                                msg.sendAnswer(Messaging.this, answer);
+                            }
+                        }
+                    }
+                } catch (Throwable t) {
+                    log.error("Processing failed", t);
+                }
+                processed.add(msg.getMsgId());
+            }
+        };
+    }
+
+    /**
+     * marks the messages as processed by this node and removes outdated ones - in one bulk write. Exclusive
+     * messages keep their lock, so no other node will process them.
+     */
+    private void acknowledge(List<Object> processed, List<Object> outdated) {
+        //processors might still be running, if the messaging was stopped while waiting for them
+        processed = copyOf(processed);
+        outdated = copyOf(outdated);
+        if (processed.isEmpty() && outdated.isEmpty()) {
+            return;
+        }
+        DBCollection col = morphium.getDatabase().getCollection(getCollectionName());
+        BulkWriteOperation bulk = col.initializeUnorderedBulkOperation();
+        for (int i = 0; i < processed.size(); i += windowSize) {
+            List<Object> chunk = processed.subList(i, Math.min(processed.size(), i + windowSize));
+            bulk.find(new BasicDBObject("_id", new BasicDBObject("$in", new ArrayList<>(chunk))))
+                    .update(new BasicDBObject("$addToSet", new BasicDBObject("processed_by", id)));
+        }
+        for (int i = 0; i < outdated.size(); i += windowSize) {
+            List<Object> chunk = outdated.subList(i, Math.min(outdated.size(), i + windowSize));
+            bulk.find(new BasicDBObject("_id", new BasicDBObject("$in", new ArrayList<>(chunk)))).remove();
+        }
+        WriteConcern wc = morphium.getWriteConcernForClass(Msg.class);
+        if (wc != null) {
+            bulk.execute(wc);
+        } else {
+            bulk.execute();
+        }
+    }
+
+    private List<Object> copyOf(List<Object> synchronizedList) {
+        synchronized (synchronizedList) {
+            return new ArrayList<>(synchronizedList);
+        }
+    }
+
     public String getCollectionName() {
         if (queueName == null || queueName.isEmpty()) {
             return "msg";
@@ -299,6 +594,115 @@ public class Messaging extends Thread implements ShutdownListener {
 
     }
 
+    /**
+     * name of the capped collection used to signal new messages in push delivery mode
+     */
+    public String getSignalCollectionName() {
+        return getCollectionName() + "_signal";
+    }
+
+    private DBCollection ensureSignalCollection() {
+        DB db = morphium.getDatabase();
+        String name = getSignalCollectionName();
+        if (!db.collectionExists(name)) {
+            try {
+                db.createCollection(name, new BasicDBObject("capped", true).append("size", signalCollectionSize));
+            } catch (MongoException e) {
+                //probably created by another node meanwhile
+                if (log.isDebugEnabled()) {
+                    log.debug("Could not create signal collection: " + e.getMessage());
+                }
+            }
+        }
+        DBCollection col = db.getCollection(name);
+        if (!col.isCapped()) {
+            morphium.convertToCapped(name, signalCollectionSize, null);
+        }
+        if (col.count() == 0) {
+            //tailable cursors on empty collections die immediately
+            col.insert(new BasicDBObject("ts", System.currentTimeMillis()));
+        }
+        return col;
+    }
+
+    private void startSignalTailer() {
+        final DBCollection col = ensureSignalCollection();
+        //only signals stored from now on are of interest
+        DBCursor last = col.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+        final Object startId = last.hasNext() ? last.next().get("_id") : null;
+        last.close();
+
+        signalTailer = new Thread() {
+            @Override
+            public void run() {
+                Object lastId = startId;
+                while (running) {
+                    DBCursor cur = null;
+                    try {
+                        BasicDBObject q = new BasicDBObject();
+                        if (lastId != null) {
+                            q.put("_id", new BasicDBObject("$gt", lastId));
+                        }
+                        cur = col.find(q).addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA);
+                        while (running) {
+                            DBObject o = cur.tryNext();
+                            if (o != null) {
+                                lastId = o.get("_id");
+                                signal();
+                            } else if (cur.getCursorId() == 0) {
+                                //cursor died - reopen it
+                                break;
+                            }
+                        }
+                    } catch (Exception e) {
+                        if (running) {
+                            log.warn("Tailing signal collection failed: " + e.getMessage());
+                            try {
+                                sleep(pause);
+                            } catch (InterruptedException ignored) {
+                            }
+                        }
+                    } finally {
+                        if (cur != null) {
+                            cur.close();
+                        }
+                    }
+                }
+            }
+        };
+        signalTailer.setName("messaging_signal_" + id);
+        signalTailer.setDaemon(true);
+        signalTailer.start();
+    }
+
+    private void signal() {
+        synchronized (signalMonitor) {
+            signalled = true;
+            signalMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * waits for a signal, but at most pause ms. Signals received while processing start the next cycle immediately
+     */
+    private void waitForSignal() throws InterruptedException {
+        synchronized (signalMonitor) {
+            if (!signalled && running) {
+                signalMonitor.wait(pause);
+            }
+            signalled = false;
+        }
+    }
+
+    private void sendSignal() {
+        try {
+            morphium.getDatabase().getCollection(getSignalCollectionName()).insert(new BasicDBObject("ts", System.currentTimeMillis()));
+        } catch (Exception e) {
+            //message will be found by polling
+            log.warn("Could not signal message: " + e.getMessage());
+        }
+    }
+
     public void addListenerForMessageNamed(String n, MessageListener l) {
         if (listenerByName.get(n) == null) {
             HashMap<String, List<MessageListener>> c = (HashMap) ((HashMap) listenerByName).clone();
@@ -323,8 +727,13 @@ public class Messaging extends Thread implements ShutdownListener {
         return id;
     }
 
+    /**
+     * a sender id set explicitly should be stable across restarts - the position up to which broadcasts were processed
+     * is stored for it, so a restarted node does not process them again
+     */
     public void setSenderId(String id) {
         this.id = id;
+        persistentSenderId = true;
     }
 
     public int getPause() {
@@ -341,7 +750,176 @@ public class Messaging extends Thread implements ShutdownListener {
 
     public void setRunning(boolean running) {
         this.running = running;
+        if (!running) {
+            signal();
+        }
+    }
+
+    public int getPriorityWeight(MsgPriority p) {
+        int[] w = priorityWeights;
+        return w == null ? p.getDefaultWeight() : w[p.ordinal()];
+    }
+
+    /**
+     * sets the share of every processing cycle reserved for messages of the given priority. Higher priorities are
+     * processed first, but only up to their share of windowSize messages - so a flood of them does not starve the
+     * others. Shares not used are passed on to lower priorities.
+     *
+     * @param p      - the priority
+     * @param weight - weight relative to the others, defaults see MsgPriority
+     */
+    public void setPriorityWeight(MsgPriority p, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        int[] w = new int[MsgPriority.values().length];
+        for (MsgPriority o : MsgPriority.values()) {
+            w[o.ordinal()] = getPriorityWeight(o);
+        }
+        w[p.ordinal()] = weight;
+        priorityWeights = w;
+    }
+
+    public boolean isLoopback() {
+        return loopback;
+    }
+
+    /**
+     * enables delivery of messages between messagings in the same JVM without mongo, has to be set before the
+     * messaging is started. Messages to local recipients are queued in memory, exclusive messages are processed by
+     * one local messaging if there is one. Broadcasts are delivered locally and stored in mongo for the other nodes.
+     * Both sender and receiver need loopback enabled.
+     *
+     * @param loopback - deliver messages to local messagings in memory
+     */
+    public void setLoopback(boolean loopback) {
+        this.loopback = loopback;
+    }
+
+    public boolean isLoopbackPersistent() {
+        return loopbackPersistent;
+    }
+
+    /**
+     * @param loopbackPersistent - store messages delivered locally in mongo as well (marked as processed)
+     */
+    public void setLoopbackPersistent(boolean loopbackPersistent) {
+        this.loopbackPersistent = loopbackPersistent;
+    }
+
+    /**
+     * @return the sequence number up to which all broadcasts of the given priority were processed
+     */
+    public long getBroadcastSeq(MsgPriority p) {
+        return broadcastSeq[p.ordinal()];
+    }
+
+    public long getBroadcastGapTimeout() {
+        return broadcastGapTimeout;
+    }
+
+    /**
+     * broadcasts are numbered when sent, every node only fetches broadcasts with higher numbers than already
+     * processed. If a number is missing (message not stored yet), the node waits this long for it before skipping it
+     *
+     * @param broadcastGapTimeout - time in ms
+     */
+    public void setBroadcastGapTimeout(long broadcastGapTimeout) {
+        this.broadcastGapTimeout = broadcastGapTimeout;
+    }
+
+    public int getPartitions() {
+        return partitionLanes == null ? 0 : partitionLanes.length;
+    }
+
+    /**
+     * enables partitioned processing. Every partition is processed by its own thread, messages are assigned to a
+     * partition by their partition key - so messages with the same key are processed sequentially in the order they
+     * were sent, messages with different keys in parallel. Messages without key are processed in the thread pool if
+     * multithreadded, otherwise spread across the partitions. If the messaging is already running, the partitions
+     * are replaced after the current batch is processed.
+     * <p/>
+     * Order is only kept within one node, exclusive messages with the same key should be sent to one recipient.
+     *
+     * @param partitions - number of partitions, e.g. number of cores. 0 disables partitioning
+     */
+    public void setPartitions(int partitions) {
+        if (isAlive()) {
+            requestedPartitions = Math.max(0, partitions);
+            return;
+        }
+        createPartitions(partitions);
+    }
+
+    private void createPartitions(int partitions) {
+        shutdownPartitions();
+        if (partitions <= 0) {
+            return;
+        }
+        ThreadPoolExecutor[] lanes = new ThreadPoolExecutor[partitions];
+        for (int i = 0; i < partitions; i++) {
+            final String name = "messaging_partition_" + i + "_" + id;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, morphium.getConfig().getThreadPoolMessagingQueueSize())),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, name);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    }, new WaitForSlotPolicy());
+        }
+        partitionLanes = lanes;
+    }
+
+    private void shutdownPartitions() {
+        ThreadPoolExecutor[] lanes = partitionLanes;
+        partitionLanes = null;
+        if (lanes != null) {
+            for (ThreadPoolExecutor l : lanes) {
+                shutdownNow(l);
+            }
+        }
+    }
+
+    /**
+     * stops the executor - queued processors are cancelled, so that nobody waits for them
+     */
+    private void shutdownNow(ThreadPoolExecutor executor) {
+        for (Runnable r : executor.shutdownNow()) {
+            if (r instanceof Future) {
+                ((Future<?>) r).cancel(false);
+            }
+        }
+    }
+
+    public boolean isPushDelivery() {
+        return pushDelivery;
+    }
+
+    /**
+     * enables push delivery, has to be set before the messaging is started. All nodes sending messages to the queue
+     * should use push delivery, otherwise their messages are only found by polling.
+     *
+     * @param pushDelivery - signal stored messages and wait for signals instead of polling every pause ms
+     */
+    public void setPushDelivery(boolean pushDelivery) {
+        this.pushDelivery = pushDelivery;
+        if (pushDelivery) {
+            ensureSignalCollection();
+        }
+    }
+
+    public int getSignalCollectionSize() {
+        return signalCollectionSize;
+    }
 
+    /**
+     * @param signalCollectionSize - size of the capped signal collection in bytes, used when it is created
+     */
+    public void setSignalCollectionSize(int signalCollectionSize) {
+        this.signalCollectionSize = signalCollectionSize;
     }
 
     public void addMessageListener(MessageListener l) {
@@ -366,6 +944,9 @@ public class Messaging extends Thread implements ShutdownListener {
             cb = new AsyncOperationCallback() {
                 @Override
                 public void onOperationSucceeded(AsyncOperationType type, Query q, long duration, List result, Object entity, Object... param) {
+                    if (pushDelivery) {
+                        sendSignal();
+                    }
                 }
 
                 @Override
@@ -379,17 +960,174 @@ public class Messaging extends Thread implements ShutdownListener {
         m.setLockedBy(null);
         m.setLocked(0);
         m.setSenderHost(hostname);
+        boolean stored = false;
         if (m.getTo() != null && m.getTo().size() > 0) {
             for (String recipient : m.getTo()) {
                 Msg msg = m.getCopy();
                 msg.setRecipient(recipient);
+                Messaging local = loopback ? getLocalMessaging(recipient) : null;
+                if (local != null) {
+                    if (!loopbackPersistent) {
+                        local.deliverLocally(msg);
+                        continue;
+                    }
+                    //the stored message is changed below, the local one must not be affected
+                    local.deliverLocally(msg.getCopy());
+                    markProcessed(msg, local);
+                }
                 morphium.storeNoCache(msg, getCollectionName(), cb);
+                stored = true;
             }
-        } else {
+        } else if (loopback && m.isExclusive()) {
+            List<Messaging> local = getLocalMessagings();
+            if (local.isEmpty()) {
+                morphium.storeNoCache(m, getCollectionName(), cb);
+                stored = true;
+            } else {
+                //exclusive message - one local messaging is sufficient
+                Messaging l = local.get((loopbackCounter++ & Integer.MAX_VALUE) % local.size());
+                l.deliverLocally(m.getCopy());
+                if (loopbackPersistent) {
+                    markProcessed(m, l);
+                    morphium.storeNoCache(m, getCollectionName(), cb);
+                    stored = true;
+                }
+            }
+        } else if (m.isExclusive()) {
+            //exclusive messages are claimed, only broadcasts are fetched by sequence number
             morphium.storeNoCache(m, getCollectionName(), cb);
+            stored = true;
+        } else if (async) {
+            //the sequence number is assigned right before the insert - queueing the insert in between would leave a
+            //gap, other nodes skip it after broadcastGapTimeout
+            final Msg broadcast = m;
+            morphium.getAsyncOperationsThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    storeBroadcast(broadcast);
+                    if (pushDelivery) {
+                        sendSignal();
+                    }
+                }
+            });
+        } else {
+            storeBroadcast(m);
+            stored = true;
+        }
+        if (pushDelivery && !async && stored) {
+            sendSignal();
+        }
+    }
+
+    /**
+     * broadcasts are fetched by sequence number instead of being acknowledged by every node. Stored synchronously,
+     * so that the insert follows the assignment of the number immediately
+     */
+    private void storeBroadcast(Msg m) {
+        m.setSeq(nextBroadcastSeq(m.getPriority()));
+        if (loopback) {
+            //broadcast - delivered to all local messagings, others get it from mongo
+            for (Messaging l : getLocalMessagings()) {
+                l.deliverLocally(m.getCopy());
+                m.addProcessedId(l.getSenderId());
+            }
+        }
+        morphium.storeNoCache(m, getCollectionName());
+    }
+
+    /**
+     * a message delivered locally and stored for persistence must not be processed again
+     */
+    private void markProcessed(Msg m, Messaging local) {
+        m.addProcessedId(local.getSenderId());
+        if (m.isExclusive()) {
+            m.setLockedBy(local.getSenderId());
+            m.setLocked(System.currentTimeMillis());
         }
     }
 
+    private String getLoopbackKey() {
+        return getCollectionName();
+    }
+
+    /**
+     * @return all running local messagings with loopback enabled on the same queue, except this one
+     */
+    private List<Messaging> getLocalMessagings() {
+        List<Messaging> ret = new ArrayList<>();
+        synchronized (localMessagings) {
+            Map<String, List<Messaging>> byQueue = localMessagings.get(morphium);
+            if (byQueue != null && byQueue.get(getLoopbackKey()) != null) {
+                for (Messaging m : byQueue.get(getLoopbackKey())) {
+                    if (m != this) {
+                        ret.add(m);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    private Messaging getLocalMessaging(String senderId) {
+        for (Messaging m : getLocalMessagings()) {
+            if (m.getSenderId().equals(senderId)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private void registerLocal() {
+        synchronized (localMessagings) {
+            Map<String, List<Messaging>> byQueue = localMessagings.get(morphium);
+            if (byQueue == null) {
+                byQueue = new HashMap<>();
+                localMessagings.put(morphium, byQueue);
+            }
+            List<Messaging> lst = byQueue.get(getLoopbackKey());
+            if (lst == null) {
+                lst = new ArrayList<>();
+                byQueue.put(getLoopbackKey(), lst);
+            }
+            if (!lst.contains(this)) {
+                lst.add(this);
+            }
+        }
+    }
+
+    private void unregisterLocal() {
+        synchronized (localMessagings) {
+            Map<String, List<Messaging>> byQueue = localMessagings.get(morphium);
+            if (byQueue == null || byQueue.get(getLoopbackKey()) == null) {
+                return;
+            }
+            byQueue.get(getLoopbackKey()).remove(this);
+            if (byQueue.get(getLoopbackKey()).isEmpty()) {
+                byQueue.remove(getLoopbackKey());
+            }
+            if (byQueue.isEmpty()) {
+                localMessagings.remove(morphium);
+            }
+        }
+    }
+
+    /**
+     * queues a message sent by a messaging in the same JVM, processed in the next cycle
+     */
+    private void deliverLocally(Msg m) {
+        if (m.getMsgId() == null) {
+            m.setMsgId(new ObjectId());
+        }
+        m.setTimestamp(System.currentTimeMillis());
+        if (!m.isExclusive()) {
+            m.setLockedBy("ALL");
+        } else {
+            m.setLockedBy(id);
+        }
+        localQueue.offer(m);
+        signal();
+    }
+
     public boolean isAutoAnswer() {
         return autoAnswer;
     }
@@ -401,12 +1139,37 @@ public class Messaging extends Thread implements ShutdownListener {
     @Override
     public void onShutdown(Morphium m) {
         try {
-            if (threadPool != null) {
-                threadPool.shutdownNow();
-                threadPool = null;
+            ThreadPoolExecutor p = threadPool;
+            threadPool = null;
+            if (p != null) {
+                shutdownNow(p);
             }
+            shutdownPartitions();
+            unregisterLocal();
         } catch (Exception e) {
             //swallow
         }
     }
+
+    /**
+     * instead of rejecting work, the submitting thread waits until there is room in the queue
+     */
+    private static class WaitForSlotPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("messaging thread pool shut down");
+            }
+            try {
+                executor.getQueue().put(r);
+                if (executor.isShutdown() && executor.getQueue().remove(r)) {
+                    //shut down while waiting - nobody would run it
+                    throw new RejectedExecutionException("messaging thread pool shut down");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("interrupted while waiting for a worker", e);
+            }
+        }
+    }
 }
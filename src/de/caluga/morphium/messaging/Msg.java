@@ -26,7 +26,7 @@ import java.util.*;
 @WriteSafety(level = SafetyLevel.NORMAL, timeout = 0, waitForJournalCommit = false, waitForSync = false)
 @DefaultReadPreference(ReadPreferenceLevel.PRIMARY)
 @Lifecycle
-@Index({"sender,locked_by,processed_by,recipient,-timestamp", "locked_by,processed_by,recipient,timestamp"})
+@Index({"sender,locked_by,processed_by,recipient,-timestamp", "locked_by,processed_by,recipient,timestamp", "locked_by,recipient,priority,seq"})
 public class Msg {
 
 
@@ -43,7 +43,10 @@ public class Msg {
         timestamp,
         sender,
         ttl,
-        recipient
+        recipient,
+        partitionKey,
+        priority,
+        seq
     }
 
     @Index
@@ -68,6 +71,11 @@ public class Msg {
     private List<Object> additional;
     private Map<String, Object> mapValue;
     private String value;
+    //messages with the same key are processed in order, see Messaging.setPartitions
+    private String partitionKey;
+    private MsgPriority priority;
+    //sequence number of broadcasts, per priority
+    private Long seq;
     @Index
     private long timestamp;
 
@@ -117,6 +125,42 @@ public class Msg {
         return recipient;
     }
 
+    /**
+     * @return priority of the message, NORMAL if not set
+     */
+    public MsgPriority getPriority() {
+        return priority == null ? MsgPriority.NORMAL : priority;
+    }
+
+    public void setPriority(MsgPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return sequence number of a broadcast, assigned by the sending messaging - null for other messages
+     */
+    public Long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
+
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * messages with the same partition key are processed one after another in the order they were sent, if the
+     * receiving messaging uses partitions. Messages with different keys are processed in parallel.
+     *
+     * @param partitionKey - e.g. id of the aggregate the message refers to
+     */
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
     public String getSenderHost() {
         return senderHost;
     }
@@ -320,6 +364,9 @@ public class Msg {
                 ", additional='" + additional + '\'' +
                 ", mapValue='" + mapValue + '\'' +
                 ", recipient='" + recipient + '\'' +
+                ", partitionKey='" + partitionKey + '\'' +
+                ", priority=" + priority +
+                ", seq=" + seq +
                 ", to_list='" + to + '\'' +
 
                 ", processedBy=" + processedBy +
@@ -372,7 +419,7 @@ public class Msg {
         ret.setLocked(locked);
         ret.setLockedBy(lockedBy);
         ret.setName(name);
-        ret.setProcessedBy(processedBy);
+        ret.setProcessedBy(processedBy == null ? null : new ArrayList<>(processedBy));
         ret.setSender(sender);
         ret.setRecipient(recipient);
         ret.setTimestamp(timestamp);
@@ -383,6 +430,8 @@ public class Msg {
 //        ret.setMsgId();
         ret.setMapValue(mapValue);
         ret.setTo(to);
+        ret.setPartitionKey(partitionKey);
+        ret.setPriority(priority);
 
         return ret;  //To change body of created methods use File | Settings | File Templates.
     }
@@ -0,0 +1,19 @@
+package de.caluga.morphium.messaging;
+
+/**
+ * priority of a message. Messaging processes the priorities in this order, the default weight is the share of a
+ * processing cycle reserved for the priority (see Messaging.setPriorityWeight). Messages without priority are NORMAL.
+ */
+public enum MsgPriority {
+    HIGH(6), NORMAL(3), LOW(1);
+
+    private final int defaultWeight;
+
+    MsgPriority(int defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+}
@@ -310,6 +310,11 @@ public interface Query<T> extends Cloneable {
 
     public void addReturnedField(Enum f);
 
+    /**
+     * @return fields set by setReturnedFields or addReturnedField, null if all fields are returned
+     */
+    public DBObject getReturnedFields();
+
 
     public List distinct(String field);
 
@@ -6,11 +6,16 @@ import de.caluga.morphium.annotations.*;
 import de.caluga.morphium.annotations.caching.Cache;
 import de.caluga.morphium.async.AsyncOperationCallback;
 import de.caluga.morphium.async.AsyncOperationType;
+import de.caluga.morphium.cache.CacheElement;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.InMemoryQueryEngine;
+import org.bson.types.ObjectId;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ThreadPoolExecutor;
 
 /**
@@ -146,14 +151,38 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     }
 
     @Override
-    public List<T> complexQuery(DBObject query, Map<String, Integer> sort, int skip, int limit) {
+    public List<T> complexQuery(final DBObject query, final Map<String, Integer> sort, final int skip, final int limit) {
         Cache ca = morphium.getARHelper().getAnnotationFromHierarchy(type, Cache.class); //type.getAnnotation(Cache.class);
         boolean useCache = ca != null && ca.readCache() && morphium.isReadCacheEnabledForThread();
-        String ck = morphium.getCache().getCacheKey(query, sort, getCollectionName(), skip, limit);
-        if (useCache && morphium.getCache().isCached(type, ck)) {
-            return morphium.getCache().getFromCache(type, ck);
+        if (useCache) {
+            final CacheKey ck = morphium.getCache().getCacheKey(query, sort, getCollectionName(), skip, limit);
+            //one lookup only - the entry might be evicted between checking and reading
+            List<T> cached = getCachedResult(ck);
+            if (cached != null) {
+                cacheHit();
+                if (needsRefresh(ca, ck)) {
+                    final QueryImpl<T> q = copyForRefresh();
+                    morphium.getSingleFlightLoader().refreshAsync(type, ck, new Callable<List<T>>() {
+                        @Override
+                        public List<T> call() throws Exception {
+                            return q.readComplexQuery(query, sort, skip, limit, ck);
+                        }
+                    }, morphium.getAsyncOperationsThreadPool());
+                }
+                return cached;
+            }
+            cacheMiss();
+            return morphium.getSingleFlightLoader().load(type, ck, new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws Exception {
+                    return readComplexQuery(query, sort, skip, limit, ck);
+                }
+            }, morphium.getConfig().getSingleFlightTimeout());
         }
+        return readComplexQuery(query, sort, skip, limit, null);
+    }
 
+    private List<T> readComplexQuery(DBObject query, Map<String, Integer> sort, int skip, int limit, CacheKey ck) {
         long start = System.currentTimeMillis();
         DBCollection c = morphium.getDatabase().getCollection(getCollectionName());
         setReadPreferenceFor(c);
@@ -189,7 +218,8 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
             }
         }
         morphium.fireProfilingReadEvent(this, System.currentTimeMillis() - start, ReadAccessType.AS_LIST);
-        if (useCache) {
+        if (ck != null) {
+            cacheLoaded(start);
             morphium.getCache().addToCache(ck, type, ret);
         }
         return ret;
@@ -453,6 +483,14 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     @Override
     public long countAll() {
         morphium.inc(StatisticKeys.READS);
+        Cache c = morphium.getARHelper().getAnnotationFromHierarchy(type, Cache.class);
+        if (c != null && c.readCache() && c.fullCollection() && morphium.isReadCacheEnabledForThread()) {
+            List<T> ret = findInMemory(0, 0);
+            if (ret != null) {
+                cacheHit();
+                return ret.size();
+            }
+        }
         long start = System.currentTimeMillis();
 
         DBCollection collection = morphium.getDatabase().getCollection(getCollectionName());
@@ -587,17 +625,201 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         Cache c = morphium.getARHelper().getAnnotationFromHierarchy(type, Cache.class); //type.getAnnotation(Cache.class);
         boolean useCache = c != null && c.readCache() && morphium.isReadCacheEnabledForThread();
 
-        String ck = morphium.getCache().getCacheKey(this);
         if (useCache) {
-            if (morphium.getCache().isCached(type, ck)) {
-                morphium.inc(StatisticKeys.CHITS);
-                return morphium.getCache().getFromCache(type, ck);
+            if (c.fullCollection()) {
+                List<T> ret = findInMemory(skip, limit);
+                if (ret != null) {
+                    cacheHit();
+                    return ret;
+                }
             }
-            morphium.inc(StatisticKeys.CMISS);
-        } else {
-            morphium.inc(StatisticKeys.NO_CACHED_READS);
+            final CacheKey ck = morphium.getCache().getCacheKey(this);
+            //one lookup only - the entry might be evicted between checking and reading
+            List<T> cached = getCachedResult(ck);
+            if (cached != null) {
+                cacheHit();
+                if (needsRefresh(c, ck)) {
+                    final QueryImpl<T> q = copyForRefresh();
+                    morphium.getSingleFlightLoader().refreshAsync(type, ck, new Callable<List<T>>() {
+                        @Override
+                        public List<T> call() throws Exception {
+                            return q.readList(ck);
+                        }
+                    }, morphium.getAsyncOperationsThreadPool());
+                }
+                return cached;
+            }
+            cacheMiss();
+            return morphium.getSingleFlightLoader().load(type, ck, new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws Exception {
+                    return readList(ck);
+                }
+            }, morphium.getConfig().getSingleFlightTimeout());
+        }
+        morphium.inc(StatisticKeys.NO_CACHED_READS);
+        return readList(null);
+    }
+
+    private void cacheHit() {
+        morphium.inc(StatisticKeys.CHITS);
+        morphium.getCache().getMetrics().get(type).hit();
+    }
+
+    private void cacheMiss() {
+        morphium.inc(StatisticKeys.CMISS);
+        morphium.getCache().getMetrics().get(type).miss();
+    }
+
+    /**
+     * reports the duration of a read, that is added to the cache
+     */
+    private void cacheLoaded(long start) {
+        morphium.getCache().getMetrics().get(type).loaded(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * checks, if a cached result should be reloaded in background - either because it is accessed near the end
+     * of its timeout (refreshAhead), or because it is already outdated, but still within the staleWhileRevalidate
+     * window
+     */
+    private boolean needsRefresh(Cache c, CacheKey ck) {
+        if (c.refreshAhead() <= 0 && c.staleWhileRevalidate() <= 0) {
+            return false;
+        }
+        CacheElement<?> e = morphium.getCache().getCacheElement(type, ck);
+        if (e == null) {
+            return false;
+        }
+        long age = System.currentTimeMillis() - e.getCreated();
+        if (c.staleWhileRevalidate() > 0 && age > c.timeout()) {
+            return true;
+        }
+        return c.refreshAhead() > 0 && age > c.timeout() * c.refreshAhead();
+    }
+
+    /**
+     * evaluates this query in memory using the cached content of the whole collection (Cache.fullCollection), the
+     * collection is read if not cached
+     *
+     * @return the result or null, if the query needs to be sent to mongo
+     */
+    private List<T> findInMemory(int skip, int limit) {
+        InMemoryQueryEngine engine = morphium.getInMemoryQueryEngine();
+        if (fieldList != null || where != null || engine == null) {
+            //partial objects or javascript
+            return null;
+        }
+        if (!getCollectionName().equals(morphium.getMapper().getCollectionName(type))) {
+            //snapshots only contain the default collection
+            return null;
+        }
+        if (!engine.isLoaded(type)) {
+            Query<T> q = morphium.createQueryFor(type);
+            if (!(q instanceof QueryImpl)) {
+                return null;
+            }
+            long generation = engine.getGeneration(type);
+            final QueryImpl<T> all = (QueryImpl<T>) q;
+            final CacheKey ck = morphium.getCache().getCacheKey(all);
+            List<T> lst = all.getCachedResult(ck);
+            if (lst == null) {
+                lst = morphium.getSingleFlightLoader().load(type, ck, new Callable<List<T>>() {
+                    @Override
+                    public List<T> call() throws Exception {
+                        return all.readList(ck);
+                    }
+                }, morphium.getConfig().getSingleFlightTimeout());
+            }
+            Cache c = morphium.getARHelper().getAnnotationFromHierarchy(type, Cache.class);
+            if (!engine.load(type, lst, generation, c.timeout())) {
+                //changed while reading
+                return null;
+            }
+        }
+        return engine.find(type, toQueryObject(), sort, skip, limit);
+    }
 
+    /**
+     * returns the cached result or null, if not cached. Results of types using ResultMode.IDS are rebuilt from the id cache, objects missing
+     * there are read from mongo using one $in query. Objects deleted in the meantime are skipped
+     */
+    private List<T> getCachedResult(CacheKey ck) {
+        List<T> ret = morphium.getCache().getFromCache(type, ck);
+        if (ret != null) {
+            return ret;
+        }
+        CacheElement<?> e = morphium.getCache().getCacheElement(type, ck);
+        if (e == null || !e.isIdsOnly()) {
+            return null;
+        }
+        List<?> ids = e.getFound();
+        Map<Object, T> objects = new HashMap<>();
+        List<Object> missing = new ArrayList<>();
+        for (Object id : ids) {
+            T o = morphium.getCache().getFromIDCache(type, id);
+            if (o == null) {
+                missing.add(id);
+            } else {
+                objects.put(id, o);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long start = System.currentTimeMillis();
+            DBCollection collection = morphium.getDatabase().getCollection(getCollectionName());
+            setReadPreferenceFor(collection);
+            DBObject idQuery = new BasicDBObject("_id", new BasicDBObject("$in", missing));
+            for (int i = 0; i < morphium.getConfig().getRetriesOnNetworkError(); i++) {
+                DBCursor cursor = null;
+                try {
+                    cursor = collection.find(idQuery, getFieldListForQuery());
+                    for (DBObject o : cursor) {
+                        T unmarshall = morphium.getMapper().unmarshall(type, o);
+                        if (unmarshall != null) {
+                            Object id = morphium.getARHelper().getId(unmarshall);
+                            objects.put(id, unmarshall);
+                            if (ck.getProjection() == null) {
+                                morphium.getCache().addToIdCache(type, id, unmarshall);
+                            }
+                            morphium.firePostLoadEvent(unmarshall);
+                        }
+                    }
+                    break;
+                } catch (RuntimeException ex) {
+                    morphium.handleNetworkError(i, ex);
+                } finally {
+                    if (cursor != null) cursor.close();
+                }
+            }
+            morphium.fireProfilingReadEvent(this, System.currentTimeMillis() - start, ReadAccessType.AS_LIST);
+        }
+        ret = new ArrayList<>(ids.size());
+        for (Object id : ids) {
+            T o = objects.get(id);
+            if (o != null) {
+                ret.add(o);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * background refreshes need their own copy, this query might be changed after returning
+     */
+    private QueryImpl<T> copyForRefresh() {
+        try {
+            return (QueryImpl<T>) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
         }
+    }
+
+    /**
+     * reads the result from mongo
+     *
+     * @param ck - cache key, result is added to cache if not null
+     */
+    private List<T> readList(CacheKey ck) {
         long start = System.currentTimeMillis();
         DBCollection collection = morphium.getDatabase().getCollection(getCollectionName());
         setReadPreferenceFor(collection);
@@ -648,7 +870,8 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         }
         morphium.fireProfilingReadEvent(this, System.currentTimeMillis() - start, ReadAccessType.AS_LIST);
 
-        if (useCache) {
+        if (ck != null) {
+            cacheLoaded(start);
             morphium.getCache().addToCache(ck, type, ret);
         }
         morphium.firePostLoad(ret);
@@ -756,6 +979,10 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         getExecutor().submit(c);
     }
 
+    /**
+     * primary key lookup - other conditions of this query are ignored. For cached types the id cache is checked
+     * first, on a miss the object is read using a plain _id lookup and added to the cache
+     */
     @Override
     public T getById(Object id) {
         List<String> flds = morphium.getARHelper().getFields(type, Id.class);
@@ -763,9 +990,62 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
             throw new RuntimeException("Type does not have an ID-Field? " + type.getSimpleName());
         }
         //should only be one
-        String f = flds.get(0);
-        Query<T> q = q().f(f).eq(id); //prepare
-        return q.get();
+        Field idField = morphium.getARHelper().getField(type, flds.get(0));
+        if (id instanceof ObjectId && idField.getType().equals(String.class)) {
+            id = id.toString();
+        } else if (id instanceof String && idField.getType().equals(ObjectId.class)) {
+            try {
+                id = new ObjectId((String) id);
+            } catch (IllegalArgumentException e) {
+                //not a valid ObjectId - looked up as given, which will not find anything
+                if (log.isDebugEnabled()) {
+                    log.debug("id " + id + " is no valid ObjectId");
+                }
+            }
+        }
+        Cache c = morphium.getARHelper().getAnnotationFromHierarchy(type, Cache.class);
+        //partial objects must not end up in the id cache
+        boolean useCache = c != null && c.readCache() && morphium.isReadCacheEnabledForThread() && fieldList == null;
+        morphium.inc(StatisticKeys.READS);
+        if (useCache) {
+            T ret = morphium.getCache().getFromIDCache(type, id);
+            if (ret != null) {
+                cacheHit();
+                return ret;
+            }
+            cacheMiss();
+        } else {
+            morphium.inc(StatisticKeys.NO_CACHED_READS);
+        }
+
+        long start = System.currentTimeMillis();
+        DBCollection coll = morphium.getDatabase().getCollection(getCollectionName());
+        setReadPreferenceFor(coll);
+        BasicDBObject idQuery = new BasicDBObject("_id", id);
+        DBObject found = null;
+        for (int i = 0; i < morphium.getConfig().getRetriesOnNetworkError(); i++) {
+            try {
+                found = coll.findOne(idQuery, getFieldListForQuery());
+                break;
+            } catch (RuntimeException e) {
+                morphium.handleNetworkError(i, e);
+            }
+        }
+        morphium.fireProfilingReadEvent(this, System.currentTimeMillis() - start, ReadAccessType.GET);
+        if (found == null) {
+            return null;
+        }
+        T ret = morphium.getMapper().unmarshall(type, found);
+        if (ret != null) {
+            morphium.firePostLoadEvent(ret);
+            updateLastAccess(ret);
+            if (useCache) {
+                cacheLoaded(start);
+                //no query result - must not count against maxEntries
+                morphium.getCache().addLoadedById(type, id, ret);
+            }
+        }
+        return ret;
     }
 
     @Override
@@ -792,23 +1072,60 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     public T get() {
         Cache c = morphium.getARHelper().getAnnotationFromHierarchy(type, Cache.class); //type.getAnnotation(Cache.class);
         boolean useCache = c != null && c.readCache() && morphium.isReadCacheEnabledForThread();
-        String ck = morphium.getCache().getCacheKey(this);
         morphium.inc(StatisticKeys.READS);
         if (useCache) {
-            if (morphium.getCache().isCached(type, ck)) {
-                morphium.inc(StatisticKeys.CHITS);
-                List<T> lst = morphium.getCache().getFromCache(type, ck);
-                if (lst == null || lst.isEmpty()) {
-                    return null;
-                } else {
-                    return lst.get(0);
+            if (c.fullCollection()) {
+                List<T> ret = findInMemory(skip, 1);
+                if (ret != null) {
+                    cacheHit();
+                    return ret.isEmpty() ? null : ret.get(0);
                 }
+            }
+            //get() reads one element only - must not replace the cached asList() result of the same query
+            final CacheKey ck = morphium.getCache().getCacheKey(this).withLimit(1);
+            //one lookup only - the entry might be evicted between checking and reading
+            List<T> cached = getCachedResult(ck);
+            if (cached != null) {
+                cacheHit();
+                if (needsRefresh(c, ck)) {
+                    final QueryImpl<T> q = copyForRefresh();
+                    morphium.getSingleFlightLoader().refreshAsync(type, ck, new Callable<List<T>>() {
+                        @Override
+                        public List<T> call() throws Exception {
+                            return q.readOne(ck);
+                        }
+                    }, morphium.getAsyncOperationsThreadPool());
+                }
+                return first(cached);
 
             }
-            morphium.inc(StatisticKeys.CMISS);
-        } else {
-            morphium.inc(StatisticKeys.NO_CACHED_READS);
+            cacheMiss();
+            //loading a list here as well, a running load for the same key might be an asList()
+            return first(morphium.getSingleFlightLoader().load(type, ck, new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws Exception {
+                    return readOne(ck);
+                }
+            }, morphium.getConfig().getSingleFlightTimeout()));
+        }
+        morphium.inc(StatisticKeys.NO_CACHED_READS);
+        return first(readOne(null));
+    }
+
+    private T first(List<T> lst) {
+        if (lst == null || lst.isEmpty()) {
+            return null;
         }
+        return lst.get(0);
+    }
+
+    /**
+     * reads the first matching element from mongo
+     *
+     * @param ck - cache key, result is added to cache if not null
+     * @return list containing the element, empty if there is none
+     */
+    private List<T> readOne(CacheKey ck) {
         long start = System.currentTimeMillis();
         DBCollection coll = morphium.getDatabase().getCollection(getCollectionName());
         setReadPreferenceFor(coll);
@@ -829,7 +1146,7 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
 
         if (srch.length() == 0) {
             srch.close();
-            return null;
+            return new ArrayList<T>(0);
         }
 
         DBObject ret = null;
@@ -854,17 +1171,19 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
                 updateLastAccess(unmarshall);
 
                 lst.add((T) unmarshall);
-                if (useCache) {
+                if (ck != null) {
+                    cacheLoaded(start);
                     morphium.getCache().addToCache(ck, type, lst);
                 }
             }
-            return unmarshall;
+            return lst;
         }
 
-        if (useCache) {
+        if (ck != null) {
+            cacheLoaded(start);
             morphium.getCache().addToCache(ck, type, lst);
         }
-        return null;
+        return lst;
     }
 
     @Override
@@ -890,21 +1209,44 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     public <R> List<R> idList() {
         Cache c = morphium.getARHelper().getAnnotationFromHierarchy(type, Cache.class);//type.getAnnotation(Cache.class);
         boolean useCache = c != null && c.readCache() && morphium.isReadCacheEnabledForThread();
-        List<R> ret = new ArrayList<R>();
-        String ck = morphium.getCache().getCacheKey(this);
-        ck += " idlist";
         morphium.inc(StatisticKeys.READS);
         if (useCache) {
-
-            if (morphium.getCache().isCached(type, ck)) {
-                morphium.inc(StatisticKeys.CHITS);
-                //casts are not nice... any idea how to change that?
-                return (List<R>) morphium.getCache().getFromCache(type, ck);
+            final CacheKey ck = morphium.getCache().getCacheKey(this).asIdList();
+            //one lookup only - the entry might be evicted between checking and reading
+            //casts are not nice... any idea how to change that?
+            List<R> cached = (List<R>) (List<?>) morphium.getCache().getFromCache(type, ck);
+            if (cached != null) {
+                cacheHit();
+                if (needsRefresh(c, ck)) {
+                    final QueryImpl<T> q = copyForRefresh();
+                    morphium.getSingleFlightLoader().refreshAsync(type, ck, new Callable<List<R>>() {
+                        @Override
+                        public List<R> call() throws Exception {
+                            return q.readIdList(ck);
+                        }
+                    }, morphium.getAsyncOperationsThreadPool());
+                }
+                return cached;
             }
-            morphium.inc(StatisticKeys.CMISS);
-        } else {
-            morphium.inc(StatisticKeys.NO_CACHED_READS);
+            cacheMiss();
+            return morphium.getSingleFlightLoader().load(type, ck, new Callable<List<R>>() {
+                @Override
+                public List<R> call() throws Exception {
+                    return readIdList(ck);
+                }
+            }, morphium.getConfig().getSingleFlightTimeout());
         }
+        morphium.inc(StatisticKeys.NO_CACHED_READS);
+        return readIdList(null);
+    }
+
+    /**
+     * reads the ids from mongo
+     *
+     * @param ck - cache key, result is added to cache if not null
+     */
+    private <R> List<R> readIdList(CacheKey ck) {
+        List<R> ret = new ArrayList<R>();
         long start = System.currentTimeMillis();
         DBCollection collection = morphium.getDatabase().getCollection(getCollectionName());
         setReadPreferenceFor(collection);
@@ -933,7 +1275,8 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         }
         long dur = System.currentTimeMillis() - start;
         morphium.fireProfilingReadEvent(this, dur, ReadAccessType.ID_LIST);
-        if (useCache) {
+        if (ck != null) {
+            cacheLoaded(start);
             morphium.getCache().addToCache(ck, (Class<? extends R>) type, ret);
         }
         return ret;
@@ -1093,6 +1436,11 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     }
 
 
+    @Override
+    public DBObject getReturnedFields() {
+        return fieldList;
+    }
+
     @Override
     public void addReturnedField(Enum f) {
         addReturnedField(f.name());
@@ -183,8 +183,11 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                         }
                     }
 
-                    morphium.getCache().clearCacheIfNecessary(o.getClass());
+                    morphium.getCache().clearCacheIfNecessary(o.getClass(), morphium.getARHelper().getId(o), marshall);
                     morphium.firePostStoreEvent(o, isNew);
+                    if (morphium.getInMemoryQueryEngine() != null) {
+                        morphium.getInMemoryQueryEngine().writtenTo(type, collection);
+                    }
                     if (callback != null)
                         callback.onOperationSucceeded(AsyncOperationType.WRITE, null, System.currentTimeMillis() - start, null, obj);
                 } catch (Exception e) {
@@ -410,6 +413,11 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
         //bulk insert
         morphium.fireProfilingWriteEvent(lst.get(0).getClass(), dbLst, dur, true, WriteAccessType.BULK_INSERT);
         morphium.firePostStore(isNew);
+        if (morphium.getInMemoryQueryEngine() != null) {
+            for (Class<?> type : types) {
+                morphium.getInMemoryQueryEngine().writtenTo(type, collectionName);
+            }
+        }
     }
 
     @Override
@@ -1072,9 +1080,14 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                     }
                     long dur = System.currentTimeMillis() - start;
                     morphium.fireProfilingWriteEvent(o.getClass(), o, dur, false, WriteAccessType.SINGLE_DELETE);
-                    morphium.clearCachefor(o.getClass());
+                    //results containing the object are always gone, results whose query matched it only if clearOnWrite
+                    morphium.getCache().removeEntryFromCache(o.getClass(), id);
+                    morphium.getCache().clearCacheIfNecessary(o.getClass(), id, morphium.getMapper().marshall(o));
                     morphium.inc(StatisticKeys.WRITES);
                     morphium.firePostRemoveEvent(o);
+                    if (morphium.getInMemoryQueryEngine() != null) {
+                        morphium.getInMemoryQueryEngine().writtenTo(morphium.getARHelper().getRealClass(o.getClass()), collection);
+                    }
                     if (callback != null)
                         callback.onOperationSucceeded(AsyncOperationType.REMOVE, null, System.currentTimeMillis() - start, null, o);
                 } catch (Exception e) {
@@ -0,0 +1,135 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.cache.*;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static de.caluga.morphium.cache.CacheMetrics.EvictionReason.*;
+
+/**
+ * testing the per type cache metrics without mongo
+ */
+public class CacheMetricsTest {
+
+    private List<CachedObject> createList(int amount) {
+        List<CachedObject> lst = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            CachedObject o = new CachedObject();
+            o.setId(new ObjectId());
+            o.setCounter(i);
+            o.setValue("v" + i);
+            lst.add(o);
+        }
+        return lst;
+    }
+
+    private CacheKey key(String k) {
+        return new CacheKey(new BasicDBObject("key", k), null, null, "cached_object", 0, 0);
+    }
+
+    private void countTest(MorphiumCache cache) {
+        CacheTypeMetrics m = cache.getMetrics().get(CachedObject.class);
+        List<CachedObject> lst = createList(10);
+        cache.addToCache(key("k1"), CachedObject.class, lst);
+        cache.addToCache(key("k2"), CachedObject.class, createList(10));
+        cache.addToCache(key("k3"), CachedObject.class, createList(10));
+        assert (m.getEntries() == 3);
+        assert (m.getBytes() > 0);
+        long bytes = m.getBytes();
+        cache.addToCache(key("k3"), CachedObject.class, createList(20));
+        assert (m.getEntries() == 3) : "replaced";
+        assert (m.getBytes() > bytes);
+
+        cache.removeEntryFromCache(CachedObject.class, lst.get(0).getId());
+        assert (m.getEntries() == 2);
+        assert (m.getEvictions(CLEAR) == 1);
+
+        CacheMetrics.setSyncing(true);
+        try {
+            cache.clearCachefor(CachedObject.class);
+        } finally {
+            CacheMetrics.setSyncing(false);
+        }
+        assert (m.getEntries() == 0);
+        assert (m.getBytes() == 0);
+        assert (m.getEvictions(SYNC) == 2);
+        assert (m.getEvictions(CLEAR) == 1);
+
+        cache.addToCache(key("k1"), CachedObject.class, lst);
+        cache.addToCache(key("k2"), CachedObject.class, createList(10));
+        assert (cache.shed(50) == 1);
+        assert (m.getEvictions(SIZE) == 1);
+        assert (m.getEntries() == 1);
+        assert (cache.getMetrics().getAll().size() == 1);
+    }
+
+    @Test
+    public void segmentedCacheTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        cache.addToCache(key("k1"), CachedObject.class, createList(10));
+        assert (cache.getMetrics().get(CachedObject.class).getBytes() == 0) : "sizes are only estimated with a byte budget";
+
+        cache = new SegmentedMorphiumCacheImpl();
+        cache.setEstimateSizes(true);
+        countTest(cache);
+
+        cache = new SegmentedMorphiumCacheImpl();
+        cache.addToCache(key("old"), CachedObject.class, createList(1));
+        Thread.sleep(100);
+        assert (cache.expire(CachedObject.class, 50) == 1);
+        assert (cache.getMetrics().get(CachedObject.class).getEvictions(EXPIRY) == 1);
+        assert (cache.getMetrics().get(CachedObject.class).getEntries() == 0);
+
+        for (int i = 0; i < 15; i++) {
+            List<SegmentedCacheTest.FifoCached> lst = new ArrayList<>();
+            SegmentedCacheTest.FifoCached f = new SegmentedCacheTest.FifoCached();
+            f.id = new ObjectId();
+            lst.add(f);
+            cache.addToCache(key("f" + i), SegmentedCacheTest.FifoCached.class, lst);
+        }
+        CacheTypeMetrics fm = cache.getMetrics().get(SegmentedCacheTest.FifoCached.class);
+        assert (fm.getEntries() == 10);
+        assert (fm.getEvictions(SIZE) == 5);
+    }
+
+    @Test
+    public void cacheImplTest() throws Exception {
+        MorphiumCacheImpl cache = new MorphiumCacheImpl();
+        cache.addToCache(key("k1"), CachedObject.class, createList(10));
+        assert (cache.getMetrics().get(CachedObject.class).getBytes() == 0) : "sizes are not estimated by default";
+
+        cache = new MorphiumCacheImpl();
+        cache.setEstimateSizes(true);
+        countTest(cache);
+    }
+
+    @Test
+    public void histogramTest() throws Exception {
+        CacheTypeMetrics m = new CacheTypeMetrics(CachedObject.class);
+        m.loaded(0);
+        m.loaded(1);
+        m.loaded(3);
+        m.loaded(3);
+        m.loaded(1000);
+        m.loaded(100000);
+        long[] h = m.getLoadTimeHistogram();
+        assert (h[0] == 1);
+        assert (h[1] == 1);
+        assert (h[2] == 2);
+        assert (h[10] == 1) : "512-1023ms";
+        assert (h[CacheTypeMetrics.BUCKETS - 1] == 1);
+        assert (CacheTypeMetrics.getBucketLimit(10) == 1024);
+        assert (m.getLoads() == 6);
+        assert (m.getAverageLoadTime() > 16000);
+
+        m.hit();
+        m.hit();
+        m.hit();
+        m.miss();
+        assert (m.getHitRatio() == 0.75);
+    }
+}
@@ -0,0 +1,54 @@
+package de.caluga.test.mongo.suite;
+
+import de.caluga.morphium.MorphiumSingleton;
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.query.Query;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * testing refresh ahead and stale while revalidate
+ */
+public class CacheRefreshTest extends MongoTest {
+
+    @Test
+    public void staleWhileRevalidateTest() throws Exception {
+        MorphiumSingleton.get().dropCollection(RefreshedObject.class);
+        for (int i = 0; i < 10; i++) {
+            RefreshedObject o = new RefreshedObject();
+            o.counter = i;
+            MorphiumSingleton.get().store(o);
+        }
+        waitForWrites();
+        Query<RefreshedObject> q = MorphiumSingleton.get().createQueryFor(RefreshedObject.class).f("counter").lt(5);
+        List<RefreshedObject> lst = q.asList();
+        assert (lst.size() == 5);
+
+        //writing without clearing the cache
+        RefreshedObject o = new RefreshedObject();
+        o.counter = 1;
+        MorphiumSingleton.get().storeNoCache(o);
+
+        Thread.sleep(1100);
+        //timeout passed - stale value is served, refresh is triggered
+        long start = System.currentTimeMillis();
+        lst = q.asList();
+        assert (System.currentTimeMillis() - start < 100);
+        assert (lst.size() == 5) : "Stale value not served? " + lst.size();
+        Thread.sleep(500);
+        lst = q.asList();
+        assert (lst.size() == 6) : "Not refreshed: " + lst.size();
+    }
+
+    @Entity
+    @Cache(timeout = 1000, staleWhileRevalidate = 5000, refreshAhead = 0.8, clearOnWrite = false)
+    public static class RefreshedObject {
+        @Id
+        public ObjectId id;
+        public int counter;
+    }
+}
@@ -0,0 +1,102 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.ObjectMapperImpl;
+import de.caluga.morphium.cache.*;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * testing writing and restoring of cache snapshots without mongo
+ */
+public class CacheSnapshotTest {
+
+    private List<CachedObject> createList(int from, int amount) {
+        List<CachedObject> lst = new ArrayList<>();
+        for (int i = from; i < from + amount; i++) {
+            CachedObject o = new CachedObject();
+            o.setId(new ObjectId());
+            o.setCounter(i);
+            o.setValue("v" + i);
+            lst.add(o);
+        }
+        return lst;
+    }
+
+    private void writeAndRead(MorphiumCache cache, MorphiumCache restored) throws Exception {
+        Map<String, Object> sort = new LinkedHashMap<>();
+        sort.put("counter", -1);
+        sort.put("value", 1);
+        CacheKey k1 = new CacheKey(new BasicDBObject("counter", new BasicDBObject("$lt", 10)), null, null, "cached_object", 0, 0);
+        CacheKey k2 = new CacheKey(new BasicDBObject("value", Pattern.compile("^v", Pattern.CASE_INSENSITIVE)), sort, null, "cached_object", 5, 10);
+        CacheKey projected = new CacheKey(new BasicDBObject("counter", new BasicDBObject("$lt", 3)), null, new BasicDBObject("counter", 1), "cached_object", 0, 0);
+        CacheKey expired = new CacheKey(new BasicDBObject("counter", 42), null, null, "cached_object", 0, 0);
+        CacheKey ids = k1.asIdList();
+
+        List<CachedObject> lst = createList(0, 10);
+        List<CachedObject> partial = new ArrayList<>();
+        for (CachedObject o : lst.subList(0, 3)) {
+            CachedObject p = new CachedObject();
+            p.setId(o.getId());
+            p.setCounter(o.getCounter());
+            partial.add(p);
+        }
+        cache.addToCache(projected, CachedObject.class, partial);
+        cache.addToCache(k1, CachedObject.class, lst);
+        cache.addToCache(k2, CachedObject.class, new ArrayList<>(lst.subList(0, 5)));
+        cache.addToCache(expired, CachedObject.class, createList(42, 1));
+        List<Object> idList = new ArrayList<>();
+        for (CachedObject o : lst) {
+            idList.add(o.getId());
+        }
+        cache.addToCache(ids, CachedObject.class, (List) idList);
+        long created = System.currentTimeMillis() - 1000;
+        cache.getCacheElement(CachedObject.class, k1).setCreated(created);
+        cache.getCacheElement(CachedObject.class, projected).setCreated(created - 1000);
+        //timeout of CachedObject is 5s
+        cache.getCacheElement(CachedObject.class, expired).setCreated(System.currentTimeMillis() - 10000);
+
+        File f = File.createTempFile("morphium", ".snapshot");
+        try {
+            CacheSnapshot snapshot = new CacheSnapshot(new ObjectMapperImpl());
+            assert (snapshot.write(cache, f) == 4);
+            assert (!new File(f.getPath() + ".tmp").exists());
+
+            CacheSnapshot reader = new CacheSnapshot(new ObjectMapperImpl());
+            assert (reader.read(restored, f) == 3);
+            assert (reader.getSnapshotTime() > 0);
+        } finally {
+            f.delete();
+        }
+
+        List<CachedObject> r = restored.getFromCache(CachedObject.class, k1);
+        assert (r != null && r.size() == 10);
+        for (int i = 0; i < 10; i++) {
+            assert (r.get(i).getId().equals(lst.get(i).getId()));
+            assert (r.get(i).getValue().equals(lst.get(i).getValue()));
+        }
+        assert (restored.getCacheElement(CachedObject.class, k1).getCreated() == created) : "creation time must be kept";
+        List<CachedObject> r2 = restored.getFromCache(CachedObject.class, k2);
+        assert (r2 != null && r2.size() == 5);
+        assert (r2.get(0).getId().equals(r.get(0).getId()));
+        assert (r2.get(0) != r.get(0)) : "restored results must not share instances";
+        assert (!restored.isCached(CachedObject.class, projected)) : "projected results are not written";
+        assert (restored.getFromCache(CachedObject.class, ids).equals(idList));
+        assert (!restored.isCached(CachedObject.class, expired));
+        assert (restored.getFromIDCache(CachedObject.class, lst.get(3).getId()) != null);
+    }
+
+    @Test
+    public void segmentedCacheTest() throws Exception {
+        writeAndRead(new SegmentedMorphiumCacheImpl(), new SegmentedMorphiumCacheImpl());
+    }
+
+    @Test
+    public void cacheImplTest() throws Exception {
+        writeAndRead(new MorphiumCacheImpl(), new MorphiumCacheImpl());
+    }
+}
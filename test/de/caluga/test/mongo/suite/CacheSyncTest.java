@@ -18,6 +18,11 @@ import de.caluga.morphium.query.Query;
 import org.bson.types.ObjectId;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
 /**
  * User: Stephan Bösebeck
  * Date: 12.06.12
@@ -50,6 +55,133 @@ public class CacheSyncTest extends MongoTest {
         cs.detach();
     }
 
+    @Test
+    public void coalesceTest() throws Exception {
+        MorphiumSingleton.get().dropCollection(Msg.class);
+        Messaging msg = new Messaging(MorphiumSingleton.get(), 100, true);
+        msg.start();
+        CacheSynchronizer cs = new CacheSynchronizer(msg, MorphiumSingleton.get());
+        cs.setCoalesceWindow(1000);
+        cs.setCoalesceMaxIds(10);
+        final List<Msg> sent = new Vector<>();
+        cs.addSyncListener(new CacheSyncListener() {
+            @Override
+            public void preClear(Class cls, Msg m) throws CacheSyncVetoException {
+            }
+
+            @Override
+            public void postClear(Class cls, Msg m) {
+            }
+
+            @Override
+            public void preSendClearMsg(Class cls, Msg m) throws CacheSyncVetoException {
+            }
+
+            @Override
+            public void postSendClearMsg(Class cls, Msg m) {
+                sent.add(m);
+            }
+        });
+
+        for (int i = 0; i < 50; i++) {
+            cs.sendClearMessage(CachedObject.class, "test");
+        }
+        Map<Object, Boolean> records = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            IdCachedObject o = new IdCachedObject();
+            o.setId(new ObjectId());
+            records.put(o, false);
+        }
+        cs.sendClearMessage("store", records);
+        cs.sendClearMessage("store", records);
+        Thread.sleep(2000);
+        assert (sent.size() == 2) : "Sent " + sent.size();
+        for (Msg m : sent) {
+            if (m.getName().equals(CacheSynchronizer.CACHE_SYNC_RECORD)) {
+                assert (m.getAdditional().size() == 5);
+            } else {
+                assert (m.getValue().equals(CachedObject.class.getName()));
+            }
+        }
+
+        //too many ids - clearing the type
+        sent.clear();
+        for (int i = 0; i < 3; i++) {
+            records = new HashMap<>();
+            for (int j = 0; j < 5; j++) {
+                IdCachedObject o = new IdCachedObject();
+                o.setId(new ObjectId());
+                records.put(o, false);
+            }
+            cs.sendClearMessage("store", records);
+        }
+        cs.flush();
+        assert (sent.size() == 1);
+        assert (sent.get(0).getName().equals(CacheSynchronizer.CACHE_SYNC_TYPE));
+        waitForWrites();
+        Thread.sleep(1000);
+        long cnt = MorphiumSingleton.get().createQueryFor(Msg.class).countAll();
+        assert (cnt == 3) : "there should be 3 msg, there are " + cnt;
+        msg.setRunning(false);
+        cs.detach();
+    }
+
+    @Test
+    public void updateEntryWithDocumentTest() throws Exception {
+        Morphium m = MorphiumSingleton.get();
+        m.dropCollection(IdCachedObject.class);
+        IdCachedObject o = new IdCachedObject();
+        o.setCounter(1);
+        o.setValue("original");
+        m.store(o);
+        waitForWrites();
+        IdCachedObject cached = m.createQueryFor(IdCachedObject.class).f("counter").eq(1).get();
+        assert (m.getCache().getFromIDCache(IdCachedObject.class, cached.getId()) == cached);
+
+        Messaging msg = new Messaging(m, 100, true);
+        CacheSynchronizer cs = new CacheSynchronizer(msg, m);
+        final List<Msg> sent = new Vector<>();
+        cs.addSyncListener(IdCachedObject.class, new CacheSyncListener() {
+            @Override
+            public void preClear(Class cls, Msg m) throws CacheSyncVetoException {
+            }
+
+            @Override
+            public void postClear(Class cls, Msg m) {
+            }
+
+            @Override
+            public void preSendClearMsg(Class cls, Msg m) throws CacheSyncVetoException {
+                //not sending it, just recording
+                sent.add(m);
+                throw new CacheSyncVetoException("test");
+            }
+
+            @Override
+            public void postSendClearMsg(Class cls, Msg m) {
+            }
+        });
+        IdCachedObject changed = new IdCachedObject();
+        changed.setId(cached.getId());
+        changed.setCounter(1);
+        changed.setValue("changed, but not in db");
+        Map<Object, Boolean> records = new HashMap<>();
+        records.put(changed, false);
+        cs.sendClearMessage("store", records);
+        assert (sent.size() == 1);
+        assert (sent.get(0).getMapValue().get(cached.getId().toString()) != null) : "document not sent";
+
+        //receiving the message updates the cache without reading
+        cs.onMessage(msg, sent.get(0));
+        assert (cached.getValue().equals("changed, but not in db")) : "Value: " + cached.getValue();
+
+        //without document, the object is reread
+        sent.get(0).setMapValue(null);
+        cs.onMessage(msg, sent.get(0));
+        assert (cached.getValue().equals("original"));
+        cs.detach();
+    }
+
     @Test
     public void removeFromCacheTest() throws Exception {
         for (int i = 0; i < 100; i++) {
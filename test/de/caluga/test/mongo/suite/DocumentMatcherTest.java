@@ -0,0 +1,96 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.cache.DocumentMatcher;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import static de.caluga.morphium.cache.DocumentMatcher.Result.*;
+
+/**
+ * testing in memory evaluation of queries
+ */
+public class DocumentMatcherTest {
+    private DocumentMatcher matcher = new DocumentMatcher();
+
+    private BasicDBObject doc() {
+        BasicDBList tags = new BasicDBList();
+        tags.add("a");
+        tags.add("b");
+        BasicDBList subs = new BasicDBList();
+        subs.add(new BasicDBObject("name", "s1").append("val", 1));
+        subs.add(new BasicDBObject("name", "s2").append("val", 2));
+        return new BasicDBObject("_id", new ObjectId()).append("counter", 42).append("value", "Hello World")
+                .append("tags", tags).append("subs", subs).append("created", new Date(1000))
+                .append("embedded", new BasicDBObject("x", 1L).append("y", "z")).append("nullValue", null);
+    }
+
+    @Test
+    public void equalityTest() throws Exception {
+        BasicDBObject d = doc();
+        assert (matcher.matches(new BasicDBObject(), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", 42), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", 42L), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", 42.0), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", 43), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", "42"), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("_id", d.get("_id")), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("tags", "b"), d) == MATCH) : "array contains";
+        assert (matcher.matches(new BasicDBObject("tags", Arrays.asList("a", "b")), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("tags", Arrays.asList("b", "a")), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("subs.name", "s2"), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("subs.1.name", "s2"), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("subs.0.name", "s2"), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("embedded.x", 1), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("embedded", new BasicDBObject("x", 1).append("y", "z")), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("embedded", new BasicDBObject("y", "z").append("x", 1)), d) == NO_MATCH) : "field order matters";
+        assert (matcher.matches(new BasicDBObject("missing", null), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("nullValue", null), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("value", Pattern.compile("^hello", Pattern.CASE_INSENSITIVE)), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("value", Pattern.compile("^hello")), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", 42).append("value", "other"), d) == NO_MATCH);
+    }
+
+    @Test
+    public void operatorTest() throws Exception {
+        BasicDBObject d = doc();
+        assert (matcher.matches(new BasicDBObject("counter", new BasicDBObject("$gt", 40).append("$lte", 42)), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", new BasicDBObject("$gt", 42)), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", new BasicDBObject("$gt", "a")), d) == NO_MATCH) : "no type bracket crossing";
+        assert (matcher.matches(new BasicDBObject("created", new BasicDBObject("$lt", new Date(2000))), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("subs.val", new BasicDBObject("$gte", 2)), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", new BasicDBObject("$ne", 42)), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("missing", new BasicDBObject("$ne", 42)), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(1, 42))), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("tags", new BasicDBObject("$in", Arrays.asList("x", "a"))), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", new BasicDBObject("$nin", Arrays.asList(1, 42))), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("tags", new BasicDBObject("$all", Arrays.asList("b", "a"))), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("tags", new BasicDBObject("$all", Arrays.asList("b", "c"))), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("tags", new BasicDBObject("$size", 2)), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("missing", new BasicDBObject("$exists", false)), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("nullValue", new BasicDBObject("$exists", true)), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("value", new BasicDBObject("$regex", "world$").append("$options", "i")), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("counter", new BasicDBObject("$not", new BasicDBObject("$gt", 50))), d) == MATCH);
+
+        assert (matcher.matches(new BasicDBObject("$or", Arrays.asList(new BasicDBObject("counter", 1), new BasicDBObject("value", "Hello World"))), d) == MATCH);
+        assert (matcher.matches(new BasicDBObject("$or", Arrays.asList(new BasicDBObject("counter", 1), new BasicDBObject("value", "x"))), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("$and", Arrays.asList(new BasicDBObject("counter", 42), new BasicDBObject("value", "x"))), d) == NO_MATCH);
+        assert (matcher.matches(new BasicDBObject("$nor", Arrays.asList(new BasicDBObject("counter", 1))), d) == MATCH);
+    }
+
+    @Test
+    public void unsupportedTest() throws Exception {
+        BasicDBObject d = doc();
+        assert (matcher.matches(new BasicDBObject("$where", "this.counter==42"), d) == UNKNOWN);
+        assert (matcher.matches(new BasicDBObject("subs", new BasicDBObject("$elemMatch", new BasicDBObject("val", 1))), d) == UNKNOWN);
+        assert (matcher.matches(new BasicDBObject("counter", new BasicDBObject("$mod", Arrays.asList(2, 0))), d) == UNKNOWN);
+        assert (matcher.matches(new BasicDBObject("counter", new StringBuilder("42")), d) == UNKNOWN) : "unknown value type";
+        //unsupported part is not evaluated, if the result is already clear
+        assert (matcher.matches(new BasicDBObject("counter", 1).append("$where", "true"), d) == NO_MATCH);
+    }
+}
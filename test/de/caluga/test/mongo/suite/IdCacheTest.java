@@ -46,4 +46,30 @@ public class IdCacheTest extends MongoTest {
 
         assert (lst.get(0) == c) : "Object changed?!?!?";
     }
+
+    @Test
+    public void findByIdFastPathTest() throws Exception {
+        CachedObject u = new CachedObject();
+        u.setCounter(42);
+        u.setValue("fast path");
+        MorphiumSingleton.get().store(u);
+        waitForWrites();
+        MorphiumSingleton.get().getCache().clearCachefor(CachedObject.class);
+
+        CachedObject c = MorphiumSingleton.get().findById(CachedObject.class, u.getId());
+        assert (c != null && c.getCounter() == 42);
+        assert (MorphiumSingleton.get().getCache().getFromIDCache(CachedObject.class, u.getId()) == c) : "not added to id cache";
+        assert (MorphiumSingleton.get().findById(CachedObject.class, u.getId()) == c);
+        //string ids are converted
+        assert (MorphiumSingleton.get().createQueryFor(CachedObject.class).getById(u.getId().toString()) == c);
+
+        //id cache entry is invalidated on write
+        c.setCounter(43);
+        MorphiumSingleton.get().store(c);
+        waitForWrites();
+        assert (MorphiumSingleton.get().getCache().getFromIDCache(CachedObject.class, u.getId()) == null);
+        assert (MorphiumSingleton.get().findById(CachedObject.class, u.getId()).getCounter() == 43);
+
+        assert (MorphiumSingleton.get().findById(CachedObject.class, new ObjectId()) == null);
+    }
 }
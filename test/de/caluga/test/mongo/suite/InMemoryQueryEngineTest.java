@@ -0,0 +1,144 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.ObjectMapperImpl;
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.cache.InMemoryQueryEngine;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * testing query evaluation over a fully cached collection without mongo
+ */
+public class InMemoryQueryEngineTest {
+
+    private List<CachedObject> createList() {
+        List<CachedObject> lst = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            CachedObject o = new CachedObject();
+            o.setId(new ObjectId());
+            o.setCounter(i % 10);
+            o.setValue("v" + i);
+            lst.add(o);
+        }
+        return lst;
+    }
+
+    @Test
+    public void findTest() throws Exception {
+        InMemoryQueryEngine engine = new InMemoryQueryEngine(new ObjectMapperImpl());
+        List<CachedObject> all = createList();
+        assert (engine.load(CachedObject.class, all, engine.getGeneration(CachedObject.class), 0));
+
+        List<CachedObject> ret = engine.find(CachedObject.class, new BasicDBObject("counter", 3), null, 0, 0);
+        assert (ret.size() == 2);
+        assert (ret.get(0) == all.get(3) && ret.get(1) == all.get(13)) : "natural order expected";
+
+        ret = engine.find(CachedObject.class, new BasicDBObject("counter", new BasicDBObject("$lt", 2)).append("value", Pattern.compile("^v1")), null, 0, 0);
+        assert (ret.size() == 3) : "Size: " + ret.size(); //v1, v10, v11
+
+        ret = engine.find(CachedObject.class, new BasicDBObject("$or", Arrays.asList(new BasicDBObject("counter", 1), new BasicDBObject("counter", 2))), null, 0, 0);
+        assert (ret.size() == 4);
+
+        assert (engine.find(CachedObject.class, new BasicDBObject("$where", "true"), null, 0, 0) == null) : "must fall back to mongo";
+    }
+
+    @Test
+    public void sortSkipLimitTest() throws Exception {
+        InMemoryQueryEngine engine = new InMemoryQueryEngine(new ObjectMapperImpl());
+        List<CachedObject> all = createList();
+        assert (engine.load(CachedObject.class, all, engine.getGeneration(CachedObject.class), 0));
+        Map<String, Object> sort = new LinkedHashMap<>();
+        sort.put("counter", -1);
+        sort.put("value", 1);
+        List<CachedObject> ret = engine.find(CachedObject.class, new BasicDBObject(), sort, 0, 0);
+        assert (ret.size() == 20);
+        assert (ret.get(0).getValue().equals("v19"));
+        assert (ret.get(1).getValue().equals("v9"));
+        assert (ret.get(19).getValue().equals("v10"));
+
+        ret = engine.find(CachedObject.class, new BasicDBObject("counter", new BasicDBObject("$gte", 5)), sort, 2, 3);
+        assert (ret.size() == 3);
+        assert (ret.get(0).getValue().equals("v18"));
+        assert (ret.get(2).getValue().equals("v17"));
+
+        assert (engine.find(CachedObject.class, new BasicDBObject(), sort, 30, 0).isEmpty());
+    }
+
+    @Test
+    public void indexMaintenanceTest() throws Exception {
+        InMemoryQueryEngine engine = new InMemoryQueryEngine(new ObjectMapperImpl());
+        List<CachedObject> all = createList();
+        long gen = engine.getGeneration(CachedObject.class);
+        engine.update(CachedObject.class, all.get(0));
+        assert (!engine.load(CachedObject.class, all, gen, 0)) : "changed while loading";
+        assert (engine.find(CachedObject.class, new BasicDBObject(), null, 0, 0) == null) : "not loaded";
+        assert (engine.load(CachedObject.class, all, engine.getGeneration(CachedObject.class), 0));
+
+        //counter and value are indexed
+        assert (engine.find(CachedObject.class, new BasicDBObject("counter", 5), null, 0, 0).size() == 2);
+        assert (engine.find(CachedObject.class, new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(1, 2L))), null, 0, 0).size() == 4);
+        assert (engine.find(CachedObject.class, new BasicDBObject("counter", new BasicDBObject("$gt", 2).append("$lte", 4)), null, 0, 0).size() == 4);
+        assert (engine.find(CachedObject.class, new BasicDBObject("value", "v7").append("counter", 7), null, 0, 0).size() == 1);
+
+        //update changes index entry, keeps position
+        all.get(5).setCounter(100);
+        engine.update(CachedObject.class, all.get(5));
+        List<CachedObject> ret = engine.find(CachedObject.class, new BasicDBObject("counter", 5), null, 0, 0);
+        assert (ret.size() == 1 && ret.get(0) == all.get(15));
+        ret = engine.find(CachedObject.class, new BasicDBObject("counter", new BasicDBObject("$gte", 4)), null, 0, 0);
+        assert (ret.get(1) == all.get(5)) : "natural order";
+
+        //new object
+        CachedObject o = new CachedObject();
+        o.setId(new ObjectId());
+        o.setCounter(5);
+        o.setValue("new");
+        engine.update(CachedObject.class, o);
+        ret = engine.find(CachedObject.class, new BasicDBObject("counter", 5), null, 0, 0);
+        assert (ret.size() == 2 && ret.get(1) == o);
+
+        engine.remove(CachedObject.class, all.get(15).getId());
+        ret = engine.find(CachedObject.class, new BasicDBObject("counter", 5), null, 0, 0);
+        assert (ret.size() == 1 && ret.get(0) == o);
+        assert (engine.find(CachedObject.class, new BasicDBObject(), null, 0, 0).size() == 20);
+
+        engine.invalidate(CachedObject.class);
+        assert (!engine.isLoaded(CachedObject.class));
+    }
+
+    @Test
+    public void otherCollectionTest() throws Exception {
+        ObjectMapperImpl om = new ObjectMapperImpl();
+        InMemoryQueryEngine engine = new InMemoryQueryEngine(om);
+        List<FullyCached> all = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            FullyCached o = new FullyCached();
+            o.id = new ObjectId();
+            all.add(o);
+        }
+        assert (engine.load(FullyCached.class, all, engine.getGeneration(FullyCached.class), 0));
+        engine.writtenTo(FullyCached.class, null);
+        engine.writtenTo(FullyCached.class, om.getCollectionName(FullyCached.class));
+        assert (engine.isLoaded(FullyCached.class));
+
+        //object stored somewhere else, the listener already added it
+        FullyCached other = new FullyCached();
+        other.id = new ObjectId();
+        engine.update(FullyCached.class, other);
+        engine.writtenTo(FullyCached.class, "other_collection");
+        assert (!engine.isLoaded(FullyCached.class));
+    }
+
+    @Entity
+    @Cache(fullCollection = true)
+    public static class FullyCached {
+        @Id
+        public ObjectId id;
+    }
+}
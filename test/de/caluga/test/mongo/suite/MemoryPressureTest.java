@@ -0,0 +1,110 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.cache.*;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import javax.management.Notification;
+import java.lang.management.MemoryNotificationInfo;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * testing shedding of cached results without mongo
+ */
+public class MemoryPressureTest {
+
+    private List<CachedObject> createList(int amount) {
+        List<CachedObject> lst = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            CachedObject o = new CachedObject();
+            o.setId(new ObjectId());
+            o.setCounter(i);
+            o.setValue("value " + i);
+            lst.add(o);
+        }
+        return lst;
+    }
+
+    private CacheKey key(String k) {
+        return new CacheKey(new BasicDBObject("key", k), null, null, "cached_object", 0, 0);
+    }
+
+    private void shedTest(MorphiumCache cache) {
+        List<CachedObject> small = createList(10);
+        List<CachedObject> big = createList(100);
+        List<CachedObject> old = createList(10);
+        cache.addToCache(key("small"), CachedObject.class, small);
+        cache.addToCache(key("big"), CachedObject.class, big);
+        cache.addToCache(key("old"), CachedObject.class, old);
+        cache.addToCache(key("other"), CachedObject.class, createList(10));
+        //same objects in two results
+        cache.addToCache(key("shared"), CachedObject.class, new ArrayList<>(big.subList(0, 5)));
+        long now = System.currentTimeMillis();
+        for (String k : new String[]{"small", "big", "other", "shared"}) {
+            cache.getCacheElement(CachedObject.class, key(k)).setLru(now - 1000);
+        }
+        cache.getCacheElement(CachedObject.class, key("old")).setLru(now - 100000);
+
+        assert (cache.shed(40) == 2);
+        assert (!cache.isCached(CachedObject.class, key("big")));
+        assert (!cache.isCached(CachedObject.class, key("old")));
+        assert (cache.isCached(CachedObject.class, key("small")));
+        assert (cache.isCached(CachedObject.class, key("other")));
+        assert (cache.isCached(CachedObject.class, key("shared")));
+
+        assert (cache.getFromIDCache(CachedObject.class, small.get(0).getId()) != null);
+        assert (cache.getFromIDCache(CachedObject.class, old.get(0).getId()) == null);
+        assert (cache.getFromIDCache(CachedObject.class, big.get(50).getId()) == null);
+        assert (cache.getFromIDCache(CachedObject.class, big.get(1).getId()) != null) : "still referenced";
+
+        assert (cache.shed(0) == 0);
+        assert (cache.shed(100) == 3);
+        assert (cache.cloneCache().get(CachedObject.class).isEmpty());
+    }
+
+    @Test
+    public void segmentedCacheShedTest() throws Exception {
+        shedTest(new SegmentedMorphiumCacheImpl());
+    }
+
+    @Test
+    public void cacheImplShedTest() throws Exception {
+        shedTest(new MorphiumCacheImpl());
+    }
+
+    @Test
+    public void notificationTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        for (int i = 0; i < 8; i++) {
+            cache.addToCache(key("k" + i), CachedObject.class, createList(10));
+        }
+        MemoryPressureMonitor monitor = new MemoryPressureMonitor(cache, 90);
+        monitor.setShedPercent(50);
+        monitor.setMinInterval(60000);
+        monitor.start();
+        try {
+            monitor.handleNotification(new Notification("other", this, 1), null);
+            Thread.sleep(200);
+            assert (monitor.getSheddingRuns() == 0);
+
+            monitor.handleNotification(new Notification(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED, this, 2), null);
+            long start = System.currentTimeMillis();
+            while (monitor.getSheddingRuns() == 0) {
+                assert (System.currentTimeMillis() - start < 5000) : "not shed";
+                Thread.sleep(50);
+            }
+            assert (monitor.getShedEntries() == 4);
+            assert (cache.cloneCache().get(CachedObject.class).size() == 4);
+
+            //within minInterval
+            monitor.handleNotification(new Notification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED, this, 3), null);
+            Thread.sleep(200);
+            assert (monitor.getSheddingRuns() == 1);
+        } finally {
+            monitor.stop();
+        }
+        assert (!monitor.isRunning());
+    }
+}
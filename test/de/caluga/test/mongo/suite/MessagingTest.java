@@ -1,9 +1,11 @@
 package de.caluga.test.mongo.suite;
 
+import com.mongodb.BasicDBObject;
 import de.caluga.morphium.MorphiumSingleton;
 import de.caluga.morphium.messaging.MessageListener;
 import de.caluga.morphium.messaging.Messaging;
 import de.caluga.morphium.messaging.Msg;
+import de.caluga.morphium.messaging.MsgPriority;
 import de.caluga.morphium.messaging.MsgType;
 import de.caluga.morphium.query.Query;
 import org.bson.types.ObjectId;
@@ -847,4 +849,564 @@ public class MessagingTest extends MongoTest {
 
 
     }
+
+    @Test
+    public void pushDeliveryExclusiveTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), 5000, true);
+        producer.setPushDelivery(true);
+        final Map<String, Integer> processedCount = new Hashtable<>();
+        final Messaging[] consumers = new Messaging[2];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Messaging(MorphiumSingleton.get(), 5000, false);
+            consumers[i].setPushDelivery(true);
+            consumers[i].addMessageListener(new MessageListener() {
+                @Override
+                public Msg onMessage(Messaging msg, Msg m) {
+                    synchronized (processedCount) {
+                        Integer c = processedCount.get(m.getMsgId().toString());
+                        processedCount.put(m.getMsgId().toString(), c == null ? 1 : c + 1);
+                    }
+                    return null;
+                }
+            });
+            consumers[i].start();
+        }
+        Thread.sleep(500);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            Msg m = new Msg("push", "m", "v" + i);
+            m.setExclusive(true);
+            producer.storeMessage(m);
+        }
+        while (processedCount.size() < 50) {
+            Thread.sleep(10);
+            assert (System.currentTimeMillis() - start < 4000) : "messages not pushed - only " + processedCount.size() + " processed";
+        }
+        Thread.sleep(1000);
+        for (Integer c : processedCount.values()) {
+            assert (c == 1) : "exclusive message processed " + c + " times";
+        }
+        for (Messaging c : consumers) {
+            c.setRunning(false);
+        }
+        producer.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void claimAndAcknowledgeTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), 100, true);
+        final Map<String, Integer> exclusiveCount = new Hashtable<>();
+        final Map<String, Integer> broadcastCount = new Hashtable<>();
+        final Messaging[] consumers = new Messaging[3];
+        for (int i = 0; i < consumers.length; i++) {
+            //single and multiple claims
+            consumers[i] = new Messaging(MorphiumSingleton.get(), 10, i % 2 == 0);
+            consumers[i].addMessageListener(new MessageListener() {
+                @Override
+                public Msg onMessage(Messaging msg, Msg m) {
+                    //isExclusive is transient - exclusive messages are locked by the receiving node
+                    boolean exclusive = !"ALL".equals(m.getLockedBy());
+                    Map<String, Integer> cnt = exclusive ? exclusiveCount : broadcastCount;
+                    String key = exclusive ? m.getMsgId().toString() : m.getMsgId().toString() + "/" + msg.getSenderId();
+                    synchronized (cnt) {
+                        Integer c = cnt.get(key);
+                        cnt.put(key, c == null ? 1 : c + 1);
+                    }
+                    return null;
+                }
+            });
+            consumers[i].start();
+        }
+        for (int i = 0; i < 100; i++) {
+            Msg m = new Msg("claim", "m", "v" + i);
+            m.setExclusive(i % 2 == 0);
+            producer.storeMessage(m);
+        }
+        long start = System.currentTimeMillis();
+        while (exclusiveCount.size() < 50 || broadcastCount.size() < 150) {
+            Thread.sleep(50);
+            assert (System.currentTimeMillis() - start < 10000) : "not all messages processed: " + exclusiveCount.size() + " / " + broadcastCount.size();
+        }
+        Thread.sleep(1000);
+        assert (exclusiveCount.size() == 50);
+        assert (broadcastCount.size() == 150);
+        for (Integer c : exclusiveCount.values()) {
+            assert (c == 1) : "exclusive message processed " + c + " times";
+        }
+        for (Integer c : broadcastCount.values()) {
+            assert (c == 1) : "broadcast processed " + c + " times by one node";
+        }
+        for (Messaging c : consumers) {
+            c.setRunning(false);
+        }
+        producer.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void saturatedThreadPoolTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        int maxThreads = MorphiumSingleton.get().getConfig().getThreadPoolMessagingMaxSize();
+        int queueSize = MorphiumSingleton.get().getConfig().getThreadPoolMessagingQueueSize();
+        MorphiumSingleton.get().getConfig().setThreadPoolMessagingMaxSize(2);
+        MorphiumSingleton.get().getConfig().setThreadPoolMessagingQueueSize(2);
+        final Messaging consumer;
+        try {
+            consumer = new Messaging(MorphiumSingleton.get(), 10, true, true, 100);
+        } finally {
+            MorphiumSingleton.get().getConfig().setThreadPoolMessagingMaxSize(maxThreads);
+            MorphiumSingleton.get().getConfig().setThreadPoolMessagingQueueSize(queueSize);
+        }
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), 100, true);
+        final int[] processed = {0};
+        consumer.addMessageListener(new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                synchronized (processed) {
+                    processed[0]++;
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < 200; i++) {
+            producer.storeMessage(new Msg("saturated", "m", "v" + i));
+        }
+        long start = System.currentTimeMillis();
+        consumer.start();
+        while (processed[0] < 200) {
+            Thread.sleep(10);
+            assert (System.currentTimeMillis() - start < 10000) : "only " + processed[0] + " processed";
+        }
+        log.info("Processing with 2 threads and queue of 2 took " + (System.currentTimeMillis() - start) + "ms");
+        Thread.sleep(500);
+        assert (processed[0] == 200) : "processed twice?";
+        producer.setRunning(false);
+        consumer.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void partitionedProcessingTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), 100, true);
+        final Messaging consumer = new Messaging(MorphiumSingleton.get(), 10, true);
+        consumer.setPartitions(4);
+        assert (consumer.getPartitions() == 4);
+        final Map<String, List<Integer>> received = new Hashtable<>();
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        consumer.addMessageListener(new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                threads.add(Thread.currentThread().getName());
+                List<Integer> lst = received.get(m.getPartitionKey());
+                if (lst == null) {
+                    lst = Collections.synchronizedList(new ArrayList<Integer>());
+                    received.put(m.getPartitionKey(), lst);
+                }
+                lst.add(Integer.parseInt(m.getValue()));
+                try {
+                    Thread.sleep((long) (3 * Math.random()));
+                } catch (InterruptedException e) {
+                }
+                return null;
+            }
+        });
+        int numberOfMessages = 400;
+        for (int i = 0; i < numberOfMessages; i++) {
+            Msg m = new Msg("partitioned", "m", "" + i);
+            m.setPartitionKey("key" + (i % 8));
+            producer.storeMessage(m);
+        }
+        consumer.start();
+        long start = System.currentTimeMillis();
+        int count = 0;
+        while (count < numberOfMessages) {
+            Thread.sleep(50);
+            assert (System.currentTimeMillis() - start < 20000) : "only " + count + " processed";
+            count = 0;
+            for (List<Integer> l : received.values()) {
+                count += l.size();
+            }
+        }
+        assert (received.size() == 8);
+        for (Map.Entry<String, List<Integer>> e : received.entrySet()) {
+            int last = -1;
+            for (Integer v : e.getValue()) {
+                assert (v > last) : "order violated for " + e.getKey() + ": " + v + " after " + last;
+                last = v;
+            }
+        }
+        assert (threads.size() > 1) : "partitions not processed in parallel";
+        producer.setRunning(false);
+        consumer.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void repartitionWhileRunningTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), 100, true);
+        final Messaging consumer = new Messaging(MorphiumSingleton.get(), 10, true, false, 50);
+        consumer.setPartitions(2);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        consumer.addMessageListener(new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                received.add(m.getValue());
+                return null;
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < 200; i++) {
+            Msg m = new Msg("repartitioned", "m", "" + i);
+            m.setPartitionKey("key" + (i % 8));
+            producer.storeMessage(m);
+            if (i == 100) {
+                //lanes must not be shut down while messages are queued there
+                consumer.setPartitions(4);
+            }
+        }
+        long start = System.currentTimeMillis();
+        while (received.size() < 200) {
+            Thread.sleep(50);
+            assert (System.currentTimeMillis() - start < 20000) : "only " + received.size() + " processed";
+        }
+        assert (consumer.getPartitions() == 4);
+        Thread.sleep(500);
+        assert (new HashSet<>(received).size() == 200 && received.size() == 200) : "processed twice?";
+        producer.setRunning(false);
+        consumer.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void priorityTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), 100, true);
+        final Messaging consumer = new Messaging(MorphiumSingleton.get(), 100, true, false, 100);
+        final List<MsgPriority> order = Collections.synchronizedList(new ArrayList<MsgPriority>());
+        consumer.addMessageListener(new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                order.add(m.getPriority());
+                return null;
+            }
+        });
+        //flood of low priority messages, sent before the urgent ones
+        for (int i = 0; i < 300; i++) {
+            Msg m = new Msg("prio", "m", "v" + i);
+            m.setPriority(MsgPriority.LOW);
+            producer.storeMessage(m);
+        }
+        for (int i = 0; i < 10; i++) {
+            Msg m = new Msg("prio", "m", "v" + i);
+            m.setPriority(MsgPriority.HIGH);
+            producer.storeMessage(m);
+        }
+        //no priority set - normal
+        producer.storeMessage(new Msg("prio", "m", "normal"));
+        consumer.start();
+        long start = System.currentTimeMillis();
+        while (order.size() < 311) {
+            Thread.sleep(50);
+            assert (System.currentTimeMillis() - start < 10000) : "only " + order.size() + " processed";
+        }
+        for (int i = 0; i < 10; i++) {
+            assert (order.get(i).equals(MsgPriority.HIGH)) : "high priority message not processed first: " + order.subList(0, 12);
+        }
+        assert (order.get(10).equals(MsgPriority.NORMAL));
+        consumer.setRunning(false);
+
+        //flood of high priority messages must not starve the others
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging consumer2 = new Messaging(MorphiumSingleton.get(), 100, true, false, 100);
+        final List<MsgPriority> order2 = Collections.synchronizedList(new ArrayList<MsgPriority>());
+        consumer2.addMessageListener(new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                order2.add(m.getPriority());
+                return null;
+            }
+        });
+        for (int i = 0; i < 500; i++) {
+            Msg m = new Msg("prio", "m", "v" + i);
+            m.setPriority(MsgPriority.HIGH);
+            producer.storeMessage(m);
+        }
+        for (int i = 0; i < 20; i++) {
+            Msg m = new Msg("prio", "m", "v" + i);
+            m.setPriority(MsgPriority.LOW);
+            producer.storeMessage(m);
+        }
+        consumer2.start();
+        start = System.currentTimeMillis();
+        while (order2.size() < 520) {
+            Thread.sleep(50);
+            assert (System.currentTimeMillis() - start < 10000) : "only " + order2.size() + " processed";
+        }
+        assert (order2.subList(0, 100).contains(MsgPriority.LOW)) : "low priority messages starved";
+        consumer2.setRunning(false);
+        producer.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void loopbackTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging sender = new Messaging(MorphiumSingleton.get(), 5000, true);
+        sender.setLoopback(true);
+        final Messaging receiver = new Messaging(MorphiumSingleton.get(), 5000, true);
+        receiver.setLoopback(true);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        receiver.addMessageListener(new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                received.add(m.getValue());
+                return null;
+            }
+        });
+        final List<String> answers = Collections.synchronizedList(new ArrayList<String>());
+        sender.addMessageListener(new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                answers.add(m.getValue());
+                return null;
+            }
+        });
+        sender.start();
+        receiver.start();
+        Thread.sleep(500);
+
+        long start = System.currentTimeMillis();
+        Msg direct = new Msg("loop", "m", "direct");
+        direct.addRecipient(receiver.getSenderId());
+        sender.storeMessage(direct);
+        Msg exclusive = new Msg("loop", "m", "exclusive");
+        exclusive.setExclusive(true);
+        sender.storeMessage(exclusive);
+        while (received.size() < 2) {
+            Thread.sleep(5);
+            assert (System.currentTimeMillis() - start < 1000) : "not delivered locally";
+        }
+        log.info("Local delivery took " + (System.currentTimeMillis() - start) + "ms");
+        assert (MorphiumSingleton.get().createQueryFor(Msg.class).countAll() == 0) : "local messages should not be stored";
+
+        //broadcast: delivered locally, stored for remote nodes, but marked as processed by the local receiver
+        sender.storeMessage(new Msg("loop", "m", "broadcast"));
+        Thread.sleep(1000);
+        assert (received.size() == 3);
+        assert (received.contains("broadcast"));
+        assert (answers.size() == 0) : "sender got own message";
+        List<Msg> stored = MorphiumSingleton.get().createQueryFor(Msg.class).asList();
+        assert (stored.size() == 1);
+        assert (stored.get(0).getProcessedBy().contains(receiver.getSenderId()));
+
+        sender.setRunning(false);
+        receiver.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void sequencedBroadcastTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), 100, true);
+        MorphiumSingleton.get().getDatabase().getCollection(producer.getSequenceCollectionName()).drop();
+        final Map<String, Integer> count = new Hashtable<>();
+        final Messaging[] consumers = new Messaging[3];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Messaging(MorphiumSingleton.get(), 10, true);
+            consumers[i].setBroadcastGapTimeout(500);
+            consumers[i].addMessageListener(new MessageListener() {
+                @Override
+                public Msg onMessage(Messaging msg, Msg m) {
+                    String key = m.getMsgId().toString() + "/" + msg.getSenderId();
+                    synchronized (count) {
+                        Integer c = count.get(key);
+                        count.put(key, c == null ? 1 : c + 1);
+                    }
+                    return null;
+                }
+            });
+            consumers[i].start();
+        }
+        Thread.sleep(500);
+        for (int i = 0; i < 50; i++) {
+            producer.storeMessage(new Msg("seq", "m", "v" + i));
+        }
+        //a sequence number never used, e.g. sender died before storing
+        MorphiumSingleton.get().getDatabase().getCollection(producer.getSequenceCollectionName()).update(new BasicDBObject("_id", "broadcast_NORMAL"),
+                new BasicDBObject("$inc", new BasicDBObject("value", 1L)));
+        for (int i = 50; i < 100; i++) {
+            producer.storeMessage(new Msg("seq", "m", "v" + i));
+        }
+        long start = System.currentTimeMillis();
+        while (count.size() < 300) {
+            Thread.sleep(50);
+            assert (System.currentTimeMillis() - start < 10000) : "only " + count.size() + " processed";
+        }
+        Thread.sleep(1500);
+        assert (count.size() == 300);
+        for (Integer c : count.values()) {
+            assert (c == 1) : "broadcast processed " + c + " times by one node";
+        }
+        for (Msg m : MorphiumSingleton.get().createQueryFor(Msg.class).asList()) {
+            assert (m.getSeq() != null);
+            assert (m.getProcessedBy().size() == 1) : "broadcasts should not be acknowledged";
+        }
+        //messages after the gap are still delivered
+        producer.storeMessage(new Msg("seq", "m", "after gap"));
+        Thread.sleep(1000);
+        assert (count.size() == 303);
+        for (Messaging c : consumers) {
+            c.setRunning(false);
+        }
+        producer.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void sequencedBroadcastWithExclusiveTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), 100, true);
+        MorphiumSingleton.get().getDatabase().getCollection(producer.getSequenceCollectionName()).drop();
+        final Map<String, Integer> count = new Hashtable<>();
+        Messaging consumer = new Messaging(MorphiumSingleton.get(), 10, true);
+        consumer.addMessageListener(new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                synchronized (count) {
+                    Integer c = count.get(m.getMsgId().toString());
+                    count.put(m.getMsgId().toString(), c == null ? 1 : c + 1);
+                }
+                return null;
+            }
+        });
+        consumer.start();
+        Thread.sleep(500);
+        for (int i = 0; i < 40; i++) {
+            Msg m = new Msg("seq", "m", "v" + i);
+            m.setExclusive(i % 2 == 0);
+            producer.storeMessage(m);
+        }
+        //exclusive messages do not take sequence numbers - no gaps to wait for
+        long start = System.currentTimeMillis();
+        while (count.size() < 40 || consumer.getBroadcastSeq(MsgPriority.NORMAL) < 20) {
+            Thread.sleep(50);
+            assert (System.currentTimeMillis() - start < 5000) : "only " + count.size() + " processed, seq " + consumer.getBroadcastSeq(MsgPriority.NORMAL);
+        }
+        assert (consumer.getBroadcastSeq(MsgPriority.NORMAL) == 20);
+        for (Msg m : MorphiumSingleton.get().createQueryFor(Msg.class).asList()) {
+            assert (m.getSeq() == null || "ALL".equals(m.getLockedBy())) : "exclusive message got sequence number";
+        }
+        consumer.setRunning(false);
+        producer.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void broadcastCursorTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), 100, true);
+        MorphiumSingleton.get().getDatabase().getCollection(producer.getSequenceCollectionName()).drop();
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        MessageListener l = new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                received.add(m.getValue());
+                return null;
+            }
+        };
+        Messaging consumer = new Messaging(MorphiumSingleton.get(), 10, true);
+        consumer.setSenderId("cursor_node");
+        consumer.addMessageListener(l);
+        consumer.start();
+        Thread.sleep(500);
+        for (int i = 0; i < 10; i++) {
+            producer.storeMessage(new Msg("seq", "m", "v" + i));
+        }
+        long start = System.currentTimeMillis();
+        while (received.size() < 10) {
+            Thread.sleep(50);
+            assert (System.currentTimeMillis() - start < 5000) : "only " + received.size() + " processed";
+        }
+        Thread.sleep(500);
+        consumer.setRunning(false);
+        Thread.sleep(1000);
+
+        //restarted with the same id - the stored broadcasts are not processed again
+        received.clear();
+        consumer = new Messaging(MorphiumSingleton.get(), 10, true);
+        consumer.setSenderId("cursor_node");
+        consumer.addMessageListener(l);
+        consumer.start();
+        for (int i = 10; i < 15; i++) {
+            producer.storeMessage(new Msg("seq", "m", "v" + i));
+        }
+        Thread.sleep(1500);
+        assert (received.size() == 5) : "processed " + received;
+        assert (!received.contains("v0"));
+        consumer.setRunning(false);
+        producer.setRunning(false);
+        Thread.sleep(1000);
+    }
+
+    private long[] deliveryBenchmark(boolean push, int numberOfMessages, int pause) throws Exception {
+        MorphiumSingleton.get().clearCollection(Msg.class);
+        final Messaging producer = new Messaging(MorphiumSingleton.get(), pause, true);
+        final Messaging consumer = new Messaging(MorphiumSingleton.get(), pause, true);
+        producer.setPushDelivery(push);
+        consumer.setPushDelivery(push);
+        final long[] latency = {0, 0};
+        consumer.addMessageListener(new MessageListener() {
+            @Override
+            public Msg onMessage(Messaging msg, Msg m) {
+                synchronized (latency) {
+                    latency[0]++;
+                    latency[1] += System.currentTimeMillis() - m.getTimestamp();
+                }
+                return null;
+            }
+        });
+        consumer.start();
+        Thread.sleep(500);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < numberOfMessages; i++) {
+            Msg m = new Msg("bench", "m", "v");
+            m.setTtl(5 * 60 * 1000);
+            producer.storeMessage(m);
+            Thread.sleep(5);
+        }
+        while (true) {
+            synchronized (latency) {
+                if (latency[0] >= numberOfMessages) break;
+                assert (System.currentTimeMillis() - start < 60000) : "only " + latency[0] + " processed";
+            }
+            Thread.sleep(5);
+        }
+        long dur = System.currentTimeMillis() - start;
+        producer.setRunning(false);
+        consumer.setRunning(false);
+        Thread.sleep(pause + 500);
+        synchronized (latency) {
+            return new long[]{dur, latency[1] / numberOfMessages};
+        }
+    }
+
+    @Test
+    public void pushDeliveryBenchmarkTest() throws Exception {
+        int numberOfMessages = 500;
+        int pause = 250;
+        long[] polling = deliveryBenchmark(false, numberOfMessages, pause);
+        log.info("Polling: " + numberOfMessages + " messages took " + polling[0] + "ms, avg. latency " + polling[1] + "ms");
+        long[] push = deliveryBenchmark(true, numberOfMessages, pause);
+        log.info("Push:    " + numberOfMessages + " messages took " + push[0] + "ms, avg. latency " + push[1] + "ms");
+        assert (push[1] < polling[1]) : "push delivery should have lower latency";
+    }
 }
@@ -0,0 +1,554 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import de.caluga.morphium.Logger;
+import de.caluga.morphium.ObjectMapperImpl;
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.cache.CacheElement;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.CacheListener;
+import de.caluga.morphium.cache.CacheObject;
+import de.caluga.morphium.cache.CacheSegment;
+import de.caluga.morphium.cache.MorphiumCache;
+import de.caluga.morphium.cache.MorphiumCacheImpl;
+import de.caluga.morphium.cache.ObjectSizeEstimator;
+import de.caluga.morphium.cache.OffHeapCacheTier;
+import de.caluga.morphium.cache.SegmentedMorphiumCacheImpl;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * testing the segmented cache without mongo
+ */
+public class SegmentedCacheTest {
+    private Logger log = new Logger(SegmentedCacheTest.class);
+
+    private List<CachedObject> createList(int from, int amount) {
+        List<CachedObject> lst = new ArrayList<>();
+        for (int i = from; i < from + amount; i++) {
+            CachedObject o = new CachedObject();
+            o.setId(new ObjectId());
+            o.setCounter(i);
+            o.setValue("v" + i);
+            lst.add(o);
+        }
+        return lst;
+    }
+
+    private CacheKey key(String k) {
+        return new CacheKey(new BasicDBObject("key", k), null, null, "cached_object", 0, 0);
+    }
+
+    @Test
+    public void cacheKeyTest() throws Exception {
+        Map<String, Integer> sort = new LinkedHashMap<>();
+        sort.put("counter", -1);
+        sort.put("value", 1);
+        CacheKey k1 = new CacheKey(new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(1, 2))).append("value", Pattern.compile("^v")), sort, null, "coll", 0, 10);
+        CacheKey k2 = new CacheKey(new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(1, 2))).append("value", Pattern.compile("^v")), new LinkedHashMap<>(sort), null, "coll", 0, 10);
+        assert (k1.equals(k2));
+        assert (k1.hashCode() == k2.hashCode());
+        assert (!k1.equals(k1.asIdList()));
+        assert (k1.asIdList().equals(k2.asIdList()));
+        assert (!k1.equals(k1.withLimit(1))) : "get() must not share the key of asList()";
+        assert (k1.withLimit(10) == k1);
+        assert (k1.withLimit(1).equals(new CacheKey(new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(1, 2))).append("value", Pattern.compile("^v")), sort, null, "coll", 0, 1)));
+
+        assert (!k1.equals(new CacheKey(new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(2, 1))).append("value", Pattern.compile("^v")), sort, null, "coll", 0, 10)));
+        assert (!k1.equals(new CacheKey(new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(1, 2))).append("value", Pattern.compile("^v", Pattern.CASE_INSENSITIVE)), sort, null, "coll", 0, 10)));
+        assert (!k1.equals(new CacheKey(new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(1, 2))).append("value", Pattern.compile("^v")), sort, null, "coll", 10, 10)));
+        assert (!k1.equals(new CacheKey(new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(1, 2))).append("value", Pattern.compile("^v")), sort, new BasicDBObject("counter", 1), "coll", 0, 10)));
+        Map<String, Integer> sort2 = new LinkedHashMap<>();
+        sort2.put("value", 1);
+        sort2.put("counter", -1);
+        assert (!k1.equals(new CacheKey(new BasicDBObject("counter", new BasicDBObject("$in", Arrays.asList(1, 2))).append("value", Pattern.compile("^v")), sort2, null, "coll", 0, 10))) : "Sort order matters";
+
+        //the key does not keep the query object, changes to it do not affect the key
+        BasicDBObject q = new BasicDBObject("counter", new BasicDBObject("$gt", 5)).append("data", new byte[]{1, 2}).append("ts", new Date(1000));
+        CacheKey k3 = new CacheKey(q, null, null, "coll", 0, 0);
+        q.put("counter", 7);
+        DBObject restored = k3.getQuery();
+        assert (((DBObject) restored.get("counter")).get("$gt").equals(5));
+        assert (Arrays.equals((byte[]) restored.get("data"), new byte[]{1, 2}));
+        assert (restored.get("ts").equals(new Date(1000)));
+        assert (k3.equals(new CacheKey(restored, null, null, "coll", 0, 0)));
+    }
+
+    @Test
+    public void addAndGetTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        List<CachedObject> lst = createList(0, 10);
+        cache.addToCache(key("key1"), CachedObject.class, lst);
+        assert (cache.isCached(CachedObject.class, key("key1")));
+        assert (!cache.isCached(CachedObject.class, key("key2")));
+        assert (!cache.isCached(UncachedObject.class, key("key1"))) : "uncached type must not be cached";
+        assert (cache.getFromCache(CachedObject.class, key("key1")) == lst);
+        assert (cache.getFromIDCache(CachedObject.class, lst.get(3).getId()) == lst.get(3));
+
+        Map<Class<?>, Map<CacheKey, CacheElement<?>>> snapshot = cache.cloneCache();
+        assert (snapshot.get(CachedObject.class).size() == 1);
+        cache.addToCache(key("key2"), CachedObject.class, createList(10, 2));
+        assert (snapshot.get(CachedObject.class).size() == 1) : "snapshot must not change";
+        assert (cache.cloneCache().get(CachedObject.class).size() == 2);
+    }
+
+    @Test
+    public void removeEntryTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        List<CachedObject> lst1 = createList(0, 10);
+        List<CachedObject> lst2 = createList(10, 10);
+        cache.addToCache(key("key1"), CachedObject.class, lst1);
+        cache.addToCache(key("key2"), CachedObject.class, lst2);
+
+        cache.removeEntryFromCache(CachedObject.class, lst1.get(5).getId());
+        assert (!cache.isCached(CachedObject.class, key("key1")));
+        assert (cache.isCached(CachedObject.class, key("key2")));
+        assert (cache.getFromIDCache(CachedObject.class, lst1.get(5).getId()) == null);
+
+        cache.clearCachefor(CachedObject.class);
+        assert (!cache.isCached(CachedObject.class, key("key2")));
+        assert (cache.getFromIDCache(CachedObject.class, lst2.get(0).getId()) == null);
+    }
+
+    @Test
+    public void reverseIndexTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        List<CachedObject> lst1 = createList(0, 10);
+        List<CachedObject> lst2 = new ArrayList<>(lst1.subList(0, 2));
+        List<CachedObject> lst3 = createList(10, 5);
+        List<Object> idList = new ArrayList<>();
+        idList.add(lst1.get(0).getId());
+        cache.addToCache(key("key1"), CachedObject.class, lst1);
+        cache.addToCache(key("key2"), CachedObject.class, lst2);
+        cache.addToCache(key("key3"), CachedObject.class, lst3);
+        cache.addToCache(key("key4").asIdList(), CachedObject.class, idList);
+
+        assert (cache.getSegment(CachedObject.class, false).getKeysContaining(lst1.get(0).getId()).size() == 3);
+        cache.removeEntryFromCache(CachedObject.class, lst1.get(0).getId());
+        assert (!cache.isCached(CachedObject.class, key("key1")));
+        assert (!cache.isCached(CachedObject.class, key("key2")));
+        assert (!cache.isCached(CachedObject.class, key("key4").asIdList()));
+        assert (cache.isCached(CachedObject.class, key("key3"))) : "unrelated entry removed";
+
+        //no cached result refers to lst1 anymore
+        assert (cache.getFromIDCache(CachedObject.class, lst1.get(5).getId()) == null);
+        assert (cache.getFromIDCache(CachedObject.class, lst3.get(0).getId()) == lst3.get(0));
+    }
+
+    @Test
+    public void idCacheReferenceTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        List<CachedObject> lst1 = createList(0, 10);
+        List<CachedObject> lst2 = new ArrayList<>(lst1.subList(0, 2));
+        cache.addToCache(key("key1"), CachedObject.class, lst1);
+        cache.addToCache(key("key2"), CachedObject.class, lst2);
+        //replacing key1 - entities still referenced by key2 must stay in the id cache
+        cache.addToCache(key("key1"), CachedObject.class, createList(20, 1));
+        assert (cache.getFromIDCache(CachedObject.class, lst1.get(0).getId()) == lst1.get(0));
+        assert (cache.getFromIDCache(CachedObject.class, lst1.get(1).getId()) == lst1.get(1));
+        assert (cache.getFromIDCache(CachedObject.class, lst1.get(5).getId()) == null);
+        //re-adding the same entities under the same key must keep them
+        cache.addToCache(key("key2"), CachedObject.class, lst2);
+        assert (cache.getFromIDCache(CachedObject.class, lst1.get(0).getId()) == lst1.get(0));
+    }
+
+    @Test
+    public void parallelAccessTest() throws Exception {
+        final SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int t = 0; t < 10; t++) {
+            final int tn = t;
+            Thread thr = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        CacheKey k = key("key_" + tn + "_" + i);
+                        cache.addToCache(k, CachedObject.class, createList(i, 1));
+                        assert (cache.getFromCache(CachedObject.class, k) != null);
+                    }
+                }
+            };
+            thr.start();
+            threads.add(thr);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        log.info("took " + (System.currentTimeMillis() - start) + " ms");
+        //CachedObject has maxEntries=20000
+        assert (cache.cloneCache().get(CachedObject.class).size() == 20000);
+        assert (cache.cloneIdCache().get(CachedObject.class).size() == 20000);
+    }
+
+    @Test
+    public void fifoEvictionTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        for (int i = 0; i < 20; i++) {
+            cache.addToCache(key("key" + i), FifoCached.class, createEntities(FifoCached.class));
+        }
+        assert (cache.cloneCache().get(FifoCached.class).size() == 10);
+        assert (!cache.isCached(FifoCached.class, key("key9")));
+        assert (cache.isCached(FifoCached.class, key("key10")));
+        assert (cache.isCached(FifoCached.class, key("key19")));
+    }
+
+    @Test
+    public void lruEvictionTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        for (int i = 0; i < 10; i++) {
+            cache.addToCache(key("key" + i), LruCached.class, createEntities(LruCached.class));
+        }
+        //accessing the oldest one
+        assert (cache.getFromCache(LruCached.class, key("key0")) != null);
+        cache.addToCache(key("key10"), LruCached.class, createEntities(LruCached.class));
+        assert (cache.isCached(LruCached.class, key("key0"))) : "recently used entry evicted";
+        assert (!cache.isCached(LruCached.class, key("key1"))) : "least recently used entry not evicted";
+        assert (cache.cloneCache().get(LruCached.class).size() == 10);
+    }
+
+    @Test
+    public void randomEvictionTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        for (int i = 0; i < 1000; i++) {
+            cache.addToCache(key("key" + i), RandomCached.class, createEntities(RandomCached.class));
+            assert (cache.isCached(RandomCached.class, key("key" + i))) : "just inserted element evicted";
+        }
+        assert (cache.cloneCache().get(RandomCached.class).size() == 10);
+    }
+
+    @Test
+    public void expiryTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        for (int i = 0; i < 5; i++) {
+            cache.addToCache(key("key" + i), CachedObject.class, createList(i, 1));
+        }
+        Thread.sleep(200);
+        cache.addToCache(key("key5"), CachedObject.class, createList(5, 1));
+        //replacing key0 - the old marker in the expiry queue must be skipped
+        cache.addToCache(key("key0"), CachedObject.class, createList(0, 1));
+        int removed = cache.expire(CachedObject.class, 100);
+        assert (removed == 4) : "removed " + removed;
+        assert (cache.isCached(CachedObject.class, key("key0")));
+        assert (cache.isCached(CachedObject.class, key("key5")));
+        assert (!cache.isCached(CachedObject.class, key("key1")));
+    }
+
+    @Test
+    public void expiryQueueCompactionTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        for (int i = 0; i < 1000; i++) {
+            cache.addToCache(key("key" + (i % 5)), CachedObject.class, createList(i, 1));
+        }
+        CacheSegment s = cache.getSegment(CachedObject.class, false);
+        assert (s.size() == 5);
+        assert (s.getExpiryQueueSize() <= 2 * 5 + 16) : "stale expiry markers not removed: " + s.getExpiryQueueSize();
+    }
+
+    @Test
+    public void sizeEstimationTest() throws Exception {
+        ObjectSizeEstimator est = new ObjectSizeEstimator();
+        long one = est.estimate(createList(0, 1));
+        long many = est.estimate(createList(0, 1000));
+        log.info("Size of 1: " + one + " size of 1000: " + many);
+        assert (one > 0);
+        assert (many > 500 * one) : "List size not extrapolated";
+    }
+
+    @Test
+    public void typeByteBudgetTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        for (int i = 0; i < 100; i++) {
+            cache.addToCache(key("key" + i), BudgetCached.class, createEntities(BudgetCached.class));
+            assert (cache.getSegment(BudgetCached.class, false).getBytes() <= 2000);
+        }
+        int sz = cache.cloneCache().get(BudgetCached.class).size();
+        log.info("Entries: " + sz);
+        assert (sz < 100 && sz > 1);
+        //FIFO - the last one must still be there
+        assert (cache.isCached(BudgetCached.class, key("key99")));
+    }
+
+    @Test
+    public void globalByteBudgetTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl(50000);
+        for (int i = 0; i < 100; i++) {
+            cache.addToCache(key("key" + i), CachedObject.class, createList(i * 10, 10));
+            cache.addToCache(key("key" + i), FifoCached.class, createEntities(FifoCached.class));
+            assert (cache.getBytes() <= 50000) : "Budget exceeded: " + cache.getBytes();
+        }
+        assert (cache.isCached(CachedObject.class, key("key99")));
+        assert (cache.cloneCache().get(CachedObject.class).size() < 100);
+    }
+
+    @Test
+    public void offHeapTierTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        OffHeapCacheTier tier = new OffHeapCacheTier(new ObjectMapperImpl(), 1024 * 1024);
+        cache.setOffHeapTier(tier);
+        List<List<FifoCached>> lists = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            List<FifoCached> l = createEntities(FifoCached.class);
+            lists.add(l);
+            cache.addToCache(key("key" + i), FifoCached.class, l);
+        }
+        assert (cache.cloneCache().get(FifoCached.class).size() == 10);
+        assert (tier.size() == 10) : "Evicted entries not moved off heap: " + tier.size();
+        assert (tier.getBytes() > 0);
+        assert (cache.isCached(FifoCached.class, key("key0")));
+
+        List<FifoCached> res = cache.getFromCache(FifoCached.class, key("key0"));
+        assert (res != null && res.size() == 1);
+        assert (res.get(0) != lists.get(0).get(0)) : "not decoded?";
+        assert (res.get(0).id.equals(lists.get(0).get(0).id));
+        //promoted back to heap, another one evicted
+        assert (tier.size() == 10);
+        assert (!tier.contains(FifoCached.class, key("key0")));
+
+        cache.removeEntryFromCache(FifoCached.class, lists.get(1).get(0).id);
+        assert (!cache.isCached(FifoCached.class, key("key1")));
+
+        cache.clearCachefor(FifoCached.class);
+        assert (tier.size() == 0);
+        assert (tier.getBytes() == 0);
+    }
+
+    @Test
+    public void offHeapTierLimitTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        OffHeapCacheTier tier = new OffHeapCacheTier(new ObjectMapperImpl(), 500);
+        cache.setOffHeapTier(tier);
+        for (int i = 0; i < 100; i++) {
+            cache.addToCache(key("key" + i), FifoCached.class, createEntities(FifoCached.class));
+            assert (tier.getBytes() <= 500);
+        }
+        int offHeap = tier.size();
+        assert (offHeap > 0 && offHeap < 90);
+        Thread.sleep(10);
+        assert (cache.expire(FifoCached.class, 1) == 10 + offHeap);
+        assert (tier.size() == 0);
+    }
+
+    @Test
+    public void idResultModeTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        List<IdsCached> lst = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            lst.addAll(createEntities(IdsCached.class));
+        }
+        cache.addToCache(key("key1"), IdsCached.class, lst);
+        cache.addToCache(key("key2"), IdsCached.class, lst.subList(1, 3));
+        CacheElement<?> e = cache.getCacheElement(IdsCached.class, key("key1"));
+        assert (e.isIdsOnly());
+        assert (e.getFound().get(0).equals(lst.get(0).id));
+
+        List<IdsCached> found = cache.getFromCache(IdsCached.class, key("key2"));
+        assert (found.size() == 2);
+        assert (found.get(0) == lst.get(1)) : "objects should be shared";
+        assert (cache.getFromCache(IdsCached.class, key("key1")).get(1) == found.get(0));
+
+        //removing key1 keeps the objects referenced by key2
+        cache.removeEntryFromCache(IdsCached.class, lst.get(0).id);
+        assert (!cache.isCached(IdsCached.class, key("key1")));
+        assert (cache.getFromIDCache(IdsCached.class, lst.get(0).id) == null);
+        assert (cache.getFromIDCache(IdsCached.class, lst.get(1).id) == lst.get(1));
+
+        //missing objects - result needs to be completed by the caller
+        cache.setIdCache(new HashMap<Class<?>, Map<Object, Object>>());
+        assert (cache.isCached(IdsCached.class, key("key2")));
+        assert (cache.getFromCache(IdsCached.class, key("key2")) == null);
+        cache.addToIdCache(IdsCached.class, lst.get(1).id, lst.get(1));
+        cache.addToIdCache(IdsCached.class, lst.get(2).id, lst.get(2));
+        cache.addToIdCache(IdsCached.class, lst.get(4).id, lst.get(4));
+        assert (cache.getFromCache(IdsCached.class, key("key2")).size() == 2);
+        assert (cache.getFromIDCache(IdsCached.class, lst.get(4).id) == null) : "unreferenced objects must not be added";
+
+        //results of queries with projection only contain partial objects
+        List<IdsCached> partial = createEntities(IdsCached.class);
+        CacheKey pk = new CacheKey(new BasicDBObject("key", "partial"), null, new BasicDBObject("id", 1), "ids_cached", 0, 0);
+        cache.addToCache(pk, IdsCached.class, partial);
+        assert (cache.getCacheElement(IdsCached.class, pk).isIdsOnly());
+        assert (cache.getFromIDCache(IdsCached.class, partial.get(0).id) == null);
+        assert (cache.getFromCache(IdsCached.class, pk) == null);
+    }
+
+    @Test
+    public void cacheImplIdResultModeTest() throws Exception {
+        MorphiumCacheImpl cache = new MorphiumCacheImpl();
+        List<IdsCached> lst = createEntities(IdsCached.class);
+        cache.addToCache(key("key1"), IdsCached.class, lst);
+        assert (cache.getCacheElement(IdsCached.class, key("key1")).isIdsOnly());
+        assert (cache.getFromCache(IdsCached.class, key("key1")).get(0) == lst.get(0));
+
+        //results of queries with projection only contain partial objects
+        List<IdsCached> partial = createEntities(IdsCached.class);
+        CacheKey pk = new CacheKey(new BasicDBObject("key", "partial"), null, new BasicDBObject("id", 1), "ids_cached", 0, 0);
+        cache.addToCache(pk, IdsCached.class, partial);
+        assert (cache.getCacheElement(IdsCached.class, pk).isIdsOnly());
+        assert (cache.getFromIDCache(IdsCached.class, partial.get(0).id) == null);
+        assert (cache.getFromCache(IdsCached.class, pk) == null);
+    }
+
+    @Test
+    public void projectedResultTest() throws Exception {
+        List<CachedObject> lst = createList(0, 1);
+        CacheKey pk = new CacheKey(new BasicDBObject("counter", 0), null, new BasicDBObject("counter", 1), "cached_object", 0, 0);
+        SegmentedMorphiumCacheImpl segmented = new SegmentedMorphiumCacheImpl();
+        segmented.addToCache(pk, CachedObject.class, lst);
+        assert (segmented.getFromCache(CachedObject.class, pk).get(0) == lst.get(0));
+        assert (segmented.getFromIDCache(CachedObject.class, lst.get(0).getId()) == null);
+        MorphiumCacheImpl cache = new MorphiumCacheImpl();
+        cache.addToCache(pk, CachedObject.class, lst);
+        assert (cache.getFromCache(CachedObject.class, pk).get(0) == lst.get(0));
+        assert (cache.getFromIDCache(CachedObject.class, lst.get(0).getId()) == null);
+    }
+
+    @Test
+    public void loadedByIdTest() throws Exception {
+        loadedById(new SegmentedMorphiumCacheImpl());
+        loadedById(new MorphiumCacheImpl());
+
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        List<CachedObject> lst = createList(0, 2);
+        cache.addLoadedById(CachedObject.class, lst.get(0).getId(), lst.get(0));
+        cache.addToCache(key("k"), CachedObject.class, lst.subList(1, 2));
+        cache.addLoadedById(CachedObject.class, lst.get(1).getId(), lst.get(1));
+        Thread.sleep(10);
+        assert (cache.expire(CachedObject.class, 60000) == 0);
+        assert (cache.getFromIDCache(CachedObject.class, lst.get(0).getId()) != null);
+        cache.expire(CachedObject.class, 5);
+        assert (cache.getFromIDCache(CachedObject.class, lst.get(0).getId()) == null);
+        assert (cache.getFromIDCache(CachedObject.class, lst.get(1).getId()) == null) : "removed with its result";
+    }
+
+    private void loadedById(MorphiumCache cache) throws Exception {
+        List<FifoCached> lst = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            lst.addAll(createEntities(FifoCached.class));
+            cache.addLoadedById(FifoCached.class, lst.get(i).id, lst.get(i));
+        }
+        assert (cache.cloneCache().get(FifoCached.class) == null || cache.cloneCache().get(FifoCached.class).isEmpty()) : "no query results";
+        //maxEntries is 10 - the oldest ones are dropped
+        assert (cache.getFromIDCache(FifoCached.class, lst.get(4).id) == null);
+        assert (cache.getFromIDCache(FifoCached.class, lst.get(5).id) == lst.get(5));
+        assert (cache.getFromIDCache(FifoCached.class, lst.get(14).id) == lst.get(14));
+    }
+
+    @Test
+    public void predicateInvalidationTest() throws Exception {
+        SegmentedMorphiumCacheImpl cache = new SegmentedMorphiumCacheImpl();
+        List<CachedObject> lst = createList(0, 10);
+        CacheKey byCounter = new CacheKey(new BasicDBObject("counter", new BasicDBObject("$lt", 10)), null, null, "cached_object", 0, 0);
+        CacheKey byValue = new CacheKey(new BasicDBObject("value", "other"), null, null, "cached_object", 0, 0);
+        CacheKey unsupported = new CacheKey(new BasicDBObject("$where", "this.counter > 100"), null, null, "cached_object", 0, 0);
+        CacheKey skipped = new CacheKey(new BasicDBObject("value", "v2"), null, null, "cached_object", 5, 0);
+        cache.addToCache(skipped, CachedObject.class, new ArrayList<CachedObject>());
+        cache.addToCache(byCounter, CachedObject.class, lst);
+        cache.addToCache(byValue, CachedObject.class, new ArrayList<CachedObject>());
+        cache.addToCache(unsupported, CachedObject.class, new ArrayList<CachedObject>());
+
+        //new object not matching byCounter and byValue
+        ObjectId newId = new ObjectId();
+        cache.clearCacheIfNecessary(CachedObject.class, newId, new BasicDBObject("_id", newId).append("counter", 100).append("value", "v100"));
+        assert (cache.isCached(CachedObject.class, byCounter));
+        assert (cache.isCached(CachedObject.class, byValue));
+        assert (!cache.isCached(CachedObject.class, unsupported)) : "cannot evaluate - must be cleared";
+        assert (!cache.isCached(CachedObject.class, skipped)) : "results with skip might shift";
+
+        //new object matching byValue
+        cache.clearCacheIfNecessary(CachedObject.class, newId, new BasicDBObject("_id", newId).append("counter", 100).append("value", "other"));
+        assert (cache.isCached(CachedObject.class, byCounter));
+        assert (!cache.isCached(CachedObject.class, byValue));
+
+        //changed object, that does not match anymore - results containing it are affected
+        cache.clearCacheIfNecessary(CachedObject.class, lst.get(0).getId(), new BasicDBObject("_id", lst.get(0).getId()).append("counter", 100).append("value", "v0"));
+        assert (!cache.isCached(CachedObject.class, byCounter));
+        assert (cache.getFromIDCache(CachedObject.class, lst.get(1).getId()) == null);
+    }
+
+    @Test
+    public void cacheImplInvalidationTest() throws Exception {
+        MorphiumCacheImpl cache = new MorphiumCacheImpl();
+        CacheKey byCounter = new CacheKey(new BasicDBObject("counter", new BasicDBObject("$lt", 10)), null, null, "cached_object", 0, 0);
+        CacheKey byValue = new CacheKey(new BasicDBObject("value", "other"), null, null, "cached_object", 0, 0);
+        cache.addToCache(byCounter, CachedObject.class, createList(0, 10));
+        cache.addToCache(byValue, CachedObject.class, new ArrayList<CachedObject>());
+        Map<CacheKey, CacheElement<?>> current = cache.cloneCache().get(CachedObject.class);
+        cache.getCacheElement(CachedObject.class, byCounter).setLru(0);
+
+        ObjectId newId = new ObjectId();
+        DBObject doc = new BasicDBObject("_id", newId).append("counter", 100).append("value", "other");
+        cache.clearCacheIfNecessary(CachedObject.class, newId, doc);
+        assert (cache.getCacheElement(CachedObject.class, byCounter).getLru() == 0) : "scan must not touch the lru time";
+        assert (!cache.isCached(CachedObject.class, byValue));
+        assert (current.containsKey(byValue)) : "map of concurrent readers changed";
+
+        cache.addCacheListener(new CacheListener() {
+            @Override
+            public <T> CacheObject<T> wouldAddToCache(CacheObject<T> toCache) {
+                return toCache;
+            }
+
+            @Override
+            public <T> boolean wouldClearCache(Class<T> affectedEntityType) {
+                return false;
+            }
+
+            @Override
+            public <T> boolean wouldRemoveEntryFromCache(Class cls, Object id, Object entity) {
+                return true;
+            }
+        });
+        cache.addToCache(byValue, CachedObject.class, new ArrayList<CachedObject>());
+        cache.clearCacheIfNecessary(CachedObject.class, newId, doc);
+        assert (cache.isCached(CachedObject.class, byValue)) : "veto ignored";
+    }
+
+    private <T> List<T> createEntities(Class<T> cls) throws Exception {
+        List<T> ret = new ArrayList<>();
+        T o = cls.newInstance();
+        cls.getDeclaredField("id").set(o, new ObjectId());
+        ret.add(o);
+        return ret;
+    }
+
+    @Entity
+    @Cache(maxBytes = 2000, strategy = Cache.ClearStrategy.FIFO)
+    public static class BudgetCached {
+        @Id
+        public ObjectId id;
+    }
+
+    @Entity
+    @Cache(resultMode = Cache.ResultMode.IDS)
+    public static class IdsCached {
+        @Id
+        public ObjectId id;
+    }
+
+    @Entity
+    @Cache(maxEntries = 10, strategy = Cache.ClearStrategy.FIFO)
+    public static class FifoCached {
+        @Id
+        public ObjectId id;
+    }
+
+    @Entity
+    @Cache(maxEntries = 10, strategy = Cache.ClearStrategy.LRU)
+    public static class LruCached {
+        @Id
+        public ObjectId id;
+    }
+
+    @Entity
+    @Cache(maxEntries = 10, strategy = Cache.ClearStrategy.RANDOM)
+    public static class RandomCached {
+        @Id
+        public ObjectId id;
+    }
+}
@@ -0,0 +1,141 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.SingleFlightLoader;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * testing coalescing of concurrent loads without mongo
+ */
+public class SingleFlightLoaderTest {
+
+    private CacheKey key(String k) {
+        return new CacheKey(new BasicDBObject("key", k), null, null, "cached_object", 0, 0);
+    }
+
+    @Test
+    public void coalesceTest() throws Exception {
+        final SingleFlightLoader loader = new SingleFlightLoader();
+        final AtomicInteger calls = new AtomicInteger();
+        final List<String> result = new ArrayList<>();
+        final List<Object> received = new ArrayList<>();
+        final Callable<List<String>> slowLoad = new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                calls.incrementAndGet();
+                Thread.sleep(500);
+                return result;
+            }
+        };
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    List<String> r = loader.load(CachedObject.class, key("k1"), slowLoad, 5000);
+                    synchronized (received) {
+                        received.add(r);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assert (calls.get() == 1) : "Loaded " + calls.get() + " times";
+        assert (received.size() == 10);
+        for (Object r : received) {
+            assert (r == result);
+        }
+        assert (loader.getCoalesced() == 9);
+        assert (loader.getInFlight() == 0);
+
+        //different key - not coalesced
+        loader.load(CachedObject.class, key("k2"), slowLoad, 5000);
+        assert (calls.get() == 2);
+    }
+
+    @Test
+    public void timeoutTest() throws Exception {
+        final SingleFlightLoader loader = new SingleFlightLoader();
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> slowLoad = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                calls.incrementAndGet();
+                Thread.sleep(1000);
+                return 1;
+            }
+        };
+        Thread t = new Thread() {
+            public void run() {
+                loader.load(CachedObject.class, key("k1"), slowLoad, 100);
+            }
+        };
+        t.start();
+        Thread.sleep(50);
+        loader.load(CachedObject.class, key("k1"), slowLoad, 100);
+        t.join();
+        assert (calls.get() == 2);
+        assert (loader.getTimeouts() == 1);
+        assert (loader.getCoalesced() == 0);
+    }
+
+    @Test
+    public void errorTest() throws Exception {
+        final SingleFlightLoader loader = new SingleFlightLoader();
+        try {
+            loader.load(CachedObject.class, key("k1"), new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    throw new IllegalStateException("failed");
+                }
+            }, 1000);
+            assert (false) : "Exception expected";
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        assert (loader.getInFlight() == 0);
+        assert (loader.load(CachedObject.class, key("k1"), new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return "ok";
+            }
+        }, 1000).equals("ok"));
+    }
+
+    @Test
+    public void refreshAsyncTest() throws Exception {
+        final SingleFlightLoader loader = new SingleFlightLoader();
+        final AtomicInteger calls = new AtomicInteger();
+        final List<String> result = new ArrayList<>();
+        final Callable<List<String>> slowLoad = new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                calls.incrementAndGet();
+                Thread.sleep(300);
+                return result;
+            }
+        };
+        ExecutorService ex = Executors.newFixedThreadPool(2);
+        assert (loader.refreshAsync(CachedObject.class, key("k1"), slowLoad, ex));
+        assert (!loader.refreshAsync(CachedObject.class, key("k1"), slowLoad, ex)) : "refresh must only run once";
+        //a miss during the refresh waits for it
+        assert (loader.load(CachedObject.class, key("k1"), slowLoad, 5000) == result);
+        assert (calls.get() == 1);
+        assert (loader.getRefreshes() == 1);
+        assert (loader.getCoalesced() == 1);
+        ex.shutdown();
+        assert (!loader.refreshAsync(CachedObject.class, key("k1"), slowLoad, ex)) : "rejected refresh";
+        assert (loader.getInFlight() == 0);
+    }
+}